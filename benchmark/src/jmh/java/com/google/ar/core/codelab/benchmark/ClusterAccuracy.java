@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.helpers.AABB;
+
+import java.util.List;
+
+/** Scores detected cluster boxes against the ground-truth boxes of a synthetic scene. */
+public final class ClusterAccuracy {
+    private ClusterAccuracy() {}
+
+    /** Intersection over union of two boxes. */
+    public static float intersectionOverUnion(AABB a, AABB b) {
+        float overlapX = Math.min(a.maxX, b.maxX) - Math.max(a.minX, b.minX);
+        float overlapY = Math.min(a.maxY, b.maxY) - Math.max(a.minY, b.minY);
+        float overlapZ = Math.min(a.maxZ, b.maxZ) - Math.max(a.minZ, b.minZ);
+        if (overlapX <= 0 || overlapY <= 0 || overlapZ <= 0) {
+            return 0;
+        }
+        float intersection = overlapX * overlapY * overlapZ;
+        return intersection / (volume(a) + volume(b) - intersection);
+    }
+
+    /**
+     * Counts the ground-truth boxes that are matched by a detected box with an intersection over
+     * union of at least {@code minIntersectionOverUnion}.
+     */
+    public static int countMatches(
+            List<AABB> truth, List<AABB> detected, float minIntersectionOverUnion) {
+        int matches = 0;
+        for (AABB expected : truth) {
+            for (AABB actual : detected) {
+                if (intersectionOverUnion(expected, actual) >= minIntersectionOverUnion) {
+                    ++matches;
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static float volume(AABB box) {
+        return (box.maxX - box.minX) * (box.maxY - box.minY) * (box.maxZ - box.minZ);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.ClusterTracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching the clusters of a frame to the tracks of the previous frames.  Objects drift slowly
+ * through a room-sized volume, and each one is missed in some frames, as the clusters of a real
+ * pointcloud are.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClusterTrackingBenchmark {
+    // The sequence of frames is replayed in a loop.
+    private static final int NUM_FRAMES = 64;
+    private static final float ROOM_SIZE = 6.0f; // Units: meters.
+    private static final float MISS_PROBABILITY = 0.1f;
+
+    @Param({"50", "200"})
+    public int numClusters;
+
+    private final List<List<AABB>> frames = new ArrayList<>();
+    private ClusterTracker tracker;
+    private int frameIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(5);
+        float[] centers = new float[3 * numClusters];
+        float[] halfSizes = new float[3 * numClusters];
+        for (int i = 0; i < 3 * numClusters; ++i) {
+            centers[i] = (random.nextFloat() - 0.5f) * ROOM_SIZE;
+            halfSizes[i] = 0.03f + 0.2f * random.nextFloat();
+        }
+        for (int frame = 0; frame < NUM_FRAMES; ++frame) {
+            List<AABB> clusters = new ArrayList<>();
+            for (int cluster = 0; cluster < numClusters; ++cluster) {
+                for (int i = 3 * cluster; i < 3 * cluster + 3; ++i) {
+                    centers[i] += 0.005f * (float) random.nextGaussian();
+                }
+                if (random.nextFloat() < MISS_PROBABILITY) {
+                    continue;
+                }
+                AABB bounds = new AABB();
+                bounds.update(centers[3 * cluster] - halfSizes[3 * cluster],
+                        centers[3 * cluster + 1] - halfSizes[3 * cluster + 1],
+                        centers[3 * cluster + 2] - halfSizes[3 * cluster + 2]);
+                bounds.update(centers[3 * cluster] + halfSizes[3 * cluster],
+                        centers[3 * cluster + 1] + halfSizes[3 * cluster + 1],
+                        centers[3 * cluster + 2] + halfSizes[3 * cluster + 2]);
+                clusters.add(bounds);
+            }
+            frames.add(clusters);
+        }
+
+        // Starts from a steady state, with every track confirmed.
+        tracker = new ClusterTracker();
+        for (int frame = 0; frame < NUM_FRAMES; ++frame) {
+            tracker.update(frames.get(frame));
+        }
+    }
+
+    @Benchmark
+    public int update() {
+        tracker.update(frames.get(frameIndex));
+        frameIndex = (frameIndex + 1) % NUM_FRAMES;
+        return tracker.getNumTracks();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.OBB;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clustering of the point cloud into boxes: building the occupancy grid, finding the clusters and
+ * their axis-aligned or oriented bounding boxes, and both together as done once per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClusteringBenchmark {
+    @Param({"DENSE", "SPARSE"})
+    public GridType gridType;
+
+    // Finding clusters consumes the grid, so a fresh helper is built before every invocation.
+    private PointClusteringHelper helper;
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation(DepthFrameState state) {
+        helper = new PointClusteringHelper(state.points.duplicate(), gridType);
+    }
+
+    @Benchmark
+    public PointClusteringHelper buildGrid(DepthFrameState state) {
+        return new PointClusteringHelper(state.points.duplicate(), gridType);
+    }
+
+    @Benchmark
+    public List<AABB> findClusters() {
+        return helper.findClusters();
+    }
+
+    @Benchmark
+    public List<OBB> findOrientedClusters() {
+        return helper.findOrientedClusters();
+    }
+
+    @Benchmark
+    public List<AABB> buildGridAndFindClusters(DepthFrameState state) {
+        return new PointClusteringHelper(state.points.duplicate(), gridType).findClusters();
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.BoxFilter;
+import com.google.ar.core.codelab.common.depth.DepthFrame;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.PlaneDistanceFilter;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+import com.google.ar.core.codelab.common.depth.VoxelDedupeFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a depth frame into a world-space point cloud. With {@code pointFilters}, the
+ * points are also tested against the floor plane, a region of interest and a 1 cm voxel dedupe
+ * during the conversion; the dedupe is not thread-safe, so the conversion then runs on the
+ * calling thread.
+ *
+ * <p>With {@code planeRejection}, the points on 16 bounded planes, like those ARCore tracks in a
+ * room, are removed either during the conversion or in a separate pass over the converted points,
+ * so that the two can be compared.
+ *
+ * <p>With {@code ingest} set to BYTE_COPY, the depth and confidence planes are first copied one
+ * byte at a time into freshly allocated buffers, as the app did before reading them in place, so
+ * that the time per frame can be compared before and after.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DepthConversionBenchmark {
+    @Param({"1", "4"})
+    public int workerCount;
+
+    @Param({"false", "true"})
+    public boolean pointFilters;
+
+    /** How the depth and confidence planes are read. */
+    public enum Ingest {
+        /** The planes are read where they are. */
+        IN_PLACE,
+        /** The planes are copied byte by byte into new buffers on every frame. */
+        BYTE_COPY,
+    }
+
+    @Param({"IN_PLACE", "BYTE_COPY"})
+    public Ingest ingest;
+
+    /** How the points on the planes tracked by ARCore are removed. */
+    public enum PlaneRejection {
+        /** No planes are tracked. */
+        NONE,
+        /** The points are tested in chunks during the conversion, as the app does. */
+        FUSED,
+        /** The converted points are filtered in a separate pass. */
+        BULK,
+    }
+
+    @Param({"NONE", "FUSED", "BULK"})
+    public PlaneRejection planeRejection;
+
+    // The floor and the wall of the scene, and smaller planes at the height of table tops.
+    private static final int NUM_TABLE_PLANES = 14;
+
+    private DepthPointConverter converter;
+    private PlaneFilter trackedPlanes;
+    private final ByteCopyDepthFrame byteCopyFrame = new ByteCopyDepthFrame();
+
+    @Setup(Level.Trial)
+    public void setUp(DepthFrameState state) {
+        converter = new DepthPointConverter(workerCount);
+        if (planeRejection != PlaneRejection.NONE) {
+            trackedPlanes = new PlaneFilter(
+                    planeRejection == PlaneRejection.BULK ? workerCount : 1);
+            addTrackedPlanes(state.scene, trackedPlanes);
+            if (planeRejection == PlaneRejection.FUSED) {
+                converter.getFilterPipeline().addFilter(new PlaneDistanceFilter(trackedPlanes));
+            }
+        }
+        if (pointFilters) {
+            float[] floorMatrix = new float[16];
+            floorMatrix[0] = 1;
+            floorMatrix[5] = 1;
+            floorMatrix[10] = 1;
+            floorMatrix[15] = 1;
+            PlaneFilter floor = new PlaneFilter();
+            floor.addPlane(floorMatrix, 0);
+            converter.getFilterPipeline()
+                    .addFilter(new PlaneDistanceFilter(floor))
+                    .addFilter(new BoxFilter(-1, -0.5f, -2, 1, 1.5f, 0))
+                    .addFilter(new VoxelDedupeFilter(0.01f));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        converter.shutdown();
+        if (trackedPlanes != null) {
+            trackedPlanes.shutdown();
+        }
+    }
+
+    /**
+     * Adds the planes of the scene bounded by 4 m squares, and small squares spread over the floor
+     * area, which only cover a few points each.
+     */
+    private static void addTrackedPlanes(SyntheticDepthScene scene, PlaneFilter planes) {
+        FloatBuffer largeSquare = FloatBuffer.wrap(new float[] {
+                -2, -2, 2, -2, 2, 2, -2, 2});
+        for (float[] planeMatrix : scene.getGroundTruthPlaneMatrices()) {
+            planes.addPlane(planeMatrix, 0, largeSquare);
+        }
+        FloatBuffer smallSquare = FloatBuffer.wrap(new float[] {
+                -0.25f, -0.25f, 0.25f, -0.25f, 0.25f, 0.25f, -0.25f, 0.25f});
+        float[] planeMatrix = new float[16];
+        planeMatrix[0] = 1;
+        planeMatrix[5] = 1;
+        planeMatrix[10] = 1;
+        planeMatrix[15] = 1;
+        for (int i = 0; i < NUM_TABLE_PLANES; ++i) {
+            planeMatrix[12] = -0.9f + 0.6f * (i % 4);
+            planeMatrix[13] = 0.4f + 0.05f * (i % 3);
+            planeMatrix[14] = -0.3f - 0.5f * (i / 4);
+            planes.addPlane(planeMatrix, 0, smallSquare);
+        }
+    }
+
+    @Benchmark
+    public int convert(DepthFrameState state) {
+        DepthFrame frame = state.frame;
+        if (ingest == Ingest.BYTE_COPY) {
+            byteCopyFrame.copy(frame);
+            frame = byteCopyFrame;
+        }
+        FloatBuffer points = converter.convert(frame);
+        if (planeRejection == PlaneRejection.BULK) {
+            trackedPlanes.filter(points);
+        }
+        int numFloats = points.remaining();
+        converter.release(points);
+        return numFloats;
+    }
+
+    /**
+     * A frame whose planes are copied from another frame by the loop the app used before reading
+     * the planes in place.
+     */
+    private static class ByteCopyDepthFrame implements DepthFrame {
+        private DepthFrame source;
+        private ByteBuffer depthBuffer;
+        private ByteBuffer confidenceBuffer;
+
+        void copy(DepthFrame source) {
+            this.source = source;
+            depthBuffer = copyBytes(source.getDepthBuffer());
+            confidenceBuffer = copyBytes(source.getConfidenceBuffer());
+        }
+
+        private static ByteBuffer copyBytes(ByteBuffer plane) {
+            ByteBuffer original = plane.duplicate();
+            original.rewind();
+            ByteBuffer copy = ByteBuffer.allocate(original.capacity());
+            copy.order(ByteOrder.LITTLE_ENDIAN);
+            while (original.hasRemaining()) {
+                copy.put(original.get());
+            }
+            copy.rewind();
+            return copy;
+        }
+
+        @Override
+        public int getWidth() {
+            return source.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return source.getHeight();
+        }
+
+        @Override
+        public ByteBuffer getDepthBuffer() {
+            return depthBuffer;
+        }
+
+        @Override
+        public int getDepthRowStride() {
+            return source.getDepthRowStride();
+        }
+
+        @Override
+        public int getDepthPixelStride() {
+            return source.getDepthPixelStride();
+        }
+
+        @Override
+        public ByteBuffer getConfidenceBuffer() {
+            return confidenceBuffer;
+        }
+
+        @Override
+        public int getConfidenceRowStride() {
+            return source.getConfidenceRowStride();
+        }
+
+        @Override
+        public int getConfidencePixelStride() {
+            return source.getConfidencePixelStride();
+        }
+
+        @Override
+        public float getFocalLengthX() {
+            return source.getFocalLengthX();
+        }
+
+        @Override
+        public float getFocalLengthY() {
+            return source.getFocalLengthY();
+        }
+
+        @Override
+        public float getPrincipalPointX() {
+            return source.getPrincipalPointX();
+        }
+
+        @Override
+        public float getPrincipalPointY() {
+            return source.getPrincipalPointY();
+        }
+
+        @Override
+        public void getCameraPoseMatrix(float[] matrix, int offset) {
+            source.getCameraPoseMatrix(matrix, offset);
+        }
+
+        @Override
+        public long getTimestamp() {
+            return source.getTimestamp();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.InMemoryDepthFrame;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A synthetic depth frame at a common device resolution, and the point cloud it converts to.
+ * Shared by the benchmarks of every pipeline stage.
+ *
+ * <p>The frame shows a floor and a wall with a few boxes, seen from above like a phone held at
+ * chest height.
+ */
+@State(Scope.Benchmark)
+public class DepthFrameState {
+    @Param({"160x120", "240x180", "640x480"})
+    public String resolution;
+
+    /** Fraction of the depth pixels that are invalid. */
+    @Param({"0.0", "0.3"})
+    public float invalidRatio;
+
+    /** Fraction of the valid depth pixels whose confidence is too low to be kept. */
+    @Param({"0.0", "0.3"})
+    public float lowConfidenceRatio;
+
+    SyntheticDepthScene scene;
+    InMemoryDepthFrame frame;
+
+    // The converted point cloud. Stages that modify points work on a copy.
+    FloatBuffer points;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = parseResolution(resolution);
+        scene = createScene(/*seed=*/ 42, /*numBoxes=*/ 3);
+        scene.setHoleRatio(invalidRatio);
+        scene.setLowConfidenceRatio(lowConfidenceRatio);
+        frame = scene.render(size[0], size[1]);
+
+        DepthPointConverter converter = new DepthPointConverter();
+        FloatBuffer converted = converter.convert(frame);
+        points = allocatePoints(converted.remaining());
+        points.put(converted);
+        points.flip();
+        converter.release(converted);
+    }
+
+    /** Creates the benchmark scene with {@code numBoxes} boxes on the floor in front of the camera. */
+    static SyntheticDepthScene createScene(long seed, int numBoxes) {
+        SyntheticDepthScene scene = new SyntheticDepthScene(seed);
+        scene.setFloorHeight(0);
+        scene.addWall(0, 0, 1, -1.6f);
+        scene.addRandomBoxes(numBoxes, 0, -0.8f, 0.3f, 0.08f, 0.25f);
+        scene.lookAt(0, 1.0f, 0.2f, 0, 0, -0.8f);
+        return scene;
+    }
+
+    /** Parses a resolution of the form "640x480". */
+    static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /** Copies the converted points into {@code destination}, which is returned ready to read. */
+    FloatBuffer copyPoints(FloatBuffer destination) {
+        destination.clear();
+        destination.put(points.duplicate());
+        destination.flip();
+        return destination;
+    }
+
+    static FloatBuffer allocatePoints(int numFloats) {
+        return ByteBuffer.allocateDirect(numFloats * Float.SIZE / 8)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clustering of a single, large, connected slab of voxels, as seen when a wall or a table top is
+ * not removed by the plane filter. The slab used to overflow the stack of the recursive search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LargeClusterBenchmark {
+    // Matches the cell size of PointClusteringHelper, so that every point fills one voxel.
+    private static final float CELL_SIZE = 0.02f; // Units: meters.
+
+    // Number of voxels along each side of the square slab, and the slab thickness in voxels.
+    @Param({"100", "316"})
+    public int sideLength;
+
+    @Param({"1", "4"})
+    public int thickness;
+
+    @Param({"DENSE", "SPARSE"})
+    public GridType gridType;
+
+    private FloatBuffer points;
+
+    @Setup
+    public void setUp() {
+        final int numPoints = sideLength * sideLength * thickness + 1;
+        points = DepthFrameState.allocatePoints(numPoints * 4);
+
+        // The grid starts at the minimum of the points, so a point at the origin corner keeps the
+        // voxel centers away from the cell boundaries.
+        points.put(0).put(0).put(0).put(1.0f);
+        for (int x = 0; x < sideLength; ++x) {
+            for (int y = 0; y < thickness; ++y) {
+                for (int z = 0; z < sideLength; ++z) {
+                    // Points are placed at the voxel centers to avoid rounding into neighbors.
+                    points.put((x + 0.5f) * CELL_SIZE);
+                    points.put((y + 0.5f) * CELL_SIZE);
+                    points.put((z + 0.5f) * CELL_SIZE);
+                    points.put(1.0f);
+                }
+            }
+        }
+        points.flip();
+
+        // The slab must be found as a single cluster.
+        final List<AABB> clusters =
+                new PointClusteringHelper(points.duplicate(), gridType).findClusters();
+        if (clusters.size() != 1) {
+            throw new IllegalStateException("Expected one cluster, found " + clusters.size());
+        }
+    }
+
+    @Benchmark
+    public List<AABB> buildGridAndFindClusters() {
+        return new PointClusteringHelper(points.duplicate(), gridType).findClusters();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clustering of a point cloud polluted by far outliers, such as flying pixels or reflections.
+ * The outliers stretch the bounding box of the cloud to tens of meters while adding only a few
+ * occupied voxels, so clustering time should barely depend on them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutlierClusteringBenchmark {
+    // Outliers are spread uniformly in a cube of this half size around the camera.
+    private static final float OUTLIER_RANGE = 50.0f; // Units: meters.
+
+    @Param({"160x120", "640x480"})
+    public String resolution;
+
+    @Param({"0", "10", "100"})
+    public int numOutliers;
+
+    // A dense grid falls back to a sparse one when outliers make it too large.
+    @Param({"DENSE", "SPARSE"})
+    public GridType gridType;
+
+    private FloatBuffer points;
+
+    @Setup
+    public void setUp() {
+        int[] size = DepthFrameState.parseResolution(resolution);
+        SyntheticDepthScene scene = DepthFrameState.createScene(/*seed=*/ 42, /*numBoxes=*/ 3);
+
+        DepthPointConverter converter = new DepthPointConverter();
+        FloatBuffer converted = converter.convert(scene.render(size[0], size[1]));
+        points = DepthFrameState.allocatePoints(converted.remaining() + 4 * numOutliers);
+        points.put(converted);
+        converter.release(converted);
+
+        Random random = new Random(7);
+        for (int i = 0; i < numOutliers; ++i) {
+            points.put((2 * random.nextFloat() - 1) * OUTLIER_RANGE);
+            points.put((2 * random.nextFloat() - 1) * OUTLIER_RANGE);
+            points.put((2 * random.nextFloat() - 1) * OUTLIER_RANGE);
+            points.put(1.0f);
+        }
+        points.flip();
+    }
+
+    @Benchmark
+    public List<AABB> buildGridAndFindClusters() {
+        return new PointClusteringHelper(points.duplicate(), gridType).findClusters();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.ParallelClusterLabeler;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of the parallel cluster labeling with the number of threads, on a large dense grid such
+ * as an accumulated map: a few solid boxes in a volume sparsely filled with noise voxels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelClusteringBenchmark {
+    // Matches the cell size of PointClusteringHelper, so that every point fills one voxel.
+    private static final float CELL_SIZE = 0.02f; // Units: meters.
+    private static final int NUM_BOXES = 20;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    // Number of voxels along each side of the cubic grid.
+    @Param({"128", "256"})
+    public int sideLength;
+
+    // Fraction of the voxels filled with noise.
+    @Param({"0.01", "0.1"})
+    public float noiseRatio;
+
+    private FloatBuffer points;
+    private ParallelClusterLabeler labeler;
+    private PointClusteringHelper helper;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(11);
+        boolean[] occupied = new boolean[sideLength * sideLength * sideLength];
+        for (int i = 0; i < occupied.length; ++i) {
+            occupied[i] = random.nextFloat() < noiseRatio;
+        }
+        for (int box = 0; box < NUM_BOXES; ++box) {
+            final int size = sideLength / 16 + random.nextInt(sideLength / 8);
+            final int minX = random.nextInt(sideLength - size);
+            final int minY = random.nextInt(sideLength - size);
+            final int minZ = random.nextInt(sideLength - size);
+            for (int x = minX; x < minX + size; ++x) {
+                for (int y = minY; y < minY + size; ++y) {
+                    for (int z = minZ; z < minZ + size; ++z) {
+                        occupied[(x * sideLength + y) * sideLength + z] = true;
+                    }
+                }
+            }
+        }
+
+        int numPoints = 1;
+        for (boolean cell : occupied) {
+            numPoints += cell ? 1 : 0;
+        }
+        points = DepthFrameState.allocatePoints(4 * numPoints);
+        // The grid starts at the minimum of the points, so a point at the origin corner keeps the
+        // voxel centers away from the cell boundaries.
+        points.put(0).put(0).put(0).put(1.0f);
+        for (int i = 0; i < occupied.length; ++i) {
+            if (occupied[i]) {
+                points.put((i / (sideLength * sideLength) + 0.5f) * CELL_SIZE);
+                points.put((i / sideLength % sideLength + 0.5f) * CELL_SIZE);
+                points.put((i % sideLength + 0.5f) * CELL_SIZE);
+                points.put(1.0f);
+            }
+        }
+        points.flip();
+
+        labeler = new ParallelClusterLabeler(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        labeler.shutdown();
+    }
+
+    // Finding clusters consumes the grid, so a fresh helper is built before every invocation.
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        helper = new PointClusteringHelper(points.duplicate(), GridType.DENSE);
+    }
+
+    /** The single-threaded search, as a baseline.  It does not depend on the number of threads. */
+    @Benchmark
+    public List<AABB> serial() {
+        return helper.findClusters();
+    }
+
+    @Benchmark
+    public List<AABB> parallel() {
+        return helper.findClusters(labeler);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removal of the points lying on planes. The points are restored before every filtering pass,
+ * since filtering compacts them; the copy is a bulk copy and is small next to the filtering. At
+ * 640x480, the depth image is sampled down to about 19k points, so the largest case is 50 planes
+ * x 20k points.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlaneFilterBenchmark {
+    @Param({"1", "10", "50"})
+    public int numPlanes;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    // Whether the planes are bounded by 1 m squares, spread along X, as ARCore planes are.
+    @Param({"false", "true"})
+    public boolean boundedPlanes;
+
+    private PlaneFilter planeFilter;
+    private FloatBuffer points;
+
+    @Setup(Level.Trial)
+    public void setUp(DepthFrameState state) {
+        points = DepthFrameState.allocatePoints(state.points.capacity());
+        planeFilter = new PlaneFilter(threads);
+
+        // Horizontal planes, one of them at the height of the synthetic floor.
+        float[] planeMatrix = new float[16];
+        planeMatrix[0] = 1;
+        planeMatrix[5] = 1;
+        planeMatrix[10] = 1;
+        planeMatrix[15] = 1;
+        FloatBuffer square = FloatBuffer.wrap(new float[] {
+                -0.5f, -0.5f, 0.5f, -0.5f, 0.5f, 0.5f, -0.5f, 0.5f});
+        for (int i = 0; i < numPlanes; ++i) {
+            planeMatrix[12] = -1.0f + 0.2f * (i % 10);
+            planeMatrix[13] = -0.5f - 0.1f * i;
+            planeMatrix[14] = -1.0f;
+            if (boundedPlanes) {
+                planeFilter.addPlane(planeMatrix, 0, square);
+            } else {
+                planeFilter.addPlane(planeMatrix, 0);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        planeFilter.shutdown();
+    }
+
+    @Benchmark
+    public int filterUsingPlanes(DepthFrameState state) {
+        state.copyPoints(points);
+        return planeFilter.filter(points);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.PointTransformer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unprojection and transformation of 20k depth samples, with the fused {@link PointTransformer}
+ * and with a full 4x4 matrix-vector product per point as done by android.opengl.Matrix.multiplyMV.
+ * The JNI cost of multiplyMV on a device comes on top of the baseline measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PointTransformerBenchmark {
+    private static final int NUM_POINTS = 20000;
+
+    private final float[] depths = new float[NUM_POINTS];
+    private final float[] raysX = new float[NUM_POINTS];
+    private final float[] raysY = new float[NUM_POINTS];
+    private final float[] modelMatrix = new float[16];
+    private final PointTransformer transformer = new PointTransformer();
+    private final FloatBuffer points = DepthFrameState.allocatePoints(NUM_POINTS * 4);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_POINTS; ++i) {
+            depths[i] = 0.3f + random.nextFloat();
+            raysX[i] = random.nextFloat() - 0.5f;
+            raysY[i] = random.nextFloat() - 0.5f;
+        }
+
+        // A rotation of 30 degrees about Y with a translation.
+        float c = (float) Math.cos(Math.PI / 6);
+        float s = (float) Math.sin(Math.PI / 6);
+        float[] matrix = {c, 0, -s, 0, 0, 1, 0, 0, s, 0, c, 0, 0.1f, 1.2f, -0.3f, 1};
+        System.arraycopy(matrix, 0, modelMatrix, 0, 16);
+        transformer.setMatrix(modelMatrix, 0);
+    }
+
+    @Benchmark
+    public FloatBuffer fusedTransformer() {
+        points.clear();
+        for (int i = 0; i < NUM_POINTS; ++i) {
+            transformer.putUnprojected(points, depths[i], raysX[i], raysY[i], 1.0f);
+        }
+        return points;
+    }
+
+    @Benchmark
+    public FloatBuffer matrixVectorProduct() {
+        float[] pointCamera = new float[4];
+        float[] pointWorld = new float[4];
+        points.clear();
+        for (int i = 0; i < NUM_POINTS; ++i) {
+            pointCamera[0] = depths[i] * raysX[i];
+            pointCamera[1] = depths[i] * raysY[i];
+            pointCamera[2] = -depths[i];
+            pointCamera[3] = 1;
+            multiplyMV(pointWorld, modelMatrix, pointCamera);
+            points.put(pointWorld[0]);
+            points.put(pointWorld[1]);
+            points.put(pointWorld[2]);
+            points.put(1.0f);
+        }
+        return points;
+    }
+
+    /** Same arithmetic as android.opengl.Matrix.multiplyMV for a column-major matrix. */
+    private static void multiplyMV(float[] result, float[] lhs, float[] rhs) {
+        for (int row = 0; row < 4; ++row) {
+            result[row] = lhs[row] * rhs[0] + lhs[4 + row] * rhs[1]
+                    + lhs[8 + row] * rhs[2] + lhs[12 + row] * rhs[3];
+        }
+    }
+}
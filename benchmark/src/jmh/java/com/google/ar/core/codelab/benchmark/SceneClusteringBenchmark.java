@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.InMemoryDepthFrame;
+import com.google.ar.core.codelab.common.depth.PlaneDistanceFilter;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole per-frame pipeline on synthetic scenes: depth conversion, removal of the ground-truth
+ * planes and clustering. Besides the time per frame, the detection accuracy of the boxes is
+ * reported through auxiliary counters; the recall is matchedBoxes / groundTruthBoxes. Clustering
+ * uses either the fixed voxel size or voxels growing with the distance from the camera, whose
+ * counts are compared through occupiedVoxels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SceneClusteringBenchmark {
+    // Minimum overlap for a detected box to count as a detection of a ground-truth box.
+    private static final float MIN_INTERSECTION_OVER_UNION = 0.25f;
+
+    @Param({"160x120", "640x480"})
+    public String resolution;
+
+    @Param({"1", "4", "8"})
+    public int numBoxes;
+
+    @Param({"false", "true"})
+    public boolean distanceAwareVoxels;
+
+    private SyntheticDepthScene scene;
+    private InMemoryDepthFrame frame;
+    private final DepthPointConverter converter = new DepthPointConverter();
+    private final PlaneFilter planeFilter = new PlaneFilter();
+    private final float[] cameraPoseMatrix = new float[16];
+
+    /** Accuracy counters, summed over the invocations of an iteration. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Detections {
+        public long groundTruthBoxes;
+        public long matchedBoxes;
+        public long detectedBoxes;
+        public long occupiedVoxels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            groundTruthBoxes = 0;
+            matchedBoxes = 0;
+            detectedBoxes = 0;
+            occupiedVoxels = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = DepthFrameState.parseResolution(resolution);
+        scene = DepthFrameState.createScene(/*seed=*/ 7, numBoxes);
+        frame = scene.render(size[0], size[1]);
+        frame.getCameraPoseMatrix(cameraPoseMatrix, 0);
+        for (float[] planeMatrix : scene.getGroundTruthPlaneMatrices()) {
+            planeFilter.addPlane(planeMatrix, 0);
+        }
+        // Like the app, removes the points on planes during the conversion.
+        converter.getFilterPipeline().addFilter(new PlaneDistanceFilter(planeFilter));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        converter.shutdown();
+    }
+
+    @Benchmark
+    public List<AABB> detectBoxes(Detections detections) {
+        FloatBuffer points = converter.convert(frame);
+        PointClusteringHelper helper = distanceAwareVoxels
+                ? new PointClusteringHelper(points, GridType.SPARSE, cameraPoseMatrix, 0)
+                : new PointClusteringHelper(points);
+        detections.occupiedVoxels += helper.getOccupiedVoxelCount();
+        List<AABB> clusters = helper.findClusters();
+        converter.release(points);
+
+        List<AABB> truth = scene.getGroundTruthBoxes();
+        detections.groundTruthBoxes += truth.size();
+        detections.detectedBoxes += clusters.size();
+        detections.matchedBoxes +=
+                ClusterAccuracy.countMatches(truth, clusters, MIN_INTERSECTION_OVER_UNION);
+        return clusters;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.benchmark;
+
+import com.google.ar.core.codelab.common.depth.InMemoryDepthFrame;
+import com.google.ar.core.codelab.common.helpers.AABB;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Renders reproducible raw depth frames of a simple scene: a horizontal floor, optional walls and
+ * axis-aligned boxes. Every pixel is ray-cast through the same pinhole model used to unproject
+ * depth, then degraded like raw depth: depth-dependent noise, holes, flying pixels at depth edges
+ * and lower confidence on far or grazing surfaces. The boxes and planes of the scene are available
+ * as ground truth.
+ */
+public class SyntheticDepthScene {
+    // The highest confidence value that the depth conversion rejects (0.3 * 255).
+    private static final int MAX_REJECTED_CONFIDENCE = 76;
+
+    // A jump in depth larger than this fraction of the depth is treated as an object edge.
+    private static final float EDGE_DEPTH_RATIO = 0.1f;
+
+    private final long seed;
+
+    // Scene.
+    private float floorHeight = 0.0f;
+    private final List<float[]> walls = new ArrayList<>(); // Normal (x, y, z) and offset.
+    private final List<AABB> boxes = new ArrayList<>();
+
+    // Camera.
+    private final float[] cameraPose = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+    private float horizontalFieldOfViewDegrees = 65.0f;
+
+    // Sensor model.
+    private float maxRange = 5.0f; // Units: meters.
+    private float noiseAtOneMeter = 0.004f; // Standard deviation, grows with the squared depth.
+    private float holeRatio = 0.02f;
+    private float flyingPixelRatio = 0.5f;
+    private float lowConfidenceRatio = 0.0f;
+
+    public SyntheticDepthScene(long seed) {
+        this.seed = seed;
+    }
+
+    /** Sets the height of the horizontal floor plane. */
+    public void setFloorHeight(float floorHeight) {
+        this.floorHeight = floorHeight;
+    }
+
+    /** Adds a wall, i.e. the plane of points p where dot(normal, p) == offset. */
+    public void addWall(float normalX, float normalY, float normalZ, float offset) {
+        float length = (float) Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+        walls.add(new float[] {normalX / length, normalY / length, normalZ / length, offset / length});
+    }
+
+    /** Adds a box resting on the floor, centered at (centerX, centerZ). */
+    public void addBox(float centerX, float centerZ, float sizeX, float sizeY, float sizeZ) {
+        AABB box = new AABB();
+        box.update(centerX - sizeX / 2, floorHeight, centerZ - sizeZ / 2);
+        box.update(centerX + sizeX / 2, floorHeight + sizeY, centerZ + sizeZ / 2);
+        boxes.add(box);
+    }
+
+    /**
+     * Adds boxes of random sizes between {@code minSize} and {@code maxSize} on the floor, around
+     * (centerX, centerZ) within {@code radius}.
+     */
+    public void addRandomBoxes(
+            int numBoxes, float centerX, float centerZ, float radius, float minSize, float maxSize) {
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        for (int i = 0; i < numBoxes; ++i) {
+            float sizeX = minSize + (maxSize - minSize) * random.nextFloat();
+            float sizeY = minSize + (maxSize - minSize) * random.nextFloat();
+            float sizeZ = minSize + (maxSize - minSize) * random.nextFloat();
+            float x = centerX + radius * (2 * random.nextFloat() - 1);
+            float z = centerZ + radius * (2 * random.nextFloat() - 1);
+            addBox(x, z, sizeX, sizeY, sizeZ);
+        }
+    }
+
+    /** Sets the column-major camera-to-world matrix. The camera looks down its -Z axis. */
+    public void setCameraPose(float[] matrix) {
+        System.arraycopy(matrix, 0, cameraPose, 0, 16);
+    }
+
+    /** Places the camera at {@code eye}, looking at {@code target}, with +Y up. */
+    public void lookAt(float eyeX, float eyeY, float eyeZ,
+                       float targetX, float targetY, float targetZ) {
+        // The camera Z axis points away from the target.
+        float[] axisZ = normalize(eyeX - targetX, eyeY - targetY, eyeZ - targetZ);
+        float[] axisX = normalize(cross(new float[] {0, 1, 0}, axisZ));
+        float[] axisY = cross(axisZ, axisX);
+        float[] matrix = {
+                axisX[0], axisX[1], axisX[2], 0,
+                axisY[0], axisY[1], axisY[2], 0,
+                axisZ[0], axisZ[1], axisZ[2], 0,
+                eyeX, eyeY, eyeZ, 1};
+        setCameraPose(matrix);
+    }
+
+    public void setHorizontalFieldOfView(float degrees) {
+        horizontalFieldOfViewDegrees = degrees;
+    }
+
+    /** Sets the distance beyond which the sensor returns no depth. */
+    public void setMaxRange(float maxRange) {
+        this.maxRange = maxRange;
+    }
+
+    /** Sets the standard deviation of the depth noise at one meter. */
+    public void setNoiseAtOneMeter(float noiseAtOneMeter) {
+        this.noiseAtOneMeter = noiseAtOneMeter;
+    }
+
+    /** Sets the fraction of valid pixels that randomly get no depth. */
+    public void setHoleRatio(float holeRatio) {
+        this.holeRatio = holeRatio;
+    }
+
+    /** Sets the probability that a pixel on a depth edge gets a depth between both surfaces. */
+    public void setFlyingPixelRatio(float flyingPixelRatio) {
+        this.flyingPixelRatio = flyingPixelRatio;
+    }
+
+    /** Sets the fraction of valid pixels whose confidence is too low to be kept. */
+    public void setLowConfidenceRatio(float lowConfidenceRatio) {
+        this.lowConfidenceRatio = lowConfidenceRatio;
+    }
+
+    /** The boxes of the scene, in world coordinates. */
+    public List<AABB> getGroundTruthBoxes() {
+        return boxes;
+    }
+
+    /**
+     * The floor and the walls as column-major plane-to-world matrices, whose Y axis is the plane
+     * normal, as expected by PlaneFilter.
+     */
+    public List<float[]> getGroundTruthPlaneMatrices() {
+        List<float[]> planes = new ArrayList<>();
+        planes.add(planeMatrix(new float[] {0, 1, 0}, floorHeight));
+        for (float[] wall : walls) {
+            planes.add(planeMatrix(wall, wall[3]));
+        }
+        return planes;
+    }
+
+    /** Renders the depth and confidence images seen by the camera. */
+    public InMemoryDepthFrame render(int width, int height) {
+        final float fx = (float) (width / 2.0 / Math.tan(Math.toRadians(horizontalFieldOfViewDegrees) / 2));
+        final float fy = fx;
+        final float cx = width / 2.0f;
+        final float cy = height / 2.0f;
+
+        // Ray-casts the clean depth and the cosine of the incidence angle of every pixel.
+        float[] depths = new float[width * height];
+        float[] incidences = new float[width * height];
+        float[] hit = new float[2];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                // Same camera ray as the depth unprojection, scaled so that its Z is -1.
+                float rayX = (x - cx) / fx;
+                float rayY = (cy - y) / fy;
+                float directionX = cameraPose[0] * rayX + cameraPose[4] * rayY - cameraPose[8];
+                float directionY = cameraPose[1] * rayX + cameraPose[5] * rayY - cameraPose[9];
+                float directionZ = cameraPose[2] * rayX + cameraPose[6] * rayY - cameraPose[10];
+                castRay(cameraPose[12], cameraPose[13], cameraPose[14],
+                        directionX, directionY, directionZ, hit);
+                depths[y * width + x] = hit[0];
+                incidences[y * width + x] = hit[1];
+            }
+        }
+
+        InMemoryDepthFrame frame = new InMemoryDepthFrame(width, height);
+        frame.setIntrinsics(fx, fy, cx, cy);
+        frame.setCameraPoseMatrix(cameraPose, 0);
+
+        Random random = new Random(seed);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                float depth = depths[y * width + x];
+                float incidence = incidences[y * width + x];
+                if (depth <= 0 || depth > maxRange) {
+                    continue;  // No return, the pixel stays invalid.
+                }
+
+                // Grazing surfaces return less often.
+                float grazing = 1 - incidence;
+                if (random.nextFloat() < holeRatio + 0.5f * grazing * grazing * grazing * grazing) {
+                    continue;
+                }
+
+                // Pixels straddling a depth edge mix both surfaces.
+                float neighborDepth = edgeNeighborDepth(depths, width, height, x, y);
+                boolean flying = neighborDepth > 0 && random.nextFloat() < flyingPixelRatio;
+                if (flying) {
+                    depth += (neighborDepth - depth) * random.nextFloat();
+                }
+
+                depth += noiseAtOneMeter * depth * depth * (float) random.nextGaussian();
+                frame.setDepth(x, y, Math.max(1, Math.min(65535, Math.round(depth * 1000))));
+
+                int confidence;
+                if (random.nextFloat() < lowConfidenceRatio) {
+                    confidence = random.nextInt(MAX_REJECTED_CONFIDENCE + 1);
+                } else if (flying) {
+                    confidence = random.nextInt(2 * MAX_REJECTED_CONFIDENCE);
+                } else {
+                    float quality = (float) Math.sqrt(incidence) * Math.max(0, 1 - depth / maxRange);
+                    confidence = MAX_REJECTED_CONFIDENCE + 1 + Math.round(
+                            (255 - MAX_REJECTED_CONFIDENCE - 1) * quality * (0.8f + 0.2f * random.nextFloat()));
+                }
+                frame.setConfidence(x, y, Math.min(255, confidence));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Finds the nearest surface along the ray. Writes its depth, i.e. the ray parameter since the
+     * ray has a Z of -1 in camera coordinates, and the cosine of the incidence angle into
+     * {@code hit}. The depth is zero if nothing is hit.
+     */
+    private void castRay(float originX, float originY, float originZ,
+                         float directionX, float directionY, float directionZ, float[] hit) {
+        final float directionLength = (float) Math.sqrt(
+                directionX * directionX + directionY * directionY + directionZ * directionZ);
+        float nearest = Float.MAX_VALUE;
+        float nearestNormalDot = 0;
+
+        // Floor.
+        if (directionY != 0) {
+            float t = (floorHeight - originY) / directionY;
+            if (t > 0 && t < nearest) {
+                nearest = t;
+                nearestNormalDot = directionY;
+            }
+        }
+
+        // Walls.
+        for (float[] wall : walls) {
+            float normalDot = wall[0] * directionX + wall[1] * directionY + wall[2] * directionZ;
+            if (normalDot == 0) {
+                continue;
+            }
+            float t = (wall[3] - (wall[0] * originX + wall[1] * originY + wall[2] * originZ))
+                    / normalDot;
+            if (t > 0 && t < nearest) {
+                nearest = t;
+                nearestNormalDot = normalDot;
+            }
+        }
+
+        // Boxes, with the slab method. The entry face gives the normal.
+        for (AABB box : boxes) {
+            float tMin = 0;
+            float tMax = Float.MAX_VALUE;
+            float entryNormalDot = 0;
+            float[] origins = {originX, originY, originZ};
+            float[] directions = {directionX, directionY, directionZ};
+            float[] mins = {box.minX, box.minY, box.minZ};
+            float[] maxs = {box.maxX, box.maxY, box.maxZ};
+            boolean missed = false;
+            for (int axis = 0; axis < 3 && !missed; ++axis) {
+                if (directions[axis] == 0) {
+                    missed = origins[axis] < mins[axis] || origins[axis] > maxs[axis];
+                    continue;
+                }
+                float t0 = (mins[axis] - origins[axis]) / directions[axis];
+                float t1 = (maxs[axis] - origins[axis]) / directions[axis];
+                float near = Math.min(t0, t1);
+                float far = Math.max(t0, t1);
+                if (near > tMin) {
+                    tMin = near;
+                    entryNormalDot = directions[axis];
+                }
+                tMax = Math.min(tMax, far);
+                missed = tMin > tMax;
+            }
+            if (!missed && tMin > 0 && tMin < nearest) {
+                nearest = tMin;
+                nearestNormalDot = entryNormalDot;
+            }
+        }
+
+        if (nearest == Float.MAX_VALUE) {
+            hit[0] = 0;
+            hit[1] = 0;
+        } else {
+            hit[0] = nearest;
+            hit[1] = Math.abs(nearestNormalDot) / directionLength;
+        }
+    }
+
+    /** Returns the depth of a 4-neighbor across a depth edge, or 0 if there is no edge. */
+    private static float edgeNeighborDepth(float[] depths, int width, int height, int x, int y) {
+        float depth = depths[y * width + x];
+        int[][] offsets = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        for (int[] offset : offsets) {
+            int neighborX = x + offset[0];
+            int neighborY = y + offset[1];
+            if (neighborX < 0 || neighborX >= width || neighborY < 0 || neighborY >= height) {
+                continue;
+            }
+            float neighborDepth = depths[neighborY * width + neighborX];
+            if (neighborDepth > 0 && Math.abs(neighborDepth - depth) > EDGE_DEPTH_RATIO * depth) {
+                return neighborDepth;
+            }
+        }
+        return 0;
+    }
+
+    /** Builds a plane-to-world matrix whose Y axis is {@code normal}. */
+    private static float[] planeMatrix(float[] normal, float offset) {
+        float[] axisY = normalize(normal[0], normal[1], normal[2]);
+        float[] reference = Math.abs(axisY[0]) < 0.9f ? new float[] {1, 0, 0} : new float[] {0, 0, 1};
+        float[] axisZ = normalize(cross(reference, axisY));
+        float[] axisX = cross(axisY, axisZ);
+        return new float[] {
+                axisX[0], axisX[1], axisX[2], 0,
+                axisY[0], axisY[1], axisY[2], 0,
+                axisZ[0], axisZ[1], axisZ[2], 0,
+                axisY[0] * offset, axisY[1] * offset, axisY[2] * offset, 1};
+    }
+
+    private static float[] cross(float[] a, float[] b) {
+        return new float[] {
+                a[1] * b[2] - a[2] * b[1],
+                a[2] * b[0] - a[0] * b[2],
+                a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static float[] normalize(float[] v) {
+        return normalize(v[0], v[1], v[2]);
+    }
+
+    private static float[] normalize(float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        return new float[] {x / length, y / length, z / length};
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.ar.core.codelab.benchmark.SyntheticDepthScene;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the parallel conversion matches the conversion on the calling thread, and that
+ * steady-state conversions do not allocate.
+ */
+public class DepthPointConverterTest {
+    private static final int[] WORKER_COUNTS = {2, 3, 4, 7};
+    private static final int[][] RESOLUTIONS = {{160, 120}, {240, 180}, {640, 480}};
+    private static final int NUM_SCENES = 4;
+
+    // Each parallel converter converts every frame several times, so that recycled buffers, which
+    // still hold the points of the previous conversion, are covered.
+    private static final int NUM_REPEATS = 3;
+
+    private static final int NUM_WARMUP_FRAMES = 10;
+    private static final int NUM_STEADY_FRAMES = 200;
+
+    @Test
+    public void parallelConversionIsBitIdentical() {
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            for (int[] resolution : RESOLUTIONS) {
+                assertParallelMatchesSerial(createScene(seed).render(resolution[0], resolution[1]),
+                        /*withPointFilter=*/ false);
+            }
+        }
+    }
+
+    @Test
+    public void parallelConversionWithPointFilterIsBitIdentical() {
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            assertParallelMatchesSerial(createScene(seed).render(640, 480),
+                    /*withPointFilter=*/ true);
+        }
+    }
+
+    @Test
+    public void steadyStateConversionsDoNotAllocateBuffers() {
+        final DepthFrame[] frames = createFrames(640, 480);
+        for (int workerCount : new int[] {1, 4}) {
+            final DepthPointConverter converter = new DepthPointConverter(workerCount);
+            try {
+                convertFrames(converter, frames, NUM_WARMUP_FRAMES);
+                final long allocationCount = converter.getPointBufferPool().getAllocationCount();
+                assertEquals(1, allocationCount);
+                convertFrames(converter, frames, NUM_STEADY_FRAMES);
+                assertEquals(allocationCount, converter.getPointBufferPool().getAllocationCount());
+            } finally {
+                converter.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateConversionsAllocateNothing() {
+        assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported()
+                && threads.isThreadAllocatedMemoryEnabled());
+
+        final DepthFrame[] frames = createFrames(640, 480);
+        for (int workerCount : new int[] {1, 4}) {
+            final DepthPointConverter converter = new DepthPointConverter(workerCount);
+            try {
+                convertFrames(converter, frames, NUM_WARMUP_FRAMES);
+                // Sums over the calling thread and every worker thread. Workers of converters shut
+                // down by earlier tests only count while they are alive, when they are idle.
+                final long[] threadIds = getConversionThreadIds();
+                final long[] allocatedBytes = new long[threadIds.length];
+                for (int i = threadIds.length - 1; i >= 0; --i) {
+                    allocatedBytes[i] = threads.getThreadAllocatedBytes(threadIds[i]);
+                }
+                convertFrames(converter, frames, NUM_STEADY_FRAMES);
+                long totalAllocatedBytes = 0;
+                for (int i = 0; i < threadIds.length; ++i) {
+                    final long bytes = threads.getThreadAllocatedBytes(threadIds[i]);
+                    if (bytes >= 0 && allocatedBytes[i] >= 0) {
+                        totalAllocatedBytes += bytes - allocatedBytes[i];
+                    }
+                }
+                assertEquals(workerCount + " workers", 0, totalAllocatedBytes);
+            } finally {
+                converter.shutdown();
+            }
+        }
+    }
+
+    /** Returns the ID of the calling thread, followed by those of the converter workers. */
+    private static long[] getConversionThreadIds() {
+        final List<Long> ids = new ArrayList<>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("DepthPointConverter worker")) {
+                ids.add(thread.getId());
+            }
+        }
+        final long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private static DepthFrame[] createFrames(int width, int height) {
+        final DepthFrame[] frames = new DepthFrame[NUM_SCENES];
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            frames[seed] = createScene(seed).render(width, height);
+        }
+        return frames;
+    }
+
+    /** Converts and releases {@code numFrames} frames, cycling through {@code frames}. */
+    private static void convertFrames(
+            DepthPointConverter converter, DepthFrame[] frames, int numFrames) {
+        for (int i = 0; i < numFrames; ++i) {
+            converter.release(converter.convert(frames[i % frames.length]));
+        }
+    }
+
+    private static void assertParallelMatchesSerial(DepthFrame frame, boolean withPointFilter) {
+        final DepthPointConverter serial = createConverter(1, withPointFilter);
+        final FloatBuffer expected = serial.convert(frame);
+        final int[] expectedBits = toBits(expected);
+        assertTrue(expectedBits.length > 0);
+        final long[] expectedRejected = getRejectedCounts(serial.getFilterPipeline());
+
+        for (int workerCount : WORKER_COUNTS) {
+            final DepthPointConverter parallel = createConverter(workerCount, withPointFilter);
+            try {
+                for (int repeat = 0; repeat < NUM_REPEATS; ++repeat) {
+                    final FloatBuffer points = parallel.convert(frame);
+                    final String message = workerCount + " workers, repeat " + repeat;
+                    assertEquals(message, 0, points.position());
+                    assertArrayEquals(message, expectedBits, toBits(points));
+                    for (int i = 0; i < expectedRejected.length; ++i) {
+                        assertEquals(message, expectedRejected[i],
+                                parallel.getFilterPipeline().getRejectedCount(i));
+                    }
+                    assertEquals(message, serial.getFilterPipeline().getAcceptedCount(),
+                            parallel.getFilterPipeline().getAcceptedCount());
+                    parallel.release(points);
+                }
+            } finally {
+                parallel.shutdown();
+            }
+        }
+    }
+
+    private static DepthPointConverter createConverter(int workerCount, boolean withPointFilter) {
+        final DepthPointConverter converter = new DepthPointConverter(workerCount);
+        if (withPointFilter) {
+            // Keeps the points above the floor, which rejects points in every stripe.
+            converter.getFilterPipeline().addFilter(new BoxFilter(-10, 0.05f, -10, 10, 10, 10));
+        }
+        return converter;
+    }
+
+    private static SyntheticDepthScene createScene(long seed) {
+        final SyntheticDepthScene scene = new SyntheticDepthScene(seed);
+        scene.setFloorHeight(0);
+        scene.addWall(0, 0, 1, -1.6f);
+        scene.addRandomBoxes(3, 0, -0.8f, 0.3f, 0.08f, 0.25f);
+        scene.lookAt(0, 1.0f, 0.2f, 0, 0, -0.8f);
+        scene.setHoleRatio(0.1f);
+        scene.setLowConfidenceRatio(0.2f);
+        return scene;
+    }
+
+    private static long[] getRejectedCounts(PointFilterPipeline pipeline) {
+        final long[] counts = new long[pipeline.getNumFilters()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = pipeline.getRejectedCount(i);
+        }
+        return counts;
+    }
+
+    /** Returns the bits of the points between the position and the limit of the buffer. */
+    private static int[] toBits(FloatBuffer points) {
+        final int[] bits = new int[points.remaining()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = Float.floatToRawIntBits(points.get(points.position() + i));
+        }
+        return bits;
+    }
+}
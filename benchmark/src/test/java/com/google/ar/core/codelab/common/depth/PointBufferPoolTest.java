@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+public class PointBufferPoolTest {
+    @Test
+    public void releasedBufferIsReused() {
+        final PointBufferPool pool = new PointBufferPool();
+        final FloatBuffer buffer = pool.acquire(100);
+        assertEquals(1, pool.getAllocationCount());
+        pool.release(buffer);
+
+        for (int frame = 0; frame < 100; ++frame) {
+            final FloatBuffer recycled = pool.acquire(100);
+            assertSame(buffer, recycled);
+            pool.release(recycled);
+        }
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    @Test
+    public void acquiredBufferIsCleared() {
+        final PointBufferPool pool = new PointBufferPool();
+        final FloatBuffer buffer = pool.acquire(100);
+        buffer.put(1.0f).flip();
+        pool.release(buffer);
+
+        final FloatBuffer recycled = pool.acquire(10);
+        assertSame(buffer, recycled);
+        assertEquals(0, recycled.position());
+        assertEquals(recycled.capacity(), recycled.limit());
+    }
+
+    @Test
+    public void smallBufferIsReplacedByLargerOne() {
+        final PointBufferPool pool = new PointBufferPool();
+        final FloatBuffer small = pool.acquire(10);
+        pool.release(small);
+        final FloatBuffer large = pool.acquire(100);
+        assertNotSame(small, large);
+        assertTrue(large.capacity() >= 100 * DepthPointConverter.FLOATS_PER_POINT);
+        assertEquals(2, pool.getAllocationCount());
+
+        // The pool converges to the largest size, then stops allocating.
+        pool.release(large);
+        pool.release(pool.acquire(10));
+        pool.release(pool.acquire(100));
+        assertEquals(2, pool.getAllocationCount());
+    }
+
+    @Test
+    public void buffersAreDirectInNativeOrder() {
+        final FloatBuffer buffer = new PointBufferPool().acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that the tracker matches clusters as comparing every cluster with every track would, that
+ * tracks are confirmed and removed after the configured numbers of hits and misses, and that the
+ * ids of tracks follow their objects.
+ */
+public class ClusterTrackerTest {
+    private static final int NUM_FRAMES = 2000;
+    private static final int NUM_OBJECTS = 80;
+    private static final float ROOM_SIZE = 6.0f; // Units: meters.
+    private static final float MISS_PROBABILITY = 0.1f;
+    private static final float RESPAWN_PROBABILITY = 0.005f;
+    private static final int NUM_NOISE_CLUSTERS = 3;
+
+    // A few objects are walls and tables, large enough to span many cells of the tracker's grid.
+    private static final int NUM_LARGE_OBJECTS = 4;
+
+    @Test
+    public void matchesAllPairsTracker() {
+        final Random random = new Random(19);
+        final float[] centers = new float[3 * NUM_OBJECTS];
+        final float[] halfSizes = new float[3 * NUM_OBJECTS];
+        for (int object = 0; object < NUM_OBJECTS; ++object) {
+            spawn(random, object, centers, halfSizes);
+        }
+
+        final ClusterTracker tracker = new ClusterTracker();
+        final AllPairsTracker expected = new AllPairsTracker();
+        final AABB bounds = new AABB();
+        for (int frame = 0; frame < NUM_FRAMES; ++frame) {
+            final List<AABB> clusters = new ArrayList<>();
+            for (int object = 0; object < NUM_OBJECTS; ++object) {
+                if (random.nextFloat() < RESPAWN_PROBABILITY) {
+                    spawn(random, object, centers, halfSizes);
+                }
+                for (int i = 3 * object; i < 3 * object + 3; ++i) {
+                    centers[i] += 0.01f * (float) random.nextGaussian();
+                }
+                if (random.nextFloat() >= MISS_PROBABILITY) {
+                    clusters.add(createBox(centers, halfSizes, object));
+                }
+            }
+            // Noise clusters show up in a single frame.
+            for (int i = 0; i < NUM_NOISE_CLUSTERS; ++i) {
+                clusters.add(createBox(randomCoordinate(random), randomCoordinate(random),
+                        randomCoordinate(random), 0.05f, 0.05f, 0.05f));
+            }
+            Collections.shuffle(clusters, random);
+
+            tracker.update(clusters);
+            expected.update(clusters);
+
+            final String message = "frame " + frame;
+            for (int cluster = 0; cluster < clusters.size(); ++cluster) {
+                assertEquals(message + ", cluster " + cluster,
+                        expected.clusterTrackIds[cluster], tracker.getClusterTrackId(cluster));
+            }
+            assertEquals(message, expected.tracks.size(), tracker.getNumTracks());
+            for (int index = 0; index < tracker.getNumTracks(); ++index) {
+                final Track track = expected.find(tracker.getTrackId(index));
+                final String trackMessage = message + ", track " + track.id;
+                assertEquals(trackMessage, track.age, tracker.getTrackAge(index));
+                assertEquals(trackMessage, track.misses, tracker.getTrackMisses(index));
+                assertEquals(trackMessage, track.confirmed, tracker.isTrackConfirmed(index));
+                tracker.getTrackBounds(index, bounds);
+                assertEquals(trackMessage, track.bounds[0], bounds.minX, 0);
+                assertEquals(trackMessage, track.bounds[1], bounds.minY, 0);
+                assertEquals(trackMessage, track.bounds[2], bounds.minZ, 0);
+                assertEquals(trackMessage, track.bounds[3], bounds.maxX, 0);
+                assertEquals(trackMessage, track.bounds[4], bounds.maxY, 0);
+                assertEquals(trackMessage, track.bounds[5], bounds.maxZ, 0);
+            }
+        }
+    }
+
+    @Test
+    public void hysteresisFollowsMinHitsAndMaxMisses() {
+        final List<AABB> present = Collections.singletonList(createBox(0, 0, -1, 0.1f, 0.1f, 0.1f));
+        final List<AABB> absent = Collections.emptyList();
+        for (int minHits = 1; minHits <= 4; ++minHits) {
+            for (int maxMisses = 0; maxMisses <= 3; ++maxMisses) {
+                final String message = "minHits " + minHits + ", maxMisses " + maxMisses;
+                final ClusterTracker tracker = new ClusterTracker();
+                tracker.setMinHits(minHits);
+                tracker.setMaxMisses(maxMisses);
+
+                // A track missed before it is confirmed is removed at once.
+                if (minHits > 1) {
+                    for (int hit = 1; hit < minHits; ++hit) {
+                        tracker.update(present);
+                        assertFalse(message, tracker.isTrackConfirmed(0));
+                    }
+                    tracker.update(absent);
+                    assertEquals(message, 0, tracker.getNumTracks());
+                }
+
+                // A track is confirmed by its minHits-th hit.
+                for (int hit = 1; hit <= minHits; ++hit) {
+                    tracker.update(present);
+                    assertEquals(message, 1, tracker.getNumTracks());
+                    assertEquals(message, hit >= minHits, tracker.isTrackConfirmed(0));
+                }
+                final int id = tracker.getTrackId(0);
+
+                // A confirmed track survives maxMisses misses, and keeps its id when found again.
+                for (int miss = 1; miss <= maxMisses; ++miss) {
+                    tracker.update(absent);
+                    assertEquals(message, 1, tracker.getNumTracks());
+                    assertEquals(message, miss, tracker.getTrackMisses(0));
+                    assertTrue(message, tracker.isTrackConfirmed(0));
+                }
+                tracker.update(present);
+                assertEquals(message, id, tracker.getClusterTrackId(0));
+                assertEquals(message, 0, tracker.getTrackMisses(0));
+
+                // One more miss removes it, and the next cluster starts a track with a new id.
+                for (int miss = 1; miss <= maxMisses + 1; ++miss) {
+                    tracker.update(absent);
+                }
+                assertEquals(message, 0, tracker.getNumTracks());
+                tracker.update(present);
+                assertNotEquals(message, id, tracker.getClusterTrackId(0));
+                assertEquals(message, minHits <= 1, tracker.isTrackConfirmed(0));
+            }
+        }
+    }
+
+    @Test
+    public void idsFollowMovingObjects() {
+        // Objects move in depth along a grid of lanes, so that they cross many cells of the
+        // tracker's grid without coming close to each other.
+        final int numObjects = 25;
+        final int numFrames = 500;
+        final float maxSpeed = 0.01f; // Units: meters per frame.
+        final Random random = new Random(7);
+        final float[] speeds = new float[numObjects];
+        for (int object = 0; object < numObjects; ++object) {
+            speeds[object] = maxSpeed * (2 * random.nextFloat() - 1);
+        }
+
+        final ClusterTracker tracker = new ClusterTracker();
+        final int[] ids = new int[numObjects];
+        final List<AABB> clusters = new ArrayList<>();
+        final List<Integer> order = new ArrayList<>();
+        for (int object = 0; object < numObjects; ++object) {
+            order.add(object);
+        }
+        for (int frame = 0; frame < numFrames; ++frame) {
+            clusters.clear();
+            Collections.shuffle(order, random);
+            for (int object : order) {
+                clusters.add(createBox((object % 5) - 2, (object / 5) - 2,
+                        -3 + frame * speeds[object], 0.1f, 0.15f, 0.2f));
+            }
+            tracker.update(clusters);
+            assertEquals("frame " + frame, numObjects, tracker.getNumTracks());
+            for (int cluster = 0; cluster < numObjects; ++cluster) {
+                final int object = order.get(cluster);
+                final int id = tracker.getClusterTrackId(cluster);
+                if (frame == 0) {
+                    ids[object] = id;
+                } else {
+                    assertEquals("frame " + frame + ", object " + object, ids[object], id);
+                }
+            }
+        }
+        final Set<Integer> distinctIds = new HashSet<>();
+        for (int id : ids) {
+            distinctIds.add(id);
+        }
+        assertEquals(numObjects, distinctIds.size());
+
+        // Ids are not reused after the tracks are cleared.
+        tracker.clear();
+        tracker.update(clusters);
+        for (int cluster = 0; cluster < numObjects; ++cluster) {
+            assertFalse(distinctIds.contains(tracker.getClusterTrackId(cluster)));
+        }
+    }
+
+    /** Moves an object to a random place, with a random size. */
+    private static void spawn(Random random, int object, float[] centers, float[] halfSizes) {
+        for (int i = 3 * object; i < 3 * object + 3; ++i) {
+            centers[i] = randomCoordinate(random);
+            halfSizes[i] = object < NUM_LARGE_OBJECTS
+                    ? 0.5f + 1.0f * random.nextFloat() : 0.03f + 0.2f * random.nextFloat();
+        }
+    }
+
+    private static float randomCoordinate(Random random) {
+        return (random.nextFloat() - 0.5f) * ROOM_SIZE;
+    }
+
+    private static AABB createBox(float[] centers, float[] halfSizes, int object) {
+        return createBox(centers[3 * object], centers[3 * object + 1], centers[3 * object + 2],
+                halfSizes[3 * object], halfSizes[3 * object + 1], halfSizes[3 * object + 2]);
+    }
+
+    private static AABB createBox(
+            float x, float y, float z, float halfSizeX, float halfSizeY, float halfSizeZ) {
+        final AABB bounds = new AABB();
+        bounds.minX = x - halfSizeX;
+        bounds.minY = y - halfSizeY;
+        bounds.minZ = z - halfSizeZ;
+        bounds.maxX = x + halfSizeX;
+        bounds.maxY = y + halfSizeY;
+        bounds.maxZ = z + halfSizeZ;
+        return bounds;
+    }
+
+    private static final class Track {
+        final int id;
+        final float[] bounds = new float[6];
+        int hits = 1;
+        int misses;
+        int age;
+        boolean confirmed;
+
+        Track(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The tracker with the default settings, scoring every cluster against every track.  Scores
+     * are computed as in {@link ClusterTracker}, so that both match the same pairs.
+     */
+    private static final class AllPairsTracker {
+        private static final float MAX_CENTROID_DISTANCE = 0.2f; // Units: meters.
+        private static final float MIN_OVERLAP = 0.1f;
+        private static final int MIN_HITS = 3;
+        private static final int MAX_MISSES = 5;
+        private static final float SMOOTHING = 0.5f;
+
+        final List<Track> tracks = new ArrayList<>();
+        int[] clusterTrackIds = new int[0];
+        private int nextId = 1;
+
+        void update(List<AABB> clusters) {
+            final List<float[]> clusterBounds = new ArrayList<>();
+            for (AABB cluster : clusters) {
+                clusterBounds.add(new float[] {
+                    cluster.minX, cluster.minY, cluster.minZ,
+                    cluster.maxX, cluster.maxY, cluster.maxZ});
+            }
+
+            final List<float[]> pairs = new ArrayList<>();
+            for (int track = 0; track < tracks.size(); ++track) {
+                for (int cluster = 0; cluster < clusters.size(); ++cluster) {
+                    final float score =
+                            score(tracks.get(track).bounds, clusterBounds.get(cluster));
+                    if (score > 0) {
+                        pairs.add(new float[] {score, track, cluster});
+                    }
+                }
+            }
+            pairs.sort((a, b) -> Float.compare(b[0], a[0]));
+
+            final Track[] clusterTracks = new Track[clusters.size()];
+            final Set<Track> matched = new HashSet<>();
+            for (float[] pair : pairs) {
+                final Track track = tracks.get((int) pair[1]);
+                final int cluster = (int) pair[2];
+                if (!matched.contains(track) && clusterTracks[cluster] == null) {
+                    matched.add(track);
+                    clusterTracks[cluster] = track;
+                }
+            }
+
+            for (int cluster = 0; cluster < clusters.size(); ++cluster) {
+                final Track track = clusterTracks[cluster];
+                if (track != null) {
+                    for (int i = 0; i < 6; ++i) {
+                        track.bounds[i] += SMOOTHING
+                                * (clusterBounds.get(cluster)[i] - track.bounds[i]);
+                    }
+                    ++track.hits;
+                    track.misses = 0;
+                    track.confirmed |= track.hits >= MIN_HITS;
+                }
+            }
+            for (int track = tracks.size() - 1; track >= 0; --track) {
+                final Track t = tracks.get(track);
+                ++t.age;
+                if (!matched.contains(t) && (!t.confirmed || ++t.misses > MAX_MISSES)) {
+                    tracks.remove(track);
+                }
+            }
+
+            clusterTrackIds = new int[clusters.size()];
+            for (int cluster = 0; cluster < clusters.size(); ++cluster) {
+                Track track = clusterTracks[cluster];
+                if (track == null) {
+                    track = new Track(nextId++);
+                    System.arraycopy(clusterBounds.get(cluster), 0, track.bounds, 0, 6);
+                    tracks.add(track);
+                }
+                clusterTrackIds[cluster] = track.id;
+            }
+        }
+
+        Track find(int id) {
+            for (Track track : tracks) {
+                if (track.id == id) {
+                    return track;
+                }
+            }
+            throw new AssertionError("No track with id " + id);
+        }
+
+        /** Returns the score of a pair, or 0 if the track and the cluster may not be matched. */
+        private static float score(float[] t, float[] c) {
+            final float dx = 0.5f * (t[0] + t[3] - c[0] - c[3]);
+            final float dy = 0.5f * (t[1] + t[4] - c[1] - c[4]);
+            final float dz = 0.5f * (t[2] + t[5] - c[2] - c[5]);
+            final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            final float overlapX = Math.min(t[3], c[3]) - Math.max(t[0], c[0]);
+            final float overlapY = Math.min(t[4], c[4]) - Math.max(t[1], c[1]);
+            final float overlapZ = Math.min(t[5], c[5]) - Math.max(t[2], c[2]);
+            float overlap = 0;
+            if (overlapX > 0 && overlapY > 0 && overlapZ > 0) {
+                final float intersection = overlapX * overlapY * overlapZ;
+                final float union = volume(t) + volume(c) - intersection;
+                overlap = union > 0 ? intersection / union : 1;
+            }
+            if (distance > MAX_CENTROID_DISTANCE && overlap < MIN_OVERLAP) {
+                return 0;
+            }
+            return overlap + Math.max(0, 1 - distance / MAX_CENTROID_DISTANCE) + 1e-6f;
+        }
+
+        private static float volume(float[] bounds) {
+            return (bounds[3] - bounds[0]) * (bounds[4] - bounds[1]) * (bounds[5] - bounds[2]);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.benchmark.SyntheticDepthScene;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.InMemoryDepthFrame;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Runs the per-frame depth processing of the app over a long session, with the camera walking
+ * around a synthetic scene, and checks that the time per frame stays flat and that the buffers
+ * and the voxel map stay bounded.
+ *
+ * <p>The default session is short enough for every build. Longer sessions are run with e.g.
+ * {@code ./gradlew :benchmark:test -PsoakFrames=54000}, 30 minutes of depth at 30 frames per
+ * second.
+ */
+public class DepthPipelineSoakTest {
+    private static final int DEFAULT_SOAK_FRAMES = 3000;
+
+    // The first frames warm up the JIT, the pools and the voxel map. The time per frame of the
+    // last window is compared with that of the first window after the warm-up.
+    private static final int NUM_WARMUP_FRAMES = 300;
+    private static final int WINDOW_FRAMES = 300;
+
+    // The median time per frame of the last window may exceed that of the first window by this
+    // factor, plus a small absolute slack for timer noise on fast machines.
+    private static final double MAX_SLOWDOWN = 2.0;
+    private static final long SLACK_NANOS = 500_000;
+
+    // Matches the voxel budget of the app.
+    private static final int MAX_MAP_VOXELS = 1 << 17;
+
+    // The camera walks around the scene in this many views, which are rendered once and then
+    // replayed, so that the session is not dominated by the rendering of the scene.
+    private static final int NUM_VIEWS = 60;
+    private static final float ORBIT_RADIUS = 1.2f; // Units: meters.
+    private static final float ORBIT_CENTER_Z = -0.8f; // Units: meters.
+
+    @Test
+    public void timePerFrameStaysFlat() {
+        final int numFrames =
+                Math.max(NUM_WARMUP_FRAMES + 2 * WINDOW_FRAMES,
+                        Integer.getInteger("soakFrames", DEFAULT_SOAK_FRAMES));
+
+        final SyntheticDepthScene scene = new SyntheticDepthScene(7);
+        scene.setFloorHeight(0);
+        scene.addWall(0, 0, 1, -2.0f);
+        scene.addRandomBoxes(8, 0, ORBIT_CENTER_Z, 0.6f, 0.08f, 0.3f);
+        scene.setHoleRatio(0.05f);
+        scene.setFlyingPixelRatio(0.01f);
+        final InMemoryDepthFrame[] views = new InMemoryDepthFrame[NUM_VIEWS];
+        for (int view = 0; view < NUM_VIEWS; ++view) {
+            final double angle = 2 * Math.PI * view / NUM_VIEWS;
+            scene.lookAt((float) (ORBIT_RADIUS * Math.sin(angle)), 1.2f,
+                    (float) (ORBIT_CENTER_Z + ORBIT_RADIUS * Math.cos(angle)),
+                    0, 0, ORBIT_CENTER_Z);
+            views[view] = scene.render(240, 180);
+        }
+
+        final DepthPointConverter converter = new DepthPointConverter();
+        final PlaneDetector planeDetector = new PlaneDetector(1);
+        final PlaneFilter planeFilter = new PlaneFilter();
+        final VoxelMap voxelMap = new VoxelMap(MAX_MAP_VOXELS);
+        final ClusterChangeSet clusterChanges = new ClusterChangeSet();
+
+        final long[] firstWindow = new long[WINDOW_FRAMES];
+        final long[] lastWindow = new long[WINDOW_FRAMES];
+        long warmAllocationCount = 0;
+        for (int frame = 0; frame < numFrames; ++frame) {
+            // Matches the processing of a new depth image in the app.
+            final long startNanos = System.nanoTime();
+            final FloatBuffer points = converter.convert(views[frame % NUM_VIEWS]);
+            planeDetector.detect(points);
+            planeFilter.clearPlanes();
+            planeDetector.addPlanesTo(planeFilter);
+            planeFilter.filter(points);
+            voxelMap.integrate(points);
+            voxelMap.updateClusters(clusterChanges);
+            converter.release(points);
+            final long frameNanos = System.nanoTime() - startNanos;
+
+            if (frame == NUM_WARMUP_FRAMES - 1) {
+                warmAllocationCount = converter.getPointBufferPool().getAllocationCount();
+            } else if (frame >= NUM_WARMUP_FRAMES && frame < NUM_WARMUP_FRAMES + WINDOW_FRAMES) {
+                firstWindow[frame - NUM_WARMUP_FRAMES] = frameNanos;
+            } else if (frame >= numFrames - WINDOW_FRAMES) {
+                lastWindow[frame - (numFrames - WINDOW_FRAMES)] = frameNanos;
+            }
+            assertTrue(voxelMap.getNumVoxels() <= MAX_MAP_VOXELS);
+        }
+
+        assertEquals(warmAllocationCount, converter.getPointBufferPool().getAllocationCount());
+        assertTrue(voxelMap.getNumClusters() > 0);
+        final long firstMedian = median(firstWindow);
+        final long lastMedian = median(lastWindow);
+        assertTrue("Median time per frame grew from " + firstMedian / 1000 + " us after warm-up to "
+                        + lastMedian / 1000 + " us after " + numFrames + " frames",
+                lastMedian <= MAX_SLOWDOWN * firstMedian + SLACK_NANOS);
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.benchmark.SyntheticDepthScene;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+
+/** Tests that the parallel labeling finds the same clusters as the search on the calling thread. */
+public class ParallelClusterLabelerTest {
+    private static final int[] WORKER_COUNTS = {1, 2, 3, 4, 7};
+    private static final int NUM_SCENES = 4;
+
+    // Matches the cell size of PointClusteringHelper, so that every point fills one voxel.
+    private static final float CELL_SIZE = 0.02f; // Units: meters.
+
+    @Test
+    public void syntheticScenesHaveIdenticalClusters() {
+        final DepthPointConverter converter = new DepthPointConverter();
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            final SyntheticDepthScene scene = new SyntheticDepthScene(seed);
+            scene.setFloorHeight(0);
+            scene.addWall(0, 0, 1, -1.6f);
+            scene.addRandomBoxes(6, 0, -0.8f, 0.4f, 0.08f, 0.25f);
+            scene.lookAt(0, 1.0f, 0.2f, 0, 0, -0.8f);
+            scene.setHoleRatio(0.1f);
+            scene.setFlyingPixelRatio(0.02f);
+            final FloatBuffer points = converter.convert(scene.render(640, 480));
+            assertParallelMatchesSerial(copy(points));
+            converter.release(points);
+        }
+    }
+
+    @Test
+    public void noisyGridHasIdenticalClusters() {
+        // Noise voxels make many small clusters that touch the faces between slabs.
+        final int sideLength = 64;
+        final Random random = new Random(11);
+        final FloatBuffer points =
+                FloatBuffer.allocate(4 * (sideLength * sideLength * sideLength + 1));
+        // The grid starts at the minimum of the points, so a point at the origin corner keeps the
+        // voxel centers away from the cell boundaries.
+        points.put(0).put(0).put(0).put(1.0f);
+        for (int x = 0; x < sideLength; ++x) {
+            for (int y = 0; y < sideLength; ++y) {
+                for (int z = 0; z < sideLength; ++z) {
+                    if (random.nextFloat() < 0.2f) {
+                        points.put((x + 0.5f) * CELL_SIZE);
+                        points.put((y + 0.5f) * CELL_SIZE);
+                        points.put((z + 0.5f) * CELL_SIZE);
+                        points.put(1.0f);
+                    }
+                }
+            }
+        }
+        points.flip();
+        assertParallelMatchesSerial(points);
+    }
+
+    private static void assertParallelMatchesSerial(FloatBuffer points) {
+        final List<AABB> expected =
+                new PointClusteringHelper(points.duplicate(), GridType.DENSE).findClusters();
+        assertTrue(expected.size() > 1);
+
+        for (int workerCount : WORKER_COUNTS) {
+            final ParallelClusterLabeler labeler = new ParallelClusterLabeler(workerCount);
+            try {
+                final PointClusteringHelper helper =
+                        new PointClusteringHelper(points.duplicate(), GridType.DENSE);
+                assertEquals(GridType.DENSE, helper.getGridType());
+                final List<AABB> clusters = helper.findClusters(labeler);
+                final String message = workerCount + " workers";
+                assertEquals(message, expected.size(), clusters.size());
+                for (int i = 0; i < expected.size(); ++i) {
+                    assertSameBounds(message + ", cluster " + i, expected.get(i), clusters.get(i));
+                }
+            } finally {
+                labeler.shutdown();
+            }
+        }
+    }
+
+    private static void assertSameBounds(String message, AABB expected, AABB actual) {
+        assertSameFloat(message, expected.minX, actual.minX);
+        assertSameFloat(message, expected.minY, actual.minY);
+        assertSameFloat(message, expected.minZ, actual.minZ);
+        assertSameFloat(message, expected.maxX, actual.maxX);
+        assertSameFloat(message, expected.maxY, actual.maxY);
+        assertSameFloat(message, expected.maxZ, actual.maxZ);
+    }
+
+    private static void assertSameFloat(String message, float expected, float actual) {
+        assertEquals(message, Float.floatToIntBits(expected), Float.floatToIntBits(actual));
+    }
+
+    /** Returns a heap copy of the points, so that the converter can recycle its buffer. */
+    private static FloatBuffer copy(FloatBuffer points) {
+        final FloatBuffer copy = FloatBuffer.allocate(points.remaining());
+        copy.put(points.duplicate());
+        copy.flip();
+        return copy;
+    }
+}
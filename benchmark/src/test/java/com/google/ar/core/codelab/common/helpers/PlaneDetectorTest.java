@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.ar.core.codelab.benchmark.SyntheticDepthScene;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Tests that the plane detector finds the floor and the wall of a synthetic scene, independently
+ * of the number of workers, and that it keeps the planes it could not try within its budget.
+ */
+public class PlaneDetectorTest {
+    private static final int NUM_SCENES = 4;
+
+    // Detected normals are within about 2.5 degrees of the true ones, and offsets within 1 cm.
+    private static final float MIN_NORMAL_DOT = 0.999f;
+    private static final float MAX_OFFSET_ERROR = 0.01f; // Units: meters.
+
+    // Budgets long enough for every plane of a frame, or so short that only the first extraction
+    // runs.
+    private static final long UNLIMITED_BUDGET_NANOS = Long.MAX_VALUE;
+    private static final long NO_BUDGET_NANOS = 0;
+
+    @Test
+    public void findsFloorAndWall() {
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            final SyntheticDepthScene scene = createScene(seed);
+            final PlaneDetector detector = createDetector(1);
+            detector.detect(renderPoints(scene));
+
+            final List<float[]> truth = scene.getGroundTruthPlaneMatrices();
+            assertEquals("seed " + seed, truth.size(), detector.getNumPlanes());
+            final float[] matrix = new float[16];
+            for (float[] truthMatrix : truth) {
+                boolean found = false;
+                for (int plane = 0; plane < detector.getNumPlanes() && !found; ++plane) {
+                    detector.getPlaneMatrix(plane, matrix, 0);
+                    found = isSamePlane(truthMatrix, matrix);
+                }
+                assertTrue("seed " + seed + ": no plane with normal ("
+                        + truthMatrix[4] + ", " + truthMatrix[5] + ", " + truthMatrix[6]
+                        + ") through (" + truthMatrix[12] + ", " + truthMatrix[13] + ", "
+                        + truthMatrix[14] + ")", found);
+            }
+        }
+    }
+
+    @Test
+    public void planesDoNotDependOnWorkerCount() {
+        for (int seed = 0; seed < NUM_SCENES; ++seed) {
+            final FloatBuffer points = renderPoints(createScene(seed));
+            final PlaneDetector serial = createDetector(1);
+            final PlaneDetector parallel = createDetector(4);
+            try {
+                // The second frame starts from the planes carried from the first one.
+                for (int frame = 0; frame < 2; ++frame) {
+                    serial.detect(points);
+                    parallel.detect(points);
+                    assertSamePlanes("seed " + seed + ", frame " + frame, serial, parallel);
+                }
+            } finally {
+                parallel.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void carriedPlanesAreKeptWhenBudgetIsSpent() {
+        final FloatBuffer points = renderPoints(createScene(0));
+        final PlaneDetector detector = createDetector(1);
+        detector.detect(points);
+        assertEquals(2, detector.getNumPlanes());
+        assertEquals(2, detector.getNumCarriedPlanes());
+
+        // Only the first extraction runs, which finds one of the planes again. The other one was
+        // not tried, so it is still carried to the next frame.
+        detector.setTimeBudgetNanos(NO_BUDGET_NANOS);
+        detector.detect(points);
+        assertEquals(1, detector.getNumPlanes());
+        assertEquals(2, detector.getNumCarriedPlanes());
+
+        // With the budget back, both planes are found again.
+        detector.setTimeBudgetNanos(UNLIMITED_BUDGET_NANOS);
+        detector.detect(points);
+        assertEquals(2, detector.getNumPlanes());
+        assertEquals(2, detector.getNumCarriedPlanes());
+    }
+
+    @Test
+    public void carriedPlanesAreDroppedWhenNotFoundWithinBudget() {
+        final PlaneDetector detector = createDetector(1);
+        detector.detect(renderPoints(createScene(0)));
+        assertEquals(2, detector.getNumCarriedPlanes());
+
+        // A frame without points tries every extraction it can, so planes not found are dropped.
+        detector.detect(FloatBuffer.allocate(0));
+        assertEquals(0, detector.getNumPlanes());
+        assertEquals(0, detector.getNumCarriedPlanes());
+    }
+
+    @Test
+    public void maxPlanesIsBounded() {
+        final PlaneDetector detector = new PlaneDetector();
+        detector.setMaxPlanes(0);
+        detector.setMaxPlanes(8);
+        for (int maxPlanes : new int[] {-1, 9}) {
+            try {
+                detector.setMaxPlanes(maxPlanes);
+                fail("maxPlanes " + maxPlanes + " was accepted");
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void maxPlanesLimitsThePlanesFound() {
+        final FloatBuffer points = renderPoints(createScene(0));
+        for (int maxPlanes = 0; maxPlanes <= 2; ++maxPlanes) {
+            final PlaneDetector detector = createDetector(1);
+            detector.setMaxPlanes(maxPlanes);
+            detector.detect(points);
+            assertEquals(maxPlanes, detector.getNumPlanes());
+        }
+    }
+
+    private static PlaneDetector createDetector(int workerCount) {
+        final PlaneDetector detector = new PlaneDetector(workerCount);
+        detector.setTimeBudgetNanos(UNLIMITED_BUDGET_NANOS);
+        return detector;
+    }
+
+    /**
+     * A floor and a wall, without boxes, so that they are the only planes. The wall is close
+     * enough for its lower part to be within the depth range of the converter.
+     */
+    private static SyntheticDepthScene createScene(long seed) {
+        final SyntheticDepthScene scene = new SyntheticDepthScene(seed);
+        scene.setFloorHeight(0);
+        scene.addWall(0, 0, 1, -1.0f);
+        scene.lookAt(0, 1.0f, 0.2f, 0, 0, -0.8f);
+        scene.setHoleRatio(0.1f);
+        return scene;
+    }
+
+    /** Converts a view of the scene, and returns a heap copy of the points. */
+    private static FloatBuffer renderPoints(SyntheticDepthScene scene) {
+        final DepthPointConverter converter = new DepthPointConverter();
+        final FloatBuffer converted = converter.convert(scene.render(640, 480));
+        final FloatBuffer points = FloatBuffer.allocate(converted.remaining());
+        points.put(converted);
+        points.flip();
+        return points;
+    }
+
+    /**
+     * Returns true if two plane-to-world matrices describe the same plane, whose normal is the Y
+     * axis, up to the orientation of the normal.
+     */
+    private static boolean isSamePlane(float[] expected, float[] actual) {
+        final float dot = expected[4] * actual[4] + expected[5] * actual[5]
+                + expected[6] * actual[6];
+        final float expectedOffset = -(expected[4] * expected[12] + expected[5] * expected[13]
+                + expected[6] * expected[14]);
+        final float actualOffset = -(actual[4] * actual[12] + actual[5] * actual[13]
+                + actual[6] * actual[14]);
+        final float offsetError = dot < 0
+                ? expectedOffset + actualOffset : expectedOffset - actualOffset;
+        return Math.abs(dot) >= MIN_NORMAL_DOT && Math.abs(offsetError) <= MAX_OFFSET_ERROR;
+    }
+
+    private static void assertSamePlanes(
+            String message, PlaneDetector expected, PlaneDetector actual) {
+        assertEquals(message, expected.getNumPlanes(), actual.getNumPlanes());
+        assertEquals(message, expected.getNumCarriedPlanes(), actual.getNumCarriedPlanes());
+        final float[] expectedValues = new float[16];
+        final float[] actualValues = new float[16];
+        for (int plane = 0; plane < expected.getNumPlanes(); ++plane) {
+            expected.getPlaneMatrix(plane, expectedValues, 0);
+            actual.getPlaneMatrix(plane, actualValues, 0);
+            assertArrayEquals(message, expectedValues, actualValues, 0);
+            expected.getPlanePolygon(plane, expectedValues, 0);
+            actual.getPlanePolygon(plane, actualValues, 0);
+            assertArrayEquals(message, expectedValues, actualValues, 0);
+            assertEquals(message,
+                    expected.getPlaneInlierCount(plane), actual.getPlaneInlierCount(plane));
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.benchmark.ClusterAccuracy;
+import com.google.ar.core.codelab.benchmark.SyntheticDepthScene;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.InMemoryDepthFrame;
+import com.google.ar.core.codelab.common.depth.PlaneDistanceFilter;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+import com.google.ar.core.codelab.common.helpers.PointClusteringHelper.GridType;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Stress tests of the clustering of large connected blobs, which used to overflow the stack of
+ * the recursive search, and a comparison of the distance-aware voxels with the fixed ones.
+ */
+public class PointClusteringHelperTest {
+    // Matches the cell size of PointClusteringHelper, so that every point fills one voxel.
+    private static final float CELL_SIZE = 0.02f; // Units: meters.
+
+    private static final float BOUNDS_TOLERANCE = 1e-4f; // Units: meters.
+
+    // As in SceneClusteringBenchmark.
+    private static final float MIN_INTERSECTION_OVER_UNION = 0.25f;
+
+    // A box of 60 x 20 x 10 cm, turned by 30 degrees around Y then tilted by 20 degrees around X,
+    // 1.2 m in front of a camera at the origin, so that the distance-aware voxels are coarser.
+    private static final float[] BOX_HALF_EXTENTS = {0.3f, 0.1f, 0.05f}; // Units: meters.
+    private static final float[] BOX_CENTER = {0.3f, 0.4f, -1.2f}; // Units: meters.
+    private static final double BOX_YAW = Math.toRadians(30);
+    private static final double BOX_PITCH = Math.toRadians(20);
+    private static final float BOX_POINT_SPACING = 0.005f; // Units: meters.
+
+    // Axes within 4 degrees.  Boxes cover whole voxels, whose centers can be half a diagonal away
+    // from the points, so extents may exceed those of the box by up to a voxel diagonal.
+    private static final float MIN_AXIS_DOT = 0.9975f;
+    private static final float EXTENT_TOLERANCE = (float) Math.sqrt(3) * CELL_SIZE;
+    private static final float CENTER_TOLERANCE = 0.01f; // Units: meters.
+
+    @Test
+    public void solidCubeIsOneCluster() {
+        // 47^3 = 103823 voxels.
+        for (GridType gridType : GridType.values()) {
+            assertSingleCluster(createBlob(47, 47, 47), gridType, 47, 47, 47);
+        }
+    }
+
+    @Test
+    public void thinSlabIsOneCluster() {
+        // A wall that was not removed by the plane filter: 317^2 = 100489 voxels.
+        for (GridType gridType : GridType.values()) {
+            assertSingleCluster(createBlob(317, 1, 317), gridType, 317, 1, 317);
+        }
+    }
+
+    @Test
+    public void orientedBoxOfSolidCubeIsOneCluster() {
+        final List<OBB> clusters =
+                new PointClusteringHelper(createBlob(47, 47, 47), GridType.SPARSE)
+                        .findOrientedClusters();
+        assertEquals(1, clusters.size());
+    }
+
+    @Test
+    public void distanceAwareVoxelsKeepRecallOfFixedGrid() {
+        int numTruthBoxes = 0;
+        int fixedMatches = 0;
+        int fixedVoxels = 0;
+        int distanceAwareMatches = 0;
+        int distanceAwareVoxels = 0;
+        final float[] cameraPoseMatrix = new float[16];
+        for (int numBoxes : new int[] {1, 4, 8}) {
+            for (int seed = 0; seed < 6; ++seed) {
+                final SyntheticDepthScene scene = createBoxScene(seed, numBoxes);
+                final InMemoryDepthFrame frame = scene.render(640, 480);
+                frame.getCameraPoseMatrix(cameraPoseMatrix, 0);
+                final FloatBuffer points = convertWithoutPlanes(scene, frame);
+                final List<AABB> truth = scene.getGroundTruthBoxes();
+                numTruthBoxes += truth.size();
+
+                final PointClusteringHelper fixed = new PointClusteringHelper(points);
+                fixedVoxels += fixed.getOccupiedVoxelCount();
+                fixedMatches += ClusterAccuracy.countMatches(
+                        truth, fixed.findClusters(), MIN_INTERSECTION_OVER_UNION);
+
+                final PointClusteringHelper distanceAware = new PointClusteringHelper(
+                        points, GridType.SPARSE, cameraPoseMatrix, 0);
+                distanceAwareVoxels += distanceAware.getOccupiedVoxelCount();
+                distanceAwareMatches += ClusterAccuracy.countMatches(
+                        truth, distanceAware.findClusters(), MIN_INTERSECTION_OVER_UNION);
+            }
+        }
+
+        final String counts = "recall " + distanceAwareMatches + "/" + numTruthBoxes
+                + " with " + distanceAwareVoxels + " distance-aware voxels, " + fixedMatches + "/"
+                + numTruthBoxes + " with " + fixedVoxels + " fixed voxels";
+        assertTrue(counts, distanceAwareMatches >= fixedMatches);
+        assertTrue(counts, distanceAwareVoxels < fixedVoxels);
+    }
+
+    @Test
+    public void orientedBoxFitsRotatedBox() {
+        final float[] boxAxes = createBoxAxes();
+        final FloatBuffer points = createRotatedBox(boxAxes);
+        final float[] cameraPoseMatrix = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        final PointClusteringHelper[] helpers = {
+            new PointClusteringHelper(points),
+            new PointClusteringHelper(points, GridType.SPARSE, cameraPoseMatrix, 0),
+        };
+        for (int mode = 0; mode < helpers.length; ++mode) {
+            final String message = mode == 0 ? "fixed voxels" : "distance-aware voxels";
+            final List<OBB> clusters = helpers[mode].findOrientedClusters();
+            assertEquals(message, 1, clusters.size());
+            final OBB box = clusters.get(0);
+
+            // The axes are sorted from the longest to the shortest side of the box, as are the
+            // axes of the box, and form a right-handed basis.
+            for (int axis = 0; axis < 3; ++axis) {
+                final float dot = box.axes[3 * axis] * boxAxes[3 * axis]
+                        + box.axes[3 * axis + 1] * boxAxes[3 * axis + 1]
+                        + box.axes[3 * axis + 2] * boxAxes[3 * axis + 2];
+                assertTrue(message + ": axis " + axis + " has a dot product of " + dot,
+                        Math.abs(dot) >= MIN_AXIS_DOT);
+                assertTrue(message + ": extent " + axis + " is " + box.halfExtents[axis],
+                        box.halfExtents[axis] >= BOX_HALF_EXTENTS[axis] - BOUNDS_TOLERANCE
+                                && box.halfExtents[axis]
+                                <= BOX_HALF_EXTENTS[axis] + EXTENT_TOLERANCE);
+            }
+            final float[] a = box.axes;
+            assertEquals(message, 1, (a[1] * a[5] - a[2] * a[4]) * a[6]
+                    + (a[2] * a[3] - a[0] * a[5]) * a[7]
+                    + (a[0] * a[4] - a[1] * a[3]) * a[8], BOUNDS_TOLERANCE);
+            assertEquals(message, BOX_CENTER[0], box.centerX, CENTER_TOLERANCE);
+            assertEquals(message, BOX_CENTER[1], box.centerY, CENTER_TOLERANCE);
+            assertEquals(message, BOX_CENTER[2], box.centerZ, CENTER_TOLERANCE);
+            assertContainsPoints(message, box, points);
+        }
+    }
+
+    private static void assertSingleCluster(
+            FloatBuffer points, GridType gridType, int sizeX, int sizeY, int sizeZ) {
+        final PointClusteringHelper helper = new PointClusteringHelper(points, gridType);
+        assertEquals(gridType, helper.getGridType());
+        assertEquals(sizeX * sizeY * sizeZ, helper.getOccupiedVoxelCount());
+        assertEquals(0, helper.getDroppedVoxelCount());
+
+        final List<AABB> clusters = helper.findClusters();
+        assertEquals(1, clusters.size());
+        final AABB bounds = clusters.get(0);
+        assertEquals(0, bounds.minX, BOUNDS_TOLERANCE);
+        assertEquals(0, bounds.minY, BOUNDS_TOLERANCE);
+        assertEquals(0, bounds.minZ, BOUNDS_TOLERANCE);
+        assertEquals(sizeX * CELL_SIZE, bounds.maxX, BOUNDS_TOLERANCE);
+        assertEquals(sizeY * CELL_SIZE, bounds.maxY, BOUNDS_TOLERANCE);
+        assertEquals(sizeZ * CELL_SIZE, bounds.maxZ, BOUNDS_TOLERANCE);
+    }
+
+    private static void assertContainsPoints(String message, OBB box, FloatBuffer points) {
+        for (int i = 0; i < points.limit(); i += 4) {
+            final float x = points.get(i) - box.centerX;
+            final float y = points.get(i + 1) - box.centerY;
+            final float z = points.get(i + 2) - box.centerZ;
+            for (int axis = 0; axis < 3; ++axis) {
+                final float projection = x * box.axes[3 * axis] + y * box.axes[3 * axis + 1]
+                        + z * box.axes[3 * axis + 2];
+                assertTrue(message + ": point " + i / 4 + " is outside of the box",
+                        Math.abs(projection) <= box.halfExtents[axis] + BOUNDS_TOLERANCE);
+            }
+        }
+    }
+
+    /** Returns the axes of the rotated box, three values per axis. */
+    private static float[] createBoxAxes() {
+        // Yaw around Y, then pitch around the world X axis.
+        final float cosYaw = (float) Math.cos(BOX_YAW);
+        final float sinYaw = (float) Math.sin(BOX_YAW);
+        final float cosPitch = (float) Math.cos(BOX_PITCH);
+        final float sinPitch = (float) Math.sin(BOX_PITCH);
+        final float[] yawed = {cosYaw, 0, -sinYaw, 0, 1, 0, sinYaw, 0, cosYaw};
+        final float[] axes = new float[9];
+        for (int axis = 0; axis < 3; ++axis) {
+            final float x = yawed[3 * axis];
+            final float y = yawed[3 * axis + 1];
+            final float z = yawed[3 * axis + 2];
+            axes[3 * axis] = x;
+            axes[3 * axis + 1] = cosPitch * y - sinPitch * z;
+            axes[3 * axis + 2] = sinPitch * y + cosPitch * z;
+        }
+        return axes;
+    }
+
+    /** Returns points filling the rotated box, on a regular lattice along its axes. */
+    private static FloatBuffer createRotatedBox(float[] axes) {
+        final int[] counts = new int[3];
+        int numPoints = 1;
+        for (int axis = 0; axis < 3; ++axis) {
+            counts[axis] = Math.round(2 * BOX_HALF_EXTENTS[axis] / BOX_POINT_SPACING) + 1;
+            numPoints *= counts[axis];
+        }
+        final FloatBuffer points = FloatBuffer.allocate(4 * numPoints);
+        for (int i = 0; i < counts[0]; ++i) {
+            final float s0 = -BOX_HALF_EXTENTS[0] + i * BOX_POINT_SPACING;
+            for (int j = 0; j < counts[1]; ++j) {
+                final float s1 = -BOX_HALF_EXTENTS[1] + j * BOX_POINT_SPACING;
+                for (int k = 0; k < counts[2]; ++k) {
+                    final float s2 = -BOX_HALF_EXTENTS[2] + k * BOX_POINT_SPACING;
+                    for (int coordinate = 0; coordinate < 3; ++coordinate) {
+                        points.put(BOX_CENTER[coordinate] + s0 * axes[coordinate]
+                                + s1 * axes[3 + coordinate] + s2 * axes[6 + coordinate]);
+                    }
+                    points.put(1.0f);
+                }
+            }
+        }
+        points.flip();
+        return points;
+    }
+
+    /** The scene of SceneClusteringBenchmark: boxes on the floor in front of a wall. */
+    private static SyntheticDepthScene createBoxScene(long seed, int numBoxes) {
+        final SyntheticDepthScene scene = new SyntheticDepthScene(seed);
+        scene.setFloorHeight(0);
+        scene.addWall(0, 0, 1, -1.6f);
+        scene.addRandomBoxes(numBoxes, 0, -0.8f, 0.3f, 0.08f, 0.25f);
+        scene.lookAt(0, 1.0f, 0.2f, 0, 0, -0.8f);
+        return scene;
+    }
+
+    /**
+     * Converts the frame, removing the points on the planes of the scene as the app does, and
+     * returns a heap copy of the points.
+     */
+    private static FloatBuffer convertWithoutPlanes(
+            SyntheticDepthScene scene, InMemoryDepthFrame frame) {
+        final PlaneFilter planeFilter = new PlaneFilter();
+        for (float[] planeMatrix : scene.getGroundTruthPlaneMatrices()) {
+            planeFilter.addPlane(planeMatrix, 0);
+        }
+        final DepthPointConverter converter = new DepthPointConverter();
+        converter.getFilterPipeline().addFilter(new PlaneDistanceFilter(planeFilter));
+        final FloatBuffer converted = converter.convert(frame);
+        final FloatBuffer points = FloatBuffer.allocate(converted.remaining());
+        points.put(converted);
+        points.flip();
+        return points;
+    }
+
+    /**
+     * Returns a point at the center of every voxel of a solid box of voxels, whose minimum corner
+     * is at the origin.
+     */
+    private static FloatBuffer createBlob(int sizeX, int sizeY, int sizeZ) {
+        final FloatBuffer points = FloatBuffer.allocate(4 * (sizeX * sizeY * sizeZ + 1));
+        // The grid starts at the minimum of the points, so a point at the origin corner keeps the
+        // voxel centers away from the cell boundaries.
+        points.put(0).put(0).put(0).put(1.0f);
+        for (int x = 0; x < sizeX; ++x) {
+            for (int y = 0; y < sizeY; ++y) {
+                for (int z = 0; z < sizeZ; ++z) {
+                    points.put((x + 0.5f) * CELL_SIZE);
+                    points.put((y + 0.5f) * CELL_SIZE);
+                    points.put((z + 0.5f) * CELL_SIZE);
+                    points.put(1.0f);
+                }
+            }
+        }
+        points.flip();
+        return points;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that the eigen-decomposition of symmetric matrices returns decreasing eigenvalues and a
+ * right-handed orthonormal basis of eigenvectors, including when eigenvalues are repeated.
+ */
+public class SymmetricEigenSolverTest {
+    private static final int NUM_ROTATIONS = 1000;
+
+    // Tolerances relative to the largest absolute eigenvalue of the matrix.  Repeated eigenvalues
+    // lose half of the digits, since the arc cosine of the solution is steep near +-1.
+    private static final double EIGENVALUE_TOLERANCE = 1e-7;
+    private static final double RESIDUAL_TOLERANCE = 1e-6;
+    private static final double ORTHONORMALITY_TOLERANCE = 1e-9;
+
+    @Test
+    public void diagonalMatrix() {
+        final double[] vectors = assertDecomposition(diagonal(3, 1, 2), 3, 2, 1);
+        // The eigenvectors are the axes, up to their sign.
+        assertEquals(1, Math.abs(vectors[0]), ORTHONORMALITY_TOLERANCE);
+        assertEquals(1, Math.abs(vectors[5]), ORTHONORMALITY_TOLERANCE);
+        assertEquals(1, Math.abs(vectors[7]), ORTHONORMALITY_TOLERANCE);
+    }
+
+    @Test
+    public void multipleOfIdentity() {
+        assertDecomposition(diagonal(2, 2, 2), 2, 2, 2);
+        assertDecomposition(diagonal(0, 0, 0), 0, 0, 0);
+    }
+
+    @Test
+    public void repeatedEigenvalues() {
+        assertDecomposition(diagonal(5, 2, 2), 5, 2, 2);
+        assertDecomposition(diagonal(2, 5, 2), 5, 2, 2);
+        assertDecomposition(diagonal(2, 2, -1), 2, 2, -1);
+        assertDecomposition(diagonal(1, 0, 0), 1, 0, 0);
+    }
+
+    @Test
+    public void rotatedMatrices() {
+        final Random random = new Random(1);
+        for (int i = 0; i < NUM_ROTATIONS; ++i) {
+            final double[] eigenvalues = {
+                random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+            sortDecreasing(eigenvalues);
+            assertDecomposition(rotate(diagonal(eigenvalues[0], eigenvalues[1], eigenvalues[2]),
+                    randomRotation(random)), eigenvalues[0], eigenvalues[1], eigenvalues[2]);
+        }
+    }
+
+    @Test
+    public void rotatedMatricesWithRepeatedEigenvalues() {
+        final Random random = new Random(2);
+        for (int i = 0; i < NUM_ROTATIONS; ++i) {
+            final double repeated = random.nextGaussian();
+            final double gap = 1 + random.nextDouble();
+            final double[] rotation = randomRotation(random);
+            assertDecomposition(rotate(diagonal(repeated + gap, repeated, repeated), rotation),
+                    repeated + gap, repeated, repeated);
+            assertDecomposition(rotate(diagonal(repeated - gap, repeated, repeated), rotation),
+                    repeated, repeated, repeated - gap);
+        }
+    }
+
+    @Test
+    public void covarianceOfFlatCloud() {
+        // The covariance of points on a tilted plane, whose smallest eigenvalue is zero.
+        final double[] rotation = randomRotation(new Random(3));
+        assertDecomposition(rotate(diagonal(0.04, 0.01, 0), rotation), 0.04, 0.01, 0);
+    }
+
+    /**
+     * Decomposes the symmetric matrix {@code a}, given as 9 row-major values, and checks the
+     * results against the expected eigenvalues, in decreasing order.
+     *
+     * @return the eigenvectors.
+     */
+    private static double[] assertDecomposition(double[] a, double... expectedEigenvalues) {
+        final double[] eigenvalues = new double[3];
+        final double[] vectors = new double[9];
+        SymmetricEigenSolver.solve(a[0], a[1], a[2], a[4], a[5], a[8], eigenvalues, vectors);
+
+        double scale = 1;
+        for (double eigenvalue : expectedEigenvalues) {
+            scale = Math.max(scale, Math.abs(eigenvalue));
+        }
+        final String message = "eigenvalues " + expectedEigenvalues[0] + ", "
+                + expectedEigenvalues[1] + ", " + expectedEigenvalues[2];
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(message, expectedEigenvalues[i], eigenvalues[i],
+                    EIGENVALUE_TOLERANCE * scale);
+        }
+
+        // Orthonormal rows.
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                assertEquals(message + ": rows " + i + ", " + j, i == j ? 1 : 0,
+                        dot(vectors, i, vectors, j), ORTHONORMALITY_TOLERANCE);
+            }
+        }
+        // Right-handed: the third row is the cross product of the first two.
+        final double[] cross = {
+            vectors[1] * vectors[5] - vectors[2] * vectors[4],
+            vectors[2] * vectors[3] - vectors[0] * vectors[5],
+            vectors[0] * vectors[4] - vectors[1] * vectors[3]};
+        assertEquals(message, 1, dot(cross, 0, vectors, 2), ORTHONORMALITY_TOLERANCE);
+
+        // A v = lambda v.
+        for (int i = 0; i < 3; ++i) {
+            for (int row = 0; row < 3; ++row) {
+                final double av = dot(a, row, vectors, i);
+                assertEquals(message + ": eigenvector " + i, eigenvalues[i] * vectors[3 * i + row],
+                        av, RESIDUAL_TOLERANCE * scale);
+            }
+        }
+        return vectors;
+    }
+
+    private static double[] diagonal(double a00, double a11, double a22) {
+        return new double[] {a00, 0, 0, 0, a11, 0, 0, 0, a22};
+    }
+
+    /** Returns R A R^T, for row-major matrices. */
+    private static double[] rotate(double[] a, double[] r) {
+        final double[] ra = new double[9];
+        final double[] result = new double[9];
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                for (int k = 0; k < 3; ++k) {
+                    ra[3 * i + j] += r[3 * i + k] * a[3 * k + j];
+                }
+            }
+        }
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                result[3 * i + j] = dot(ra, i, r, j);
+            }
+        }
+        // Exactly symmetric, as the solver only reads the upper triangle.
+        result[3] = result[1];
+        result[6] = result[2];
+        result[7] = result[5];
+        return result;
+    }
+
+    /** Returns the row-major rotation matrix of a random unit quaternion. */
+    private static double[] randomRotation(Random random) {
+        double w = random.nextGaussian();
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        final double length = Math.sqrt(w * w + x * x + y * y + z * z);
+        w /= length;
+        x /= length;
+        y /= length;
+        z /= length;
+        return new double[] {
+            1 - 2 * (y * y + z * z), 2 * (x * y - w * z), 2 * (x * z + w * y),
+            2 * (x * y + w * z), 1 - 2 * (x * x + z * z), 2 * (y * z - w * x),
+            2 * (x * z - w * y), 2 * (y * z + w * x), 1 - 2 * (x * x + y * y)};
+    }
+
+    /** Returns the dot product of row {@code i} of {@code a} and row {@code j} of {@code b}. */
+    private static double dot(double[] a, int i, double[] b, int j) {
+        return a[3 * i] * b[3 * j] + a[3 * i + 1] * b[3 * j + 1] + a[3 * i + 2] * b[3 * j + 2];
+    }
+
+    private static void sortDecreasing(double[] values) {
+        Arrays.sort(values);
+        final double smallest = values[0];
+        values[0] = values[2];
+        values[2] = smallest;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+/**
+ * Keeps the points inside an axis-aligned box in world coordinates, e.g. a region of interest
+ * around an object being scanned.
+ */
+public class BoxFilter extends PointFilter {
+    private float minX;
+    private float minY;
+    private float minZ;
+    private float maxX;
+    private float maxY;
+    private float maxZ;
+
+    public BoxFilter(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        setBox(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /** Sets the box whose points are kept, faces included. Units: meters. */
+    public void setBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        if (!(minX <= maxX && minY <= maxY && minZ <= maxZ)) {
+            throw new IllegalArgumentException("Invalid box: min (" + minX + ", " + minY + ", "
+                    + minZ + "), max (" + maxX + ", " + maxY + ", " + maxZ + ")");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.POINT;
+    }
+
+    @Override
+    public boolean acceptPoint(float x, float y, float z, float confidence) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+/** Rejects the depth samples whose normalized confidence is below a threshold. */
+public class ConfidenceFilter extends PointFilter {
+    private float minConfidence;
+
+    public ConfidenceFilter(float minConfidence) {
+        setMinConfidence(minConfidence);
+    }
+
+    /** Sets the lowest confidence that is kept, in [0, 1]. */
+    public void setMinConfidence(float minConfidence) {
+        if (!(minConfidence >= 0 && minConfidence <= 1)) {
+            throw new IllegalArgumentException(
+                    "minConfidence must be in [0, 1]: " + minConfidence);
+        }
+        this.minConfidence = minConfidence;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.SAMPLE;
+    }
+
+    @Override
+    public boolean acceptSample(float depthMeters, float confidence) {
+        return confidence >= minConfidence;
+    }
+}
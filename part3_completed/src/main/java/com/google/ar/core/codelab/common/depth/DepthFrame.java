@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A raw depth image together with everything needed to turn it into a point cloud: the matching
+ * confidence image, the camera intrinsics and the camera pose. This keeps the depth processing
+ * independent of the Android and ARCore classes.
+ */
+public interface DepthFrame {
+    /** Width of the depth and confidence images, in pixels. */
+    int getWidth();
+
+    /** Height of the depth and confidence images, in pixels. */
+    int getHeight();
+
+    /** Depth image as unsigned 16-bit millimeters, in little-endian byte order. */
+    ByteBuffer getDepthBuffer();
+
+    /** Distance in bytes between the starts of two depth rows. */
+    int getDepthRowStride();
+
+    /** Distance in bytes between two neighboring depth pixels. */
+    int getDepthPixelStride();
+
+    /** Confidence image as unsigned 8-bit values, where 255 is the highest confidence. */
+    ByteBuffer getConfidenceBuffer();
+
+    /** Distance in bytes between the starts of two confidence rows. */
+    int getConfidenceRowStride();
+
+    /** Distance in bytes between two neighboring confidence pixels. */
+    int getConfidencePixelStride();
+
+    /** Horizontal focal length, in pixels of the depth image. */
+    float getFocalLengthX();
+
+    /** Vertical focal length, in pixels of the depth image. */
+    float getFocalLengthY();
+
+    /** Horizontal principal point, in pixels of the depth image. */
+    float getPrincipalPointX();
+
+    /** Vertical principal point, in pixels of the depth image. */
+    float getPrincipalPointY();
+
+    /** Writes the column-major camera-to-world matrix of the depth image into {@code matrix}. */
+    void getCameraPoseMatrix(float[] matrix, int offset);
+
+    /** Capture time of the depth image, in nanoseconds. */
+    long getTimestamp();
+}
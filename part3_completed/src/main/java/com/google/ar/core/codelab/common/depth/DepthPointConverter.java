@@ -0,0 +1,389 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Converts depth frames to 3D pointclouds in world coordinates. Each point is stored as
+ * X,Y,Z,confidence.
+ *
+ * <p>Samples are filtered by a {@link PointFilterPipeline} as they are converted, which by default
+ * keeps the samples with a confidence of at least 0.3, up to 1.5 meters away. Further filters can
+ * be added to {@link #getFilterPipeline()} without adding passes over the points.
+ *
+ * <p>The conversion runs on the calling thread by default. With more than one worker, the depth
+ * image is split into row stripes that are converted by the calling thread and long-lived worker
+ * threads; the output is identical to the single-threaded conversion. Neither path allocates once
+ * the point buffers are pooled. Pipelines with a filter that is not thread-safe, such as
+ * {@link VoxelDedupeFilter}, always convert on the calling thread.
+ *
+ * <p>When the pipeline has point filters, the points are unprojected into {@link PointChunk}s that
+ * each point filter tests as a whole, before the kept points are written out.
+ */
+public class DepthPointConverter {
+    public static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+
+    // Each worker gets a few stripes so that stripes with many valid pixels are balanced out.
+    private static final int STRIPES_PER_WORKER = 2;
+
+    // Size of the copies that move the stripes next to each other.
+    private static final int COMPACTION_CHUNK_FLOATS = 1024;
+
+    // Filtering and sampling defaults. The depth image is sampled uniformly so that it has at
+    // most about DEFAULT_MAX_POINTS pixels.
+    public static final float DEFAULT_MIN_CONFIDENCE = 0.3f;
+    public static final float DEFAULT_MAX_DEPTH = 1.5f; // Units: meters.
+    public static final int DEFAULT_MAX_POINTS = 20000;
+
+    // Unprojection factors, reused across frames as long as the intrinsics and the depth image
+    // resolution stay the same.
+    private final DepthRayTable rayTable = new DepthRayTable();
+
+    // Recycles the point buffers returned by convert().
+    private final PointBufferPool pointBufferPool = new PointBufferPool();
+
+    // Scratch storage reused by every conversion, so that steady-state frames do not allocate.
+    private final float[] modelMatrix = new float[16];
+
+    // Transforms camera points into world coordinates.
+    private final PointTransformer cameraToWorld = new PointTransformer();
+
+    // Filters the samples during the conversion.
+    private final PointFilterPipeline filterPipeline = new PointFilterPipeline()
+            .addFilter(new ConfidenceFilter(DEFAULT_MIN_CONFIDENCE))
+            .addFilter(new DepthRangeFilter(0, DEFAULT_MAX_DEPTH));
+    private int maxPoints = DEFAULT_MAX_POINTS;
+
+    // Rejection counters and point chunk of the conversion on the calling thread.
+    private int[] serialRejectedCounts = new int[0];
+    private final PointChunk serialChunk = new PointChunk();
+
+    // Inputs of the conversion in progress, shared by all stripes.
+    private ByteBuffer depthBuffer;
+    private int depthRowStride;
+    private int depthPixelStride;
+    private ByteBuffer confidenceBuffer;
+    private int confidenceRowStride;
+    private int confidencePixelStride;
+
+    // Parallel conversion. The pool is null when converting on the calling thread. The stripes
+    // and the compaction view are kept across frames, and only re-pointed when the pooled output
+    // buffer changes.
+    private int workerCount = 1;
+    private WorkerPool workerPool;
+    private RowStripe[] stripes = new RowStripe[0];
+    private final float[] compactionChunk = new float[COMPACTION_CHUNK_FLOATS];
+    private FloatBuffer compactionOutput;
+    private FloatBuffer compactionView;
+
+    public DepthPointConverter() {}
+
+    /** Creates a converter that splits each depth image across {@code workerCount} threads. */
+    public DepthPointConverter(int workerCount) {
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * Sets the number of threads used to convert a depth image. A value of 1 converts on the
+     * calling thread.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        if (workerCount == this.workerCount) {
+            return;
+        }
+        shutdown();
+        this.workerCount = workerCount;
+        if (workerCount > 1) {
+            // The calling thread converts stripes too.
+            workerPool = new WorkerPool("DepthPointConverter worker", workerCount - 1);
+            stripes = new RowStripe[workerCount * STRIPES_PER_WORKER];
+            for (int i = 0; i < stripes.length; ++i) {
+                stripes[i] = new RowStripe();
+            }
+        }
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the budget of sampled pixels. Larger depth images are sampled uniformly, every few
+     * rows and columns, so that at most about this many pixels are converted.
+     */
+    public void setMaxPoints(int maxPoints) {
+        if (maxPoints < 1) {
+            throw new IllegalArgumentException("maxPoints must be at least 1: " + maxPoints);
+        }
+        this.maxPoints = maxPoints;
+    }
+
+    public int getMaxPoints() {
+        return maxPoints;
+    }
+
+    /**
+     * Returns the filters applied to the samples during the conversion, to add filters, change
+     * their thresholds, or read how many samples each of them rejected.
+     */
+    public PointFilterPipeline getFilterPipeline() {
+        return filterPipeline;
+    }
+
+    /** Stops the worker threads. Conversions keep working on the calling thread afterwards. */
+    public void shutdown() {
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
+        workerCount = 1;
+    }
+
+    /**
+     * Applies camera intrinsics to convert a depth frame into a 3D pointcloud. The returned buffer
+     * comes from a pool and should be handed back with {@link #release(FloatBuffer)} once it has
+     * been consumed.
+     */
+    public FloatBuffer convert(DepthFrame frame) {
+        depthBuffer = frame.getDepthBuffer();
+        depthRowStride = frame.getDepthRowStride();
+        depthPixelStride = frame.getDepthPixelStride();
+        confidenceBuffer = frame.getConfidenceBuffer();
+        confidenceRowStride = frame.getConfidenceRowStride();
+        confidencePixelStride = frame.getConfidencePixelStride();
+
+        frame.getCameraPoseMatrix(modelMatrix, 0);
+        cameraToWorld.setMatrix(modelMatrix, 0);
+
+        // Allocate the destination point buffer. If the number of depth pixels is larger than
+        // `maxPoints` we uniformly subsample. The raw depth image may have different resolutions
+        // on different devices.
+        final int depthWidth = frame.getWidth();
+        final int depthHeight = frame.getHeight();
+        final float maxNumberOfPointsToRender = maxPoints;
+        int step = (int) Math.ceil(Math.sqrt(depthWidth * depthHeight / maxNumberOfPointsToRender));
+
+        rayTable.update(frame.getFocalLengthX(), frame.getFocalLengthY(),
+                frame.getPrincipalPointX(), frame.getPrincipalPointY(),
+                depthWidth, depthHeight, step);
+        final int numRows = rayTable.getNumRows();
+        FloatBuffer points = pointBufferPool.acquire(rayTable.getNumColumns() * numRows);
+
+        filterPipeline.beginFrame();
+        if (workerPool == null || !filterPipeline.isThreadSafe()) {
+            serialRejectedCounts = ensureCounters(serialRejectedCounts);
+            convertRows(0, numRows, points, serialRejectedCounts, serialChunk);
+            filterPipeline.addCounts(serialRejectedCounts,
+                    points.position() / FLOATS_PER_POINT);
+        } else {
+            convertRowsInParallel(numRows, points);
+        }
+
+        // Limits the buffer to the points that were written, since a recycled buffer may be larger.
+        points.flip();
+
+        // The frame buffers may be recycled by the caller once the conversion is done.
+        depthBuffer = null;
+        confidenceBuffer = null;
+        return points;
+    }
+
+    /** Returns a point buffer obtained from {@link #convert(DepthFrame)} to the pool. */
+    public void release(FloatBuffer points) {
+        pointBufferPool.release(points);
+    }
+
+    /** Returns {@code counters} if it has one counter per filter, or a new array otherwise. */
+    private int[] ensureCounters(int[] counters) {
+        final int numFilters = filterPipeline.getNumFilters();
+        return counters.length == numFilters ? counters : new int[numFilters];
+    }
+
+    /**
+     * Converts the sampled rows in [firstRow, endRow) and appends the resulting points to
+     * {@code points}, counting the samples rejected by each filter in {@code rejected}. Points are
+     * gathered in {@code chunk} for the point filters. Only reads shared state, so stripes may run
+     * concurrently as long as the filters are thread-safe.
+     */
+    private void convertRows(
+            int firstRow, int endRow, FloatBuffer points, int[] rejected, PointChunk chunk) {
+        final float[] raysX = rayTable.getRaysX();
+        final float[] raysY = rayTable.getRaysY();
+        final int numColumns = rayTable.getNumColumns();
+        final int step = rayTable.getStep();
+        final PointFilterPipeline pipeline = filterPipeline;
+        final boolean hasPointFilters = pipeline.hasPointFilters();
+        // The chunk is filled through local references, which the JIT keeps in registers across
+        // the reads of the direct depth buffers.
+        final float[] chunkXs = chunk.getXs();
+        final float[] chunkYs = chunk.getYs();
+        final float[] chunkZs = chunk.getZs();
+        final float[] chunkConfidences = chunk.getConfidences();
+        int chunkSize = 0;
+
+        for (int row = firstRow; row < endRow; ++row) {
+            final int y = row * step;
+            for (int column = 0; column < numColumns; ++column) {
+                final int x = column * step;
+                // Depth image pixels are unsigned 16-bit values in mm.
+                final int depthMillimeters =
+                        depthBuffer.getShort(y * depthRowStride + x * depthPixelStride) & 0xFFFF;
+                if (depthMillimeters == 0) {
+                    // Pixels with value zero are invalid, meaning depth estimates are missing from
+                    // this location.
+                    continue;
+                }
+                final float depthMeters = depthMillimeters / 1000.0f; // Depth image pixels are in mm.
+
+                // Retrieves the confidence value for this pixel.
+                final byte confidencePixelValue =
+                        confidenceBuffer.get(y * confidenceRowStride + x * confidencePixelStride);
+                final float confidenceNormalized = ((float) (confidencePixelValue & 0xff)) / 255.0f;
+                if (!pipeline.acceptSample(depthMeters, confidenceNormalized, rejected)) {
+                    // Ignores e.g. "low-confidence" pixels.
+                    continue;
+                }
+
+                // Unprojects the depth into a 3D point and applies the model matrix to transform
+                // it into world coordinates.
+                if (!hasPointFilters) {
+                    cameraToWorld.putUnprojected(
+                            points, depthMeters, raysX[column], raysY[row], confidenceNormalized);
+                    continue;
+                }
+                chunkXs[chunkSize] =
+                        cameraToWorld.unprojectX(depthMeters, raysX[column], raysY[row]);
+                chunkYs[chunkSize] =
+                        cameraToWorld.unprojectY(depthMeters, raysX[column], raysY[row]);
+                chunkZs[chunkSize] =
+                        cameraToWorld.unprojectZ(depthMeters, raysX[column], raysY[row]);
+                chunkConfidences[chunkSize] = confidenceNormalized;
+                if (++chunkSize == PointChunk.CAPACITY) {
+                    filterChunk(chunk, chunkSize, points, rejected);
+                    chunkSize = 0;
+                }
+            }
+        }
+        if (chunkSize > 0) {
+            filterChunk(chunk, chunkSize, points, rejected);
+        }
+    }
+
+    /** Filters the first {@code size} points of a chunk, and appends the kept ones to points. */
+    private void filterChunk(PointChunk chunk, int size, FloatBuffer points, int[] rejected) {
+        chunk.setSize(size);
+        filterPipeline.acceptPoints(chunk, rejected);
+        chunk.write(points);
+    }
+
+    /**
+     * Converts the image as row stripes on the worker threads. Every stripe writes into its own
+     * slice of the output buffer, starting at the first point its rows could produce; the stripes
+     * are then moved down in order, to offsets given by the prefix sum of their point counts, so
+     * the result matches the single-threaded conversion exactly.
+     */
+    private void convertRowsInParallel(int numRows, FloatBuffer points) {
+        final int numStripes = Math.min(numRows, workerCount * STRIPES_PER_WORKER);
+        final int rowsPerStripe = (numRows + numStripes - 1) / numStripes;
+        final int numColumns = rayTable.getNumColumns();
+        for (int i = 0; i < numStripes; ++i) {
+            final int firstRow = Math.min(numRows, i * rowsPerStripe);
+            final int endRow = Math.min(numRows, firstRow + rowsPerStripe);
+            stripes[i].prepare(points, firstRow, endRow, numColumns);
+        }
+
+        try {
+            workerPool.run(stripes, numStripes);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to convert depth", e.getCause());
+        }
+
+        // Moves the stripes down next to each other. The moves only go towards the start of the
+        // buffer, so copying chunk by chunk in increasing order never overwrites points that are
+        // yet to be moved.
+        if (compactionOutput != points) {
+            compactionOutput = points;
+            compactionView = points.duplicate();
+        }
+        final FloatBuffer view = compactionView;
+        view.clear();
+        int numFloats = 0;
+        for (int i = 0; i < numStripes; ++i) {
+            final RowStripe stripe = stripes[i];
+            final int stripeFloats = stripe.points.position() - stripe.start;
+            filterPipeline.addCounts(stripe.rejected, stripeFloats / FLOATS_PER_POINT);
+            if (stripe.start != numFloats) {
+                for (int offset = 0; offset < stripeFloats; offset += compactionChunk.length) {
+                    final int count = Math.min(compactionChunk.length, stripeFloats - offset);
+                    view.position(stripe.start + offset);
+                    view.get(compactionChunk, 0, count);
+                    view.position(numFloats + offset);
+                    view.put(compactionChunk, 0, count);
+                }
+            }
+            numFloats += stripeFloats;
+        }
+        points.position(numFloats);
+    }
+
+    /** A range of sampled rows converted by one worker, with its own slice of the output. */
+    private class RowStripe implements Runnable {
+        private FloatBuffer output;
+        private FloatBuffer points;
+        private final PointChunk chunk = new PointChunk();
+        private int[] rejected = new int[0];
+        private int start;
+        private int firstRow;
+        private int endRow;
+
+        void prepare(FloatBuffer output, int firstRow, int endRow, int numColumns) {
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            // The slice holds every point the rows could produce, so stripes never overlap.
+            start = firstRow * numColumns * FLOATS_PER_POINT;
+            if (this.output != output) {
+                this.output = output;
+                points = output.duplicate();
+            }
+            points.clear();
+            points.limit(endRow * numColumns * FLOATS_PER_POINT);
+            points.position(start);
+            rejected = ensureCounters(rejected);
+        }
+
+        @Override
+        public void run() {
+            convertRows(firstRow, endRow, points, rejected, chunk);
+        }
+    }
+
+    /** Returns the unprojection table, e.g. to check that it stays warm. */
+    public DepthRayTable getRayTable() {
+        return rayTable;
+    }
+
+    /** Returns the pool of point buffers, e.g. to check that it stopped allocating. */
+    public PointBufferPool getPointBufferPool() {
+        return pointBufferPool;
+    }
+}
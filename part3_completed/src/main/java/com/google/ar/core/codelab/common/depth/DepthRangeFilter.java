@@ -0,0 +1,56 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+/** Rejects the depth samples that are closer or farther than a range of depths. */
+public class DepthRangeFilter extends PointFilter {
+    private float minDepth;
+    private float maxDepth;
+
+    public DepthRangeFilter(float minDepth, float maxDepth) {
+        setRange(minDepth, maxDepth);
+    }
+
+    /** Sets the range of depths that are kept, bounds included. Units: meters. */
+    public void setRange(float minDepth, float maxDepth) {
+        if (!(minDepth >= 0 && minDepth <= maxDepth)) {
+            throw new IllegalArgumentException(
+                    "Invalid depth range: [" + minDepth + ", " + maxDepth + "]");
+        }
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+    }
+
+    public float getMinDepth() {
+        return minDepth;
+    }
+
+    public float getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.SAMPLE;
+    }
+
+    @Override
+    public boolean acceptSample(float depthMeters, float confidence) {
+        return depthMeters >= minDepth && depthMeters <= maxDepth;
+    }
+}
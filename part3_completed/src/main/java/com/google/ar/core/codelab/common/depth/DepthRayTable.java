@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+/**
+ * Caches the unprojection factors of the sampled depth pixels. A depth pixel (x, y) with depth d
+ * unprojects to (d * raysX[i], d * raysY[j], -d) in camera coordinates, where i and j are the
+ * sample indices of the column and row. The pinhole model is separable, so one factor per sampled
+ * column and one per sampled row cover every pixel.
+ *
+ * <p>The table is keyed by the intrinsics, the depth image size and the subsampling step, and is
+ * only rebuilt when one of them changes.
+ */
+public class DepthRayTable {
+    // The key of the current table.
+    private float fx;
+    private float fy;
+    private float cx;
+    private float cy;
+    private int width;
+    private int height;
+    private int step;
+
+    private float[] raysX = new float[0];
+    private float[] raysY = new float[0];
+    private int numColumns;
+    private int numRows;
+
+    private long hitCount;
+    private long rebuildCount;
+
+    /**
+     * Makes sure the table matches the given key, rebuilding it if needed. The intrinsics are
+     * expressed in pixels of the depth image.
+     *
+     * @return true if the table was rebuilt.
+     */
+    public boolean update(float fx, float fy, float cx, float cy, int width, int height, int step) {
+        if (rebuildCount > 0
+                && fx == this.fx && fy == this.fy && cx == this.cx && cy == this.cy
+                && width == this.width && height == this.height && step == this.step) {
+            ++hitCount;
+            return false;
+        }
+
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+        this.width = width;
+        this.height = height;
+        this.step = step;
+
+        numColumns = (width + step - 1) / step;
+        numRows = (height + step - 1) / step;
+        if (raysX.length < numColumns) {
+            raysX = new float[numColumns];
+        }
+        if (raysY.length < numRows) {
+            raysY = new float[numRows];
+        }
+        for (int i = 0; i < numColumns; ++i) {
+            raysX[i] = (i * step - cx) / fx;
+        }
+        for (int j = 0; j < numRows; ++j) {
+            raysY[j] = (cy - j * step) / fy;
+        }
+
+        ++rebuildCount;
+        return true;
+    }
+
+    /** Horizontal unprojection factor of each sampled column. */
+    public float[] getRaysX() {
+        return raysX;
+    }
+
+    /** Vertical unprojection factor of each sampled row. */
+    public float[] getRaysY() {
+        return raysY;
+    }
+
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    /** Number of updates that found the table already matching its key. */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /** Number of times the table has been (re)built. */
+    public long getRebuildCount() {
+        return rebuildCount;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A depth frame held in tightly packed heap buffers. Useful to feed synthetic or recorded depth to
+ * the depth processing on a plain JVM.
+ */
+public class InMemoryDepthFrame implements DepthFrame {
+    private static final int BYTES_PER_DEPTH_PIXEL = 2;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer depthBuffer;
+    private final ByteBuffer confidenceBuffer;
+    private final float[] cameraPoseMatrix = new float[16];
+
+    private float fx;
+    private float fy;
+    private float cx;
+    private float cy;
+    private long timestamp;
+
+    /**
+     * Creates a frame where every depth pixel is invalid, with an identity camera pose and a
+     * principal point at the image center.
+     */
+    public InMemoryDepthFrame(int width, int height) {
+        this.width = width;
+        this.height = height;
+        depthBuffer = ByteBuffer.allocate(width * height * BYTES_PER_DEPTH_PIXEL)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        confidenceBuffer = ByteBuffer.allocate(width * height);
+        fx = width;
+        fy = width;
+        cx = width / 2.0f;
+        cy = height / 2.0f;
+        cameraPoseMatrix[0] = 1;
+        cameraPoseMatrix[5] = 1;
+        cameraPoseMatrix[10] = 1;
+        cameraPoseMatrix[15] = 1;
+    }
+
+    /** Sets the depth of a pixel, in millimeters. Zero marks the pixel as invalid. */
+    public void setDepth(int x, int y, int depthMillimeters) {
+        depthBuffer.putShort((y * width + x) * BYTES_PER_DEPTH_PIXEL, (short) depthMillimeters);
+    }
+
+    /** Sets the confidence of a pixel, from 0 to 255. */
+    public void setConfidence(int x, int y, int confidence) {
+        confidenceBuffer.put(y * width + x, (byte) confidence);
+    }
+
+    /** Sets the intrinsics, in pixels of the depth image. */
+    public void setIntrinsics(float fx, float fy, float cx, float cy) {
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
+
+    /** Sets the column-major camera-to-world matrix. */
+    public void setCameraPoseMatrix(float[] matrix, int offset) {
+        System.arraycopy(matrix, offset, cameraPoseMatrix, 0, 16);
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public ByteBuffer getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    @Override
+    public int getDepthRowStride() {
+        return width * BYTES_PER_DEPTH_PIXEL;
+    }
+
+    @Override
+    public int getDepthPixelStride() {
+        return BYTES_PER_DEPTH_PIXEL;
+    }
+
+    @Override
+    public ByteBuffer getConfidenceBuffer() {
+        return confidenceBuffer;
+    }
+
+    @Override
+    public int getConfidenceRowStride() {
+        return width;
+    }
+
+    @Override
+    public int getConfidencePixelStride() {
+        return 1;
+    }
+
+    @Override
+    public float getFocalLengthX() {
+        return fx;
+    }
+
+    @Override
+    public float getFocalLengthY() {
+        return fy;
+    }
+
+    @Override
+    public float getPrincipalPointX() {
+        return cx;
+    }
+
+    @Override
+    public float getPrincipalPointY() {
+        return cy;
+    }
+
+    @Override
+    public void getCameraPoseMatrix(float[] matrix, int offset) {
+        System.arraycopy(cameraPoseMatrix, 0, matrix, offset, 16);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+/**
+ * Rejects the points lying on the planes of a {@link PlaneFilter} during the conversion, instead
+ * of in a separate pass over the points. The converter hands the points over in chunks, which are
+ * tested with the vectorized kernel and the footprint grid of the plane filter. The planes
+ * and the distance threshold are those of the plane filter, and may change between frames.
+ */
+public class PlaneDistanceFilter extends PointFilter {
+    private final PlaneFilter planes;
+
+    public PlaneDistanceFilter(PlaneFilter planes) {
+        this.planes = planes;
+    }
+
+    public PlaneFilter getPlanes() {
+        return planes;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.POINT;
+    }
+
+    @Override
+    public void beginFrame() {
+        planes.prepare();
+    }
+
+    @Override
+    public boolean acceptPoint(float x, float y, float z, float confidence) {
+        return !planes.isOnPlane(x, y, z);
+    }
+
+    @Override
+    public void acceptPoints(PointChunk chunk) {
+        planes.filter(chunk);
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Removes points that lie on planar surfaces. Planes are given by their pose, whose Y axis is the
+ * plane normal, and are kept between frames until {@link #clearPlanes()} is called. Planes are
+ * either infinite, or bounded by a convex polygon such as the one ARCore estimates for each plane.
+ *
+ * <p>The plane equations are kept in primitive arrays, and the points are filtered in a single
+ * pass: points are copied in chunks into coordinate arrays, each plane is tested against the
+ * whole chunk in a loop the JIT can vectorize, and the points that are kept are written back as a
+ * dense prefix of the buffer, so that later stages only see live points. With more than one
+ * worker, the points are split into slices filtered on a fixed thread pool, whose kept points are
+ * then moved next to each other; the output is identical to the single-threaded filtering. The
+ * same kernel filters the {@link PointChunk}s of the depth conversion, through a
+ * {@link PlaneDistanceFilter}.
+ *
+ * <p>Bounded planes are only tested against the points above or below their polygon. They are
+ * looked up through a uniform grid over the footprints of the polygons on the world XZ plane,
+ * built once whenever the planes change, so each point is only tested against the few planes
+ * whose footprint contains it.
+ */
+public class PlaneFilter {
+    // Controls the size of objects detected.
+    // Smaller values mean smaller objects will be kept.
+    // Larger values will only allow detection of larger objects, but also helps reduce noise.
+    public static final float DEFAULT_MAX_PLANE_DISTANCE = 0.03f; // Units: meters.
+
+    // Points are filtered in chunks of this many points, small enough to stay in the L1 cache.
+    private static final int CHUNK_SIZE = PointChunk.CAPACITY;
+
+    // Each worker gets a few slices so that the slices are balanced out.
+    private static final int SLICES_PER_WORKER = 2;
+
+    // The grid over the footprints of the bounded planes has at most this many cells along each
+    // axis, and cells are at least this large.
+    private static final int MAX_GRID_CELLS_PER_AXIS = 64;
+    private static final float MIN_GRID_CELL_SIZE = 0.1f; // Units: meters.
+
+    // The plane equations: the signed distance of a point p to plane i is
+    // dot(normal_i, p) + offset_i, where the normal is the Y axis of the plane's pose.
+    private float[] normalsX = new float[16];
+    private float[] normalsY = new float[16];
+    private float[] normalsZ = new float[16];
+    private float[] offsets = new float[16];
+    private int numPlanes;
+    private float maxPlaneDistance = DEFAULT_MAX_PLANE_DISTANCE;
+
+    // The bounded planes.  Equations are stored as normal x, y, z then offset, and frames as
+    // origin, X axis then Z axis.  The polygon of plane i is given by the (x, z) pairs of
+    // polygonVertices in [polygonStarts[i], polygonStarts[i + 1]), in the frame of the plane.
+    private float[] boundedEquations = new float[4 * 16];
+    private float[] boundedFrames = new float[9 * 16];
+    private int[] polygonStarts = new int[16 + 1];
+    private float[] polygonVertices = new float[2 * 16 * 8];
+    private int numBoundedPlanes;
+
+    // The grid over the footprints of the bounded planes, in compressed rows: the planes whose
+    // footprint overlaps cell i are in gridPlanes, from gridCellStarts[i] up to
+    // gridCellStarts[i + 1] excluded.
+    private boolean gridDirty;
+    private float gridMinX;
+    private float gridMinZ;
+    private float gridCellSize;
+    private int gridCellsX;
+    private int gridCellsZ;
+    private int[] gridCellStarts = new int[1];
+    private int[] gridPlanes = new int[16];
+    private float[] footprints = new float[4 * 16];
+
+    // Scratch storage of the filtering on the calling thread.
+    private final PointSlice serialSlice = new PointSlice();
+
+    // Parallel filtering. The executor is null when filtering on the calling thread.
+    private int workerCount = 1;
+    private ExecutorService executor;
+    private final List<PointSlice> slices = new ArrayList<>();
+
+    public PlaneFilter() {}
+
+    /** Creates a filter that splits the points across {@code workerCount} threads. */
+    public PlaneFilter(int workerCount) {
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * Sets the number of threads used to filter the points. A value of 1 filters on the calling
+     * thread.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        if (workerCount == this.workerCount) {
+            return;
+        }
+        shutdown();
+        this.workerCount = workerCount;
+        if (workerCount > 1) {
+            executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+                Thread thread = new Thread(runnable, "PlaneFilter worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /** Stops the worker threads. Filtering keeps working on the calling thread afterwards. */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        workerCount = 1;
+    }
+
+    /** Sets the largest distance to a plane at which points are removed. Units: meters. */
+    public void setMaxPlaneDistance(float maxPlaneDistance) {
+        if (!(maxPlaneDistance >= 0)) {
+            throw new IllegalArgumentException(
+                    "maxPlaneDistance must not be negative: " + maxPlaneDistance);
+        }
+        this.maxPlaneDistance = maxPlaneDistance;
+        gridDirty = true;
+    }
+
+    public float getMaxPlaneDistance() {
+        return maxPlaneDistance;
+    }
+
+    /** Removes all planes. */
+    public void clearPlanes() {
+        numPlanes = 0;
+        numBoundedPlanes = 0;
+        gridDirty = true;
+    }
+
+    /** Adds a plane, given its column-major plane-to-world matrix. */
+    public void addPlane(float[] planeMatrix, int offset) {
+        if (numPlanes == offsets.length) {
+            normalsX = Arrays.copyOf(normalsX, 2 * numPlanes);
+            normalsY = Arrays.copyOf(normalsY, 2 * numPlanes);
+            normalsZ = Arrays.copyOf(normalsZ, 2 * numPlanes);
+            offsets = Arrays.copyOf(offsets, 2 * numPlanes);
+        }
+        // The normal is the second column of the rotation, and the plane goes through the
+        // translation.
+        final float normalX = planeMatrix[offset + 4];
+        final float normalY = planeMatrix[offset + 5];
+        final float normalZ = planeMatrix[offset + 6];
+        normalsX[numPlanes] = normalX;
+        normalsY[numPlanes] = normalY;
+        normalsZ[numPlanes] = normalZ;
+        offsets[numPlanes] = -(normalX * planeMatrix[offset + 12]
+                + normalY * planeMatrix[offset + 13]
+                + normalZ * planeMatrix[offset + 14]);
+        ++numPlanes;
+    }
+
+    /**
+     * Adds a plane bounded by a convex polygon, given its column-major plane-to-world matrix and
+     * the (x, z) vertices of the polygon in the frame of the plane, as returned by
+     * Plane.getPolygon().  The position of {@code polygon} is left unchanged.  Polygons with
+     * fewer than three vertices cover no point, and are ignored.
+     */
+    public void addPlane(float[] planeMatrix, int offset, FloatBuffer polygon) {
+        final int numVertices = polygon.remaining() / 2;
+        if (numVertices < 3) {
+            return;
+        }
+        final int plane = numBoundedPlanes++;
+        if (4 * numBoundedPlanes > boundedEquations.length) {
+            boundedEquations = Arrays.copyOf(boundedEquations, 8 * numBoundedPlanes);
+            boundedFrames = Arrays.copyOf(boundedFrames, 18 * numBoundedPlanes);
+            polygonStarts = Arrays.copyOf(polygonStarts, 2 * numBoundedPlanes + 1);
+            footprints = Arrays.copyOf(footprints, 8 * numBoundedPlanes);
+        }
+
+        final float normalX = planeMatrix[offset + 4];
+        final float normalY = planeMatrix[offset + 5];
+        final float normalZ = planeMatrix[offset + 6];
+        final float originX = planeMatrix[offset + 12];
+        final float originY = planeMatrix[offset + 13];
+        final float originZ = planeMatrix[offset + 14];
+        boundedEquations[4 * plane] = normalX;
+        boundedEquations[4 * plane + 1] = normalY;
+        boundedEquations[4 * plane + 2] = normalZ;
+        boundedEquations[4 * plane + 3] =
+                -(normalX * originX + normalY * originY + normalZ * originZ);
+        boundedFrames[9 * plane] = originX;
+        boundedFrames[9 * plane + 1] = originY;
+        boundedFrames[9 * plane + 2] = originZ;
+        System.arraycopy(planeMatrix, offset, boundedFrames, 9 * plane + 3, 3);
+        System.arraycopy(planeMatrix, offset + 8, boundedFrames, 9 * plane + 6, 3);
+
+        // Copies the polygon, and finds its footprint on the world XZ plane.
+        final int start = polygonStarts[plane];
+        if (start + 2 * numVertices > polygonVertices.length) {
+            polygonVertices = Arrays.copyOf(polygonVertices, 2 * (start + 2 * numVertices));
+        }
+        float minX = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < 2 * numVertices; i += 2) {
+            final float localX = polygon.get(polygon.position() + i);
+            final float localZ = polygon.get(polygon.position() + i + 1);
+            polygonVertices[start + i] = localX;
+            polygonVertices[start + i + 1] = localZ;
+            final float worldX =
+                    originX + localX * planeMatrix[offset] + localZ * planeMatrix[offset + 8];
+            final float worldZ =
+                    originZ + localX * planeMatrix[offset + 2] + localZ * planeMatrix[offset + 10];
+            minX = Math.min(minX, worldX);
+            minZ = Math.min(minZ, worldZ);
+            maxX = Math.max(maxX, worldX);
+            maxZ = Math.max(maxZ, worldZ);
+        }
+        polygonStarts[plane + 1] = start + 2 * numVertices;
+        footprints[4 * plane] = minX;
+        footprints[4 * plane + 1] = minZ;
+        footprints[4 * plane + 2] = maxX;
+        footprints[4 * plane + 3] = maxZ;
+        gridDirty = true;
+    }
+
+    public int getNumPlanes() {
+        return numPlanes + numBoundedPlanes;
+    }
+
+    /** Number of planes bounded by a polygon, counted in {@link #getNumPlanes()}. */
+    public int getNumBoundedPlanes() {
+        return numBoundedPlanes;
+    }
+
+    /**
+     * Removes the bounded planes added after the first {@code numBoundedPlanes} ones, e.g. planes
+     * that were only added for one frame. The other planes are kept.
+     */
+    public void truncateBoundedPlanes(int numBoundedPlanes) {
+        if (numBoundedPlanes < 0 || numBoundedPlanes > this.numBoundedPlanes) {
+            throw new IllegalArgumentException("numBoundedPlanes must be in [0, "
+                    + this.numBoundedPlanes + "]: " + numBoundedPlanes);
+        }
+        this.numBoundedPlanes = numBoundedPlanes;
+        gridDirty = true;
+    }
+
+    /**
+     * Removes the points between the position and the limit of {@code points} that are too close
+     * to any of the planes. The kept points are moved to the start of that range, in their
+     * original order, and the limit is set to the end of the last one; the position is left
+     * unchanged.
+     *
+     * @return the number of points kept.
+     */
+    public int filter(FloatBuffer points) {
+        final int numPoints = points.remaining() / DepthPointConverter.FLOATS_PER_POINT;
+        if (numPlanes == 0 && numBoundedPlanes == 0) {
+            return numPoints;
+        }
+        prepare();
+        final int numKept;
+        if (executor == null) {
+            serialSlice.prepare(points, 0, numPoints);
+            numKept = serialSlice.call();
+        } else {
+            numKept = filterInParallel(points, numPoints);
+        }
+        points.limit(points.position() + numKept * DepthPointConverter.FLOATS_PER_POINT);
+        return numKept;
+    }
+
+    /**
+     * Returns true if a point is too close to any of the planes. {@link #prepare()} must have been
+     * called since the planes last changed. Only reads the planes, so it may be called from
+     * several threads at once.
+     */
+    public boolean isOnPlane(float x, float y, float z) {
+        for (int plane = 0; plane < numPlanes; ++plane) {
+            final float distance = normalsX[plane] * x + normalsY[plane] * y
+                    + normalsZ[plane] * z + offsets[plane];
+            if (Math.abs(distance) <= maxPlaneDistance) {
+                return true;
+            }
+        }
+        return numBoundedPlanes > 0 && isOnBoundedPlane(x, y, z);
+    }
+
+    /**
+     * Removes the points of a chunk that are too close to any of the planes, keeping the others in
+     * order. Each plane is tested against the whole chunk in a loop the JIT can vectorize, and
+     * bounded planes are looked up through the grid of their footprints. {@link #prepare()} must
+     * have been called since the planes last changed. Only reads the planes, so it may be called
+     * from several threads at once, on different chunks.
+     */
+    public void filter(PointChunk chunk) {
+        final int count = chunk.size();
+        if (count == 0 || (numPlanes == 0 && numBoundedPlanes == 0)) {
+            return;
+        }
+        final float[] xs = chunk.getXs();
+        final float[] ys = chunk.getYs();
+        final float[] zs = chunk.getZs();
+        final float[] minDistances = chunk.getScratch();
+        Arrays.fill(minDistances, 0, count, Float.MAX_VALUE);
+
+        // Planes are tested against the whole chunk rather than exiting early per point, since the
+        // branch-free inner loop is vectorized and is faster overall.
+        for (int plane = 0; plane < numPlanes; ++plane) {
+            final float normalX = normalsX[plane];
+            final float normalY = normalsY[plane];
+            final float normalZ = normalsZ[plane];
+            final float offset = offsets[plane];
+            for (int i = 0; i < count; ++i) {
+                final float distance = normalX * xs[i] + normalY * ys[i] + normalZ * zs[i] + offset;
+                minDistances[i] = Math.min(minDistances[i], Math.abs(distance));
+            }
+        }
+
+        // Compacts the points that are far enough from planar surfaces.
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            if (minDistances[i] <= maxPlaneDistance
+                    || (numBoundedPlanes > 0 && isOnBoundedPlane(xs[i], ys[i], zs[i]))) {
+                continue;
+            }
+            if (kept != i) {
+                chunk.move(i, kept);
+            }
+            ++kept;
+        }
+        chunk.setSize(kept);
+    }
+
+    /** Rebuilds the lookup structures of the planes if they changed since the last call. */
+    public void prepare() {
+        if (gridDirty) {
+            buildGrid();
+            gridDirty = false;
+        }
+    }
+
+    /**
+     * Builds the grid over the footprints of the bounded planes.  The footprints are grown by the
+     * distance threshold, which covers the points off a tilted plane.
+     */
+    private void buildGrid() {
+        gridCellsX = 0;
+        gridCellsZ = 0;
+        if (numBoundedPlanes == 0) {
+            return;
+        }
+        float minX = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int plane = 0; plane < numBoundedPlanes; ++plane) {
+            minX = Math.min(minX, footprints[4 * plane]);
+            minZ = Math.min(minZ, footprints[4 * plane + 1]);
+            maxX = Math.max(maxX, footprints[4 * plane + 2]);
+            maxZ = Math.max(maxZ, footprints[4 * plane + 3]);
+        }
+        minX -= maxPlaneDistance;
+        minZ -= maxPlaneDistance;
+        maxX += maxPlaneDistance;
+        maxZ += maxPlaneDistance;
+        gridMinX = minX;
+        gridMinZ = minZ;
+        gridCellSize = Math.max(MIN_GRID_CELL_SIZE,
+                Math.max(maxX - minX, maxZ - minZ) / MAX_GRID_CELLS_PER_AXIS);
+        gridCellsX = Math.max(1, Math.min(MAX_GRID_CELLS_PER_AXIS,
+                (int) Math.ceil((maxX - minX) / gridCellSize)));
+        gridCellsZ = Math.max(1, Math.min(MAX_GRID_CELLS_PER_AXIS,
+                (int) Math.ceil((maxZ - minZ) / gridCellSize)));
+        final int numCells = gridCellsX * gridCellsZ;
+        if (gridCellStarts.length < numCells + 1) {
+            gridCellStarts = new int[numCells + 1];
+        }
+        Arrays.fill(gridCellStarts, 0, numCells + 1, 0);
+
+        // Counts the planes of each cell, turns the counts into start offsets, then fills the
+        // cells in the order of the planes.
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int plane = 0; plane < numBoundedPlanes; ++plane) {
+                final int firstX = gridCellX(footprints[4 * plane] - maxPlaneDistance);
+                final int firstZ = gridCellZ(footprints[4 * plane + 1] - maxPlaneDistance);
+                final int lastX = gridCellX(footprints[4 * plane + 2] + maxPlaneDistance);
+                final int lastZ = gridCellZ(footprints[4 * plane + 3] + maxPlaneDistance);
+                for (int z = firstZ; z <= lastZ; ++z) {
+                    for (int x = firstX; x <= lastX; ++x) {
+                        final int cell = z * gridCellsX + x;
+                        if (pass == 0) {
+                            ++gridCellStarts[cell + 1];
+                        } else {
+                            gridPlanes[gridCellStarts[cell]++] = plane;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < numCells; ++cell) {
+                    gridCellStarts[cell + 1] += gridCellStarts[cell];
+                }
+                if (gridPlanes.length < gridCellStarts[numCells]) {
+                    gridPlanes = new int[2 * gridCellStarts[numCells]];
+                }
+            }
+        }
+        // Filling advanced each start to the start of the next cell.
+        for (int cell = numCells; cell > 0; --cell) {
+            gridCellStarts[cell] = gridCellStarts[cell - 1];
+        }
+        gridCellStarts[0] = 0;
+    }
+
+    private int gridCellX(float x) {
+        return Math.max(0, Math.min(gridCellsX - 1, (int) ((x - gridMinX) / gridCellSize)));
+    }
+
+    private int gridCellZ(float z) {
+        return Math.max(0, Math.min(gridCellsZ - 1, (int) ((z - gridMinZ) / gridCellSize)));
+    }
+
+    /**
+     * Returns true if a point is close enough to a bounded plane, and above or below its polygon.
+     * Only reads the planes, so slices may call it concurrently.
+     */
+    private boolean isOnBoundedPlane(float x, float y, float z) {
+        if (gridCellsX == 0) {
+            return false;
+        }
+        final float cellX = (x - gridMinX) / gridCellSize;
+        final float cellZ = (z - gridMinZ) / gridCellSize;
+        if (!(cellX >= 0 && cellX < gridCellsX && cellZ >= 0 && cellZ < gridCellsZ)) {
+            return false;  // Outside of every footprint.
+        }
+        final int cell = (int) cellZ * gridCellsX + (int) cellX;
+        for (int i = gridCellStarts[cell]; i < gridCellStarts[cell + 1]; ++i) {
+            final int plane = gridPlanes[i];
+            final float distance = boundedEquations[4 * plane] * x
+                    + boundedEquations[4 * plane + 1] * y
+                    + boundedEquations[4 * plane + 2] * z
+                    + boundedEquations[4 * plane + 3];
+            if (Math.abs(distance) > maxPlaneDistance) {
+                continue;
+            }
+
+            // Projects the point into the frame of the plane, and tests it against the edges of
+            // the convex polygon: it is inside if it is on the same side of all of them.
+            final float relativeX = x - boundedFrames[9 * plane];
+            final float relativeY = y - boundedFrames[9 * plane + 1];
+            final float relativeZ = z - boundedFrames[9 * plane + 2];
+            final float localX = relativeX * boundedFrames[9 * plane + 3]
+                    + relativeY * boundedFrames[9 * plane + 4]
+                    + relativeZ * boundedFrames[9 * plane + 5];
+            final float localZ = relativeX * boundedFrames[9 * plane + 6]
+                    + relativeY * boundedFrames[9 * plane + 7]
+                    + relativeZ * boundedFrames[9 * plane + 8];
+            if (isInConvexPolygon(localX, localZ, polygonStarts[plane], polygonStarts[plane + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if (x, z) is inside or on the edge of the polygon in [start, end). */
+    private boolean isInConvexPolygon(float x, float z, int start, int end) {
+        boolean hasPositive = false;
+        boolean hasNegative = false;
+        float previousX = polygonVertices[end - 2];
+        float previousZ = polygonVertices[end - 1];
+        for (int i = start; i < end; i += 2) {
+            final float vertexX = polygonVertices[i];
+            final float vertexZ = polygonVertices[i + 1];
+            final float cross = (vertexX - previousX) * (z - previousZ)
+                    - (vertexZ - previousZ) * (x - previousX);
+            hasPositive |= cross > 0;
+            hasNegative |= cross < 0;
+            if (hasPositive && hasNegative) {
+                return false;
+            }
+            previousX = vertexX;
+            previousZ = vertexZ;
+        }
+        return true;
+    }
+
+    /**
+     * Filters the points as slices on the worker pool, and returns the number of points kept.
+     * Slices are whole numbers of chunks.
+     */
+    private int filterInParallel(FloatBuffer points, int numPoints) {
+        final int numChunks = (numPoints + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int numSlices = Math.max(1, Math.min(numChunks, workerCount * SLICES_PER_WORKER));
+        final int pointsPerSlice = (numChunks + numSlices - 1) / numSlices * CHUNK_SIZE;
+        while (slices.size() < numSlices) {
+            slices.add(new PointSlice());
+        }
+        for (int i = 0; i < numSlices; ++i) {
+            final int firstPoint = Math.min(numPoints, i * pointsPerSlice);
+            final int endPoint = Math.min(numPoints, firstPoint + pointsPerSlice);
+            slices.get(i).prepare(points, firstPoint, endPoint);
+        }
+
+        try {
+            for (Future<?> result : executor.invokeAll(slices.subList(0, numSlices))) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filtering points", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to filter points", e.getCause());
+        }
+
+        // Each slice compacted its points to the start of its own range.  The ranges are moved
+        // down next to each other; the moves only go towards the start of the buffer, so copying
+        // chunk by chunk in increasing order never overwrites points that are yet to be moved.
+        final int floatsPerPoint = DepthPointConverter.FLOATS_PER_POINT;
+        final float[] chunk = serialSlice.interleaved;
+        final int base = points.position();
+        final FloatBuffer view = points.duplicate();
+        int numKept = slices.get(0).numKept;
+        for (int i = 1; i < numSlices; ++i) {
+            final PointSlice slice = slices.get(i);
+            if (slice.firstPoint != numKept) {
+                for (int start = 0; start < slice.numKept; start += CHUNK_SIZE) {
+                    final int count = Math.min(CHUNK_SIZE, slice.numKept - start);
+                    view.position(base + floatsPerPoint * (slice.firstPoint + start));
+                    view.get(chunk, 0, floatsPerPoint * count);
+                    view.position(base + floatsPerPoint * (numKept + start));
+                    view.put(chunk, 0, floatsPerPoint * count);
+                }
+            }
+            numKept += slice.numKept;
+        }
+        return numKept;
+    }
+
+    /** A range of points filtered by one worker, with its own view of the buffer and scratch. */
+    private class PointSlice implements Callable<Integer> {
+        private final float[] interleaved =
+                new float[CHUNK_SIZE * DepthPointConverter.FLOATS_PER_POINT];
+        private final PointChunk chunk = new PointChunk();
+        private FloatBuffer points;
+        private int base;
+        private int firstPoint;
+        private int endPoint;
+        private int numKept;
+
+        void prepare(FloatBuffer points, int firstPoint, int endPoint) {
+            // Each slice moves the position of its own view, leaving the caller's buffer as is.
+            this.points = points.duplicate();
+            this.base = points.position();
+            this.firstPoint = firstPoint;
+            this.endPoint = endPoint;
+        }
+
+        /**
+         * Filters the points of the slice, moving the kept ones to the start of its range, and
+         * returns their number.
+         */
+        @Override
+        public Integer call() {
+            final int floatsPerPoint = DepthPointConverter.FLOATS_PER_POINT;
+            final float[] xs = chunk.getXs();
+            final float[] ys = chunk.getYs();
+            final float[] zs = chunk.getZs();
+            final float[] confidences = chunk.getConfidences();
+            numKept = 0;
+            for (int start = firstPoint; start < endPoint; start += CHUNK_SIZE) {
+                final int count = Math.min(CHUNK_SIZE, endPoint - start);
+                points.position(base + floatsPerPoint * start);
+                points.get(interleaved, 0, floatsPerPoint * count);
+                for (int i = 0; i < count; ++i) {
+                    xs[i] = interleaved[floatsPerPoint * i];
+                    ys[i] = interleaved[floatsPerPoint * i + 1];
+                    zs[i] = interleaved[floatsPerPoint * i + 2];
+                    confidences[i] = interleaved[floatsPerPoint * i + 3];
+                }
+                chunk.setSize(count);
+                filter(chunk);
+
+                // Writes the kept points after those kept so far, which never passes the chunk.
+                final int kept = chunk.size();
+                if (kept > 0 && (kept < count || firstPoint + numKept != start)) {
+                    for (int i = 0; i < kept; ++i) {
+                        interleaved[floatsPerPoint * i] = xs[i];
+                        interleaved[floatsPerPoint * i + 1] = ys[i];
+                        interleaved[floatsPerPoint * i + 2] = zs[i];
+                        interleaved[floatsPerPoint * i + 3] = confidences[i];
+                    }
+                    points.position(base + floatsPerPoint * (firstPoint + numKept));
+                    points.put(interleaved, 0, floatsPerPoint * kept);
+                }
+                numKept += kept;
+            }
+            return numKept;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles point buffers between frames. Buffers are handed out by {@link #acquire(int)} and
+ * returned with {@link #release(FloatBuffer)}; once the pool is warm, acquiring a buffer does not
+ * allocate.
+ *
+ * <p>Buffers are direct and in native byte order, so they can be uploaded to OpenGL as they are.
+ */
+public class PointBufferPool {
+    private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
+
+    private final ArrayDeque<FloatBuffer> freeBuffers = new ArrayDeque<>();
+    private long allocationCount;
+
+    /**
+     * Returns a cleared buffer that can hold at least {@code numPoints} points. The buffer must be
+     * handed back with {@link #release(FloatBuffer)} once it is no longer used.
+     */
+    public FloatBuffer acquire(int numPoints) {
+        final int numFloats = numPoints * DepthPointConverter.FLOATS_PER_POINT;
+        FloatBuffer buffer = freeBuffers.pollFirst();
+        if (buffer == null || buffer.capacity() < numFloats) {
+            // Buffers that are too small are dropped, so the pool converges to the largest size.
+            buffer = ByteBuffer.allocateDirect(numFloats * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            ++allocationCount;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from {@link #acquire(int)} to the pool. */
+    public void release(FloatBuffer buffer) {
+        if (buffer != null) {
+            freeBuffers.offerFirst(buffer);
+        }
+    }
+
+    /** Number of buffers allocated by this pool since it was created. */
+    public long getAllocationCount() {
+        return allocationCount;
+    }
+}
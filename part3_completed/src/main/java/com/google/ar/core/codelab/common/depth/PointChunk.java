@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A small batch of world points, stored as one array per coordinate so that filters can test the
+ * whole batch in loops the JIT can vectorize. Filters remove points by moving the kept ones to the
+ * start of the arrays, in order, and setting the size to their number.
+ */
+public final class PointChunk {
+    /** Number of points of a chunk, small enough for the chunk to stay in the L1 cache. */
+    public static final int CAPACITY = 256;
+
+    private final float[] xs = new float[CAPACITY];
+    private final float[] ys = new float[CAPACITY];
+    private final float[] zs = new float[CAPACITY];
+    private final float[] confidences = new float[CAPACITY];
+    private final float[] scratch = new float[CAPACITY];
+    private final float[] interleaved = new float[CAPACITY * DepthPointConverter.FLOATS_PER_POINT];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /** Keeps the first {@code size} points. */
+    public void setSize(int size) {
+        if (size < 0 || size > CAPACITY) {
+            throw new IllegalArgumentException("size must be in [0, " + CAPACITY + "]: " + size);
+        }
+        this.size = size;
+    }
+
+    public float[] getXs() {
+        return xs;
+    }
+
+    public float[] getYs() {
+        return ys;
+    }
+
+    public float[] getZs() {
+        return zs;
+    }
+
+    public float[] getConfidences() {
+        return confidences;
+    }
+
+    /** Returns an array of {@link #CAPACITY} floats that filters may use as they like. */
+    public float[] getScratch() {
+        return scratch;
+    }
+
+    /** Moves point {@code from} to index {@code to}, e.g. when compacting the kept points. */
+    public void move(int from, int to) {
+        xs[to] = xs[from];
+        ys[to] = ys[from];
+        zs[to] = zs[from];
+        confidences[to] = confidences[from];
+    }
+
+    /** Writes the points to {@code points} as X,Y,Z,confidence, and empties the chunk. */
+    void write(FloatBuffer points) {
+        // A bulk put is much faster than a put per float on a direct buffer.
+        for (int i = 0; i < size; ++i) {
+            interleaved[4 * i] = xs[i];
+            interleaved[4 * i + 1] = ys[i];
+            interleaved[4 * i + 2] = zs[i];
+            interleaved[4 * i + 3] = confidences[i];
+        }
+        points.put(interleaved, 0, 4 * size);
+        size = 0;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+/**
+ * A stage of a {@link PointFilterPipeline}, which decides whether a depth sample is kept.
+ *
+ * <p>Filters that only need the depth and confidence of a sample are {@link Stage#SAMPLE}
+ * filters, tested before the sample is unprojected, so that rejected samples cost no more than a
+ * comparison. The others are {@link Stage#POINT} filters, tested on the point in world
+ * coordinates before it is written out.
+ */
+public abstract class PointFilter {
+    /** When a filter is tested. */
+    public enum Stage {
+        SAMPLE,
+        POINT
+    }
+
+    public abstract Stage getStage();
+
+    /** Returns true if a depth sample is kept. Only called on {@link Stage#SAMPLE} filters. */
+    public boolean acceptSample(float depthMeters, float confidence) {
+        return true;
+    }
+
+    /** Returns true if a world point is kept. Only called on {@link Stage#POINT} filters. */
+    public boolean acceptPoint(float x, float y, float z, float confidence) {
+        return true;
+    }
+
+    /**
+     * Removes the points of a chunk that are not kept, moving the kept ones to the start of the
+     * chunk in order. Only called on {@link Stage#POINT} filters, with the points that all earlier
+     * point filters kept. Tests {@link #acceptPoint} on each point by default; filters that test
+     * a whole chunk faster override it.
+     */
+    public void acceptPoints(PointChunk chunk) {
+        final float[] xs = chunk.getXs();
+        final float[] ys = chunk.getYs();
+        final float[] zs = chunk.getZs();
+        final float[] confidences = chunk.getConfidences();
+        final int count = chunk.size();
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            if (!acceptPoint(xs[i], ys[i], zs[i], confidences[i])) {
+                continue;
+            }
+            if (kept != i) {
+                chunk.move(i, kept);
+            }
+            ++kept;
+        }
+        chunk.setSize(kept);
+    }
+
+    /** Called before the samples of a new frame are tested, e.g. to clear per-frame state. */
+    public void beginFrame() {}
+
+    /**
+     * Returns true if the filter may be tested from several threads at once, which is the case of
+     * filters that only read their settings. Pipelines with a filter that is not thread-safe
+     * run on the calling thread.
+     */
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
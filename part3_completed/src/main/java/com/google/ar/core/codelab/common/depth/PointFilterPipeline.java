@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.util.Arrays;
+
+/**
+ * An ordered list of {@link PointFilter}s, tested together on every depth sample as it is
+ * converted by {@link DepthPointConverter}, so that adding a filter adds a test to the conversion
+ * loop rather than another pass over the points. A sample is rejected by the first filter that
+ * does not accept it; sample filters are tested before point filters, and filters of the same
+ * stage in the order they were added.
+ *
+ * <p>The number of samples rejected by each filter, and the number of points kept, are counted
+ * for the last converted frame. Filters and their thresholds may be changed between frames.
+ */
+public class PointFilterPipeline {
+    private static final PointFilter[] NO_FILTERS = new PointFilter[0];
+
+    // All the filters, in the order they were added, then the filters of each stage with their
+    // index among all the filters, which is the index of their rejection counter.
+    private PointFilter[] filters = NO_FILTERS;
+    private PointFilter[] sampleFilters = NO_FILTERS;
+    private int[] sampleFilterIndices = new int[0];
+    private PointFilter[] pointFilters = NO_FILTERS;
+    private int[] pointFilterIndices = new int[0];
+
+    // Counters of the last frame.
+    private long[] rejectedCounts = new long[0];
+    private long acceptedCount;
+
+    /** Appends a filter, and returns this pipeline so that filters can be chained. */
+    public PointFilterPipeline addFilter(PointFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        final int index = filters.length;
+        filters = Arrays.copyOf(filters, index + 1);
+        filters[index] = filter;
+        rejectedCounts = new long[filters.length];
+        if (filter.getStage() == PointFilter.Stage.SAMPLE) {
+            sampleFilters = Arrays.copyOf(sampleFilters, sampleFilters.length + 1);
+            sampleFilters[sampleFilters.length - 1] = filter;
+            sampleFilterIndices = Arrays.copyOf(sampleFilterIndices, sampleFilters.length);
+            sampleFilterIndices[sampleFilters.length - 1] = index;
+        } else {
+            pointFilters = Arrays.copyOf(pointFilters, pointFilters.length + 1);
+            pointFilters[pointFilters.length - 1] = filter;
+            pointFilterIndices = Arrays.copyOf(pointFilterIndices, pointFilters.length);
+            pointFilterIndices[pointFilters.length - 1] = index;
+        }
+        return this;
+    }
+
+    /** Removes all filters, so that every valid sample is kept. */
+    public void clearFilters() {
+        filters = NO_FILTERS;
+        sampleFilters = NO_FILTERS;
+        sampleFilterIndices = new int[0];
+        pointFilters = NO_FILTERS;
+        pointFilterIndices = new int[0];
+        rejectedCounts = new long[0];
+        acceptedCount = 0;
+    }
+
+    public int getNumFilters() {
+        return filters.length;
+    }
+
+    /** Returns a filter, in the order they were added. */
+    public PointFilter getFilter(int index) {
+        return filters[index];
+    }
+
+    /** Returns true if some filters need the samples unprojected to world points. */
+    public boolean hasPointFilters() {
+        return pointFilters.length > 0;
+    }
+
+    /** Returns true if all filters may be tested from several threads at once. */
+    public boolean isThreadSafe() {
+        for (PointFilter filter : filters) {
+            if (!filter.isThreadSafe()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Number of samples of the last frame rejected by the filter of the given index. */
+    public long getRejectedCount(int index) {
+        return rejectedCounts[index];
+    }
+
+    /** Number of points of the last frame kept by all filters. */
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /** Prepares the filters for a new frame, and resets the counters. */
+    void beginFrame() {
+        for (PointFilter filter : filters) {
+            filter.beginFrame();
+        }
+        Arrays.fill(rejectedCounts, 0);
+        acceptedCount = 0;
+    }
+
+    /**
+     * Tests a sample against the sample filters. If it is rejected, the counter of the rejecting
+     * filter is incremented in {@code rejected}, which is indexed like the filters.
+     */
+    boolean acceptSample(float depthMeters, float confidence, int[] rejected) {
+        for (int i = 0; i < sampleFilters.length; ++i) {
+            if (!sampleFilters[i].acceptSample(depthMeters, confidence)) {
+                ++rejected[sampleFilterIndices[i]];
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the points of a chunk rejected by the point filters, counting rejections like
+     * acceptSample. Each filter is given the points kept by the filters before it.
+     */
+    void acceptPoints(PointChunk chunk, int[] rejected) {
+        for (int i = 0; i < pointFilters.length && chunk.size() > 0; ++i) {
+            final int count = chunk.size();
+            pointFilters[i].acceptPoints(chunk);
+            rejected[pointFilterIndices[i]] += count - chunk.size();
+        }
+    }
+
+    /**
+     * Adds the rejection counters of a range of samples to those of the frame, and clears them.
+     * Counters are kept per range so that ranges can be filtered concurrently.
+     */
+    void addCounts(int[] rejected, int accepted) {
+        for (int i = 0; i < rejectedCounts.length; ++i) {
+            rejectedCounts[i] += rejected[i];
+            rejected[i] = 0;
+        }
+        acceptedCount += accepted;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Applies a rigid transform to points in plain Java. Only the 3x4 affine part of the matrix is
+ * kept, since the bottom row of a pose matrix is always (0, 0, 0, 1). Once the matrix is set, the
+ * transformer is read-only and can be shared between threads.
+ */
+public class PointTransformer {
+    // Row-major 3x4 affine transform.
+    private float m00, m01, m02, m03;
+    private float m10, m11, m12, m13;
+    private float m20, m21, m22, m23;
+
+    /** Creates an identity transform. */
+    public PointTransformer() {
+        m00 = 1;
+        m11 = 1;
+        m22 = 1;
+    }
+
+    /** Sets the transform from a column-major 4x4 matrix, as produced by Pose.toMatrix(). */
+    public void setMatrix(float[] matrix, int offset) {
+        m00 = matrix[offset];
+        m10 = matrix[offset + 1];
+        m20 = matrix[offset + 2];
+        m01 = matrix[offset + 4];
+        m11 = matrix[offset + 5];
+        m21 = matrix[offset + 6];
+        m02 = matrix[offset + 8];
+        m12 = matrix[offset + 9];
+        m22 = matrix[offset + 10];
+        m03 = matrix[offset + 12];
+        m13 = matrix[offset + 13];
+        m23 = matrix[offset + 14];
+    }
+
+    /**
+     * Sets the transform to the inverse of a column-major rigid (rotation and translation only)
+     * 4x4 matrix, e.g. to bring world points into the frame of a pose.
+     */
+    public void setInverseRigidMatrix(float[] matrix, int offset) {
+        // The inverse rotation is the transpose, and the inverse translation is -R^T * t.
+        final float tx = matrix[offset + 12];
+        final float ty = matrix[offset + 13];
+        final float tz = matrix[offset + 14];
+        m00 = matrix[offset];
+        m01 = matrix[offset + 1];
+        m02 = matrix[offset + 2];
+        m10 = matrix[offset + 4];
+        m11 = matrix[offset + 5];
+        m12 = matrix[offset + 6];
+        m20 = matrix[offset + 8];
+        m21 = matrix[offset + 9];
+        m22 = matrix[offset + 10];
+        m03 = -(m00 * tx + m01 * ty + m02 * tz);
+        m13 = -(m10 * tx + m11 * ty + m12 * tz);
+        m23 = -(m20 * tx + m21 * ty + m22 * tz);
+    }
+
+    public float transformX(float x, float y, float z) {
+        return m00 * x + m01 * y + m02 * z + m03;
+    }
+
+    public float transformY(float x, float y, float z) {
+        return m10 * x + m11 * y + m12 * z + m13;
+    }
+
+    public float transformZ(float x, float y, float z) {
+        return m20 * x + m21 * y + m22 * z + m23;
+    }
+
+    /**
+     * Unprojects a depth sample along the camera ray (rayX, rayY, -1) and appends the transformed
+     * point and its confidence to {@code points}.
+     */
+    public void putUnprojected(
+            FloatBuffer points, float depth, float rayX, float rayY, float confidence) {
+        points.put(unprojectX(depth, rayX, rayY));
+        points.put(unprojectY(depth, rayX, rayY));
+        points.put(unprojectZ(depth, rayX, rayY));
+        points.put(confidence);
+    }
+
+    /**
+     * Returns the X coordinate of the transformed unprojection of a depth sample. The camera point
+     * is depth * (rayX, rayY, -1), so the transformed direction of the ray is scaled by the depth
+     * and offset by the translation.
+     */
+    public float unprojectX(float depth, float rayX, float rayY) {
+        return depth * (m00 * rayX + m01 * rayY - m02) + m03;
+    }
+
+    /** Returns the Y coordinate of the transformed unprojection of a depth sample. */
+    public float unprojectY(float depth, float rayX, float rayY) {
+        return depth * (m10 * rayX + m11 * rayY - m12) + m13;
+    }
+
+    /** Returns the Z coordinate of the transformed unprojection of a depth sample. */
+    public float unprojectZ(float depth, float rayX, float rayY) {
+        return depth * (m20 * rayX + m21 * rayY - m22) + m23;
+    }
+}
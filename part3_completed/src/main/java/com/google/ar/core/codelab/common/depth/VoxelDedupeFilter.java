@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a single point per voxel of a frame: the first one, in the order of the samples. This
+ * thins out the surfaces close to the camera, where depth samples are the densest, so that later
+ * stages get a point cloud of roughly even density.
+ *
+ * <p>The voxels seen in the current frame are kept in an open-addressing hash set whose slots are
+ * stamped with the frame, so that starting a new frame does not clear the table.
+ *
+ * <p>The set is shared by all the points of a frame, which must be tested in order. A converter
+ * whose pipeline contains this filter therefore converts on the calling thread, whatever its
+ * worker count.
+ */
+public class VoxelDedupeFilter extends PointFilter {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    // Voxel indices are wrapped to 21 bits per axis, and packed into a long.
+    private static final int INDEX_BITS = 21;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private float voxelSize;
+    private float inverseVoxelSize;
+
+    // Slot i holds a voxel of the current frame if stamps[i] == frameStamp.
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] stamps = new int[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int frameStamp = 1;
+    private int numVoxels;
+
+    public VoxelDedupeFilter(float voxelSize) {
+        setVoxelSize(voxelSize);
+    }
+
+    /** Sets the edge length of the voxels. Units: meters. */
+    public void setVoxelSize(float voxelSize) {
+        if (!(voxelSize > 0)) {
+            throw new IllegalArgumentException("voxelSize must be positive: " + voxelSize);
+        }
+        this.voxelSize = voxelSize;
+        this.inverseVoxelSize = 1 / voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /** Number of voxels kept in the current frame. */
+    public int getNumVoxels() {
+        return numVoxels;
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.POINT;
+    }
+
+    @Override
+    public void beginFrame() {
+        numVoxels = 0;
+        if (++frameStamp == 0) {
+            // The stamps wrapped around, so stale slots could match again.
+            Arrays.fill(stamps, 0);
+            frameStamp = 1;
+        }
+    }
+
+    @Override
+    public boolean acceptPoint(float x, float y, float z, float confidence) {
+        final long key = pack((int) Math.floor(x * inverseVoxelSize),
+                (int) Math.floor(y * inverseVoxelSize),
+                (int) Math.floor(z * inverseVoxelSize));
+        int slot = hash(key) & mask;
+        while (stamps[slot] == frameStamp) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        stamps[slot] = frameStamp;
+        if (2 * ++numVoxels > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /** The voxel set is shared by all points of a frame, so the filter must see them in order. */
+    @Override
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /** Doubles the capacity of the table, moving the voxels of the current frame. */
+    private void grow() {
+        final long[] oldKeys = keys;
+        final int[] oldStamps = stamps;
+        keys = new long[2 * oldKeys.length];
+        stamps = new int[2 * oldKeys.length];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldStamps[i] != frameStamp) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (stamps[slot] == frameStamp) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            stamps[slot] = frameStamp;
+        }
+    }
+
+    private static long pack(int x, int y, int z) {
+        return ((x & INDEX_MASK) << (2 * INDEX_BITS)) | ((y & INDEX_MASK) << INDEX_BITS)
+                | (z & INDEX_MASK);
+    }
+
+    private static int hash(long key) {
+        // Fibonacci hashing: the high bits of the product mix all the bits of the key.
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.depth;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs batches of tasks on long-lived daemon threads, together with the calling thread, without
+ * allocating per batch. Executors allocate a future per task and a node per blocked thread on
+ * every batch, which matters for work handed out on every depth frame.
+ *
+ * <p>Threads wait for a batch by parking, and take tasks from a shared counter until none are
+ * left. A batch only returns once every thread has left it, so the next batch can reuse the tasks.
+ * Batches must be run from one thread at a time.
+ */
+final class WorkerPool {
+    private final Thread[] threads;
+
+    // The batch being run. Written by the calling thread before the generation is bumped, which
+    // publishes them to the workers.
+    private Runnable[] tasks;
+    private int numTasks;
+    private Thread caller;
+    private volatile int generation;
+    private volatile boolean shutdown;
+
+    private final AtomicInteger nextTask = new AtomicInteger();
+    // The threads, including the calling thread, that have not left the batch yet.
+    private final AtomicInteger pendingThreads = new AtomicInteger();
+    private volatile Throwable failure;
+
+    /** Starts {@code numThreads} threads; batches run on them and on the calling thread. */
+    WorkerPool(String name, int numThreads) {
+        threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            threads[i] = new Thread(this::work, name);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Runs the first {@code numTasks} tasks, and returns once all of them are done.
+     *
+     * @throws ExecutionException if a task threw, with the first exception as its cause.
+     */
+    void run(Runnable[] tasks, int numTasks) throws ExecutionException {
+        this.tasks = tasks;
+        this.numTasks = numTasks;
+        caller = Thread.currentThread();
+        failure = null;
+        nextTask.set(0);
+        pendingThreads.set(threads.length + 1);
+        ++generation;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+
+        runTasks();
+        // Waits until the workers left the batch, even if interrupted, since they still write
+        // into the outputs of the tasks until then.
+        boolean interrupted = false;
+        while (pendingThreads.get() != 0) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        this.tasks = null;
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+    }
+
+    /** Stops the threads once they finish the batch in progress, if any. */
+    void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void work() {
+        int seenGeneration = 0;
+        while (true) {
+            while (generation == seenGeneration && !shutdown) {
+                LockSupport.park(this);
+            }
+            if (shutdown) {
+                return;
+            }
+            seenGeneration = generation;
+            runTasks();
+        }
+    }
+
+    /** Runs tasks of the current batch until none are left, then leaves the batch. */
+    private void runTasks() {
+        final Runnable[] tasks = this.tasks;
+        final int numTasks = this.numTasks;
+        int task;
+        while ((task = nextTask.getAndIncrement()) < numTasks) {
+            try {
+                tasks[task].run();
+            } catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+        }
+        if (pendingThreads.decrementAndGet() == 0) {
+            LockSupport.unpark(caller);
+        }
+    }
+}
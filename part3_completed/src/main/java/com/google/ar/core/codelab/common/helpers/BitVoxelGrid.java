@@ -0,0 +1,148 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.Arrays;
+
+/**
+ * A dense grid of voxels stored as a bitset, one bit per voxel. Voxels are laid out linearly with
+ * the z index varying fastest, i.e. at bit (x * numCellsY + y) * numCellsZ + z, so that scanning
+ * the bits visits the voxels in x, y, z scan order. The scan skips 64 empty voxels at a time.
+ */
+class BitVoxelGrid extends VoxelGrid {
+    private static final int LOG_BITS_PER_WORD = 6;
+
+    private final int numCellsX;
+    private final int numCellsY;
+    private final int numCellsZ;
+    private final long[] words;
+    private int numOccupied;
+    private int numDropped;
+
+    // The word from which the scan resumes.
+    private int scanWord;
+
+    BitVoxelGrid(int numCellsX, int numCellsY, int numCellsZ) {
+        this.numCellsX = numCellsX;
+        this.numCellsY = numCellsY;
+        this.numCellsZ = numCellsZ;
+        final long numCells = (long) numCellsX * numCellsY * numCellsZ;
+        words = new long[(int) ((numCells + 63) >>> LOG_BITS_PER_WORD)];
+    }
+
+    int getNumCellsX() {
+        return numCellsX;
+    }
+
+    int getNumCellsY() {
+        return numCellsY;
+    }
+
+    int getNumCellsZ() {
+        return numCellsZ;
+    }
+
+    /** Returns the bitset, e.g. to label the voxels in parallel without copying them. */
+    long[] getWords() {
+        return words;
+    }
+
+    /** Clears every voxel. */
+    void clear() {
+        Arrays.fill(words, 0);
+        numOccupied = 0;
+        scanWord = words.length;
+    }
+
+    @Override
+    boolean add(int x, int y, int z) {
+        if (!isInGrid(x, y, z)) {
+            ++numDropped;
+            return false;
+        }
+        final int index = getIndex(x, y, z);
+        final int wordIndex = index >>> LOG_BITS_PER_WORD;
+        final long bit = 1L << index;
+        if ((words[wordIndex] & bit) != 0) {
+            return false;
+        }
+        words[wordIndex] |= bit;
+        ++numOccupied;
+        return true;
+    }
+
+    @Override
+    boolean remove(int x, int y, int z) {
+        if (!isInGrid(x, y, z)) {
+            return false;
+        }
+        final int index = getIndex(x, y, z);
+        final int wordIndex = index >>> LOG_BITS_PER_WORD;
+        final long bit = 1L << index;
+        if ((words[wordIndex] & bit) == 0) {
+            return false;
+        }
+        words[wordIndex] &= ~bit;
+        --numOccupied;
+        return true;
+    }
+
+    @Override
+    boolean contains(int x, int y, int z) {
+        if (!isInGrid(x, y, z)) {
+            return false;
+        }
+        final int index = getIndex(x, y, z);
+        return (words[index >>> LOG_BITS_PER_WORD] & (1L << index)) != 0;
+    }
+
+    @Override
+    int getNumOccupied() {
+        return numOccupied;
+    }
+
+    @Override
+    int getNumDropped() {
+        return numDropped;
+    }
+
+    @Override
+    long nextOccupied() {
+        // Empty words are skipped whole, and the first occupied voxel of a word is found from its
+        // lowest set bit.
+        while (scanWord < words.length) {
+            final long word = words[scanWord];
+            if (word != 0) {
+                final int index = (scanWord << LOG_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+                final int z = index % numCellsZ;
+                final int y = (index / numCellsZ) % numCellsY;
+                final int x = index / (numCellsZ * numCellsY);
+                return pack(x, y, z);
+            }
+            ++scanWord;
+        }
+        return NONE;
+    }
+
+    private boolean isInGrid(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < numCellsX && y < numCellsY && z < numCellsZ;
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return (x * numCellsY + y) * numCellsZ + z;
+    }
+}
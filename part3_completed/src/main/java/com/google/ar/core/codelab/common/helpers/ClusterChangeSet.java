@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.Arrays;
+
+/**
+ * The clusters added, changed and removed by an update of a {@link VoxelMap}, given by their ids.
+ * An id is reported at most once per update, and is not reused within the update that removes
+ * it.
+ */
+public class ClusterChangeSet {
+    private int[] addedIds = new int[16];
+    private int numAdded;
+    private int[] changedIds = new int[16];
+    private int numChanged;
+    private int[] removedIds = new int[16];
+    private int numRemoved;
+
+    public int getAddedCount() {
+        return numAdded;
+    }
+
+    public int getAddedId(int index) {
+        return addedIds[index];
+    }
+
+    /** Returns the number of clusters whose voxels, and possibly bounds, changed. */
+    public int getChangedCount() {
+        return numChanged;
+    }
+
+    public int getChangedId(int index) {
+        return changedIds[index];
+    }
+
+    public int getRemovedCount() {
+        return numRemoved;
+    }
+
+    public int getRemovedId(int index) {
+        return removedIds[index];
+    }
+
+    public boolean isEmpty() {
+        return numAdded == 0 && numChanged == 0 && numRemoved == 0;
+    }
+
+    void clear() {
+        numAdded = 0;
+        numChanged = 0;
+        numRemoved = 0;
+    }
+
+    void addAdded(int id) {
+        addedIds = ensureCapacity(addedIds, numAdded + 1);
+        addedIds[numAdded++] = id;
+    }
+
+    void addChanged(int id) {
+        changedIds = ensureCapacity(changedIds, numChanged + 1);
+        changedIds[numChanged++] = id;
+    }
+
+    void addRemoved(int id) {
+        removedIds = ensureCapacity(removedIds, numRemoved + 1);
+        removedIds[numRemoved++] = id;
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, 2 * size);
+    }
+}
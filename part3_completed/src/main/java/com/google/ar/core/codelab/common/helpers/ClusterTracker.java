@@ -0,0 +1,434 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Follows clusters from frame to frame, giving each one the stable id of a track.  Each update
+ * matches the clusters of a frame to the existing tracks by overlap and distance of their
+ * centroids.  Tracks are confirmed after a few hits, and survive a few missed frames once
+ * confirmed.
+ *
+ * <p>Candidate tracks are found through a uniform grid over the track boxes, so the cost of an
+ * update grows with the number of clusters rather than with the number of pairs.  Storage is
+ * reused from one update to the next.
+ */
+public class ClusterTracker {
+    // Tracks spanning more grid cells than this along an axis are not indexed in the grid, and are
+    // checked against every cluster instead.
+    private static final int MAX_INDEXED_CELLS_PER_AXIS = 4;
+
+    private static final float MIN_CELL_SIZE = 0.01f; // Units: meters.
+
+    private static final long EMPTY = -1;
+
+    private float maxCentroidDistance = 0.2f; // Units: meters.
+    private float minOverlap = 0.1f;
+    private int minHits = 3;
+    private int maxMisses = 5;
+    private float smoothing = 0.5f;
+
+    private int nextId = 1;
+
+    // Tracks, in parallel arrays.  Bounds are stored as min x, y, z then max x, y, z, in meters.
+    private int numTracks;
+    private int[] trackIds = new int[64];
+    private float[] trackBounds = new float[6 * 64];
+    private int[] trackHits = new int[64];
+    private int[] trackMisses = new int[64];
+    private int[] trackAges = new int[64];
+    private boolean[] trackConfirmed = new boolean[64];
+    private int[] trackMatches = new int[64];
+    private int[] trackVisitStamps = new int[64];
+    private int visitStamp;
+
+    // The clusters of the last update, and the tracks they were matched to.
+    private float[] clusterBounds = new float[6 * 64];
+    private int[] clusterTracks = new int[64];
+    private int[] clusterTrackIds = new int[64];
+
+    // The grid over the track boxes: an open-addressing table from cells to the head of a list of
+    // entries, one per track and covered cell.
+    private float cellSize;
+    private long[] cellKeys = new long[64];
+    private int[] cellHeads = new int[64];
+    private int cellMask;
+    private int[] entryTracks = new int[64];
+    private int[] entryNext = new int[64];
+    private int numEntries;
+    private int[] oversizedTracks = new int[16];
+    private int numOversizedTracks;
+
+    // Candidate pairs.  Keys hold the score in the high bits and the pair index in the low bits,
+    // so that sorting them sorts the pairs by score.
+    private long[] pairKeys = new long[64];
+    private int[] pairTracks = new int[64];
+    private int[] pairClusters = new int[64];
+    private int numPairs;
+
+    /**
+     * Sets the distance between the centroids of a cluster and a track below which they may be
+     * matched.  Clusters overlapping a track enough may be matched regardless of the distance.
+     */
+    public void setMaxCentroidDistance(float maxCentroidDistance) {
+        this.maxCentroidDistance = maxCentroidDistance;
+    }
+
+    /** Sets the intersection over union above which a cluster and a track may be matched. */
+    public void setMinOverlap(float minOverlap) {
+        this.minOverlap = minOverlap;
+    }
+
+    /** Sets the number of frames in which a track must be matched before it is confirmed. */
+    public void setMinHits(int minHits) {
+        this.minHits = minHits;
+    }
+
+    /** Sets the number of consecutive frames a confirmed track can miss before it is removed. */
+    public void setMaxMisses(int maxMisses) {
+        this.maxMisses = maxMisses;
+    }
+
+    /**
+     * Sets the weight of the matched cluster in the bounds of a track, in (0, 1].  Lower values
+     * smooth the bounds more, and 1 follows the clusters exactly.
+     */
+    public void setSmoothing(float smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /** Removes every track.  Ids are not reused. */
+    public void clear() {
+        numTracks = 0;
+    }
+
+    public int getNumTracks() {
+        return numTracks;
+    }
+
+    public int getTrackId(int index) {
+        return trackIds[index];
+    }
+
+    /** Returns the number of updates since the track was created. */
+    public int getTrackAge(int index) {
+        return trackAges[index];
+    }
+
+    /** Returns the number of consecutive updates in which the track was not matched. */
+    public int getTrackMisses(int index) {
+        return trackMisses[index];
+    }
+
+    public boolean isTrackConfirmed(int index) {
+        return trackConfirmed[index];
+    }
+
+    /** Sets {@code bounds} to the smoothed bounding box of a track, in meters. */
+    public void getTrackBounds(int index, AABB bounds) {
+        bounds.minX = trackBounds[6 * index];
+        bounds.minY = trackBounds[6 * index + 1];
+        bounds.minZ = trackBounds[6 * index + 2];
+        bounds.maxX = trackBounds[6 * index + 3];
+        bounds.maxY = trackBounds[6 * index + 4];
+        bounds.maxZ = trackBounds[6 * index + 5];
+    }
+
+    /** Returns the id of the track of a cluster given to the last update. */
+    public int getClusterTrackId(int clusterIndex) {
+        return clusterTrackIds[clusterIndex];
+    }
+
+    /**
+     * Matches the clusters of a new frame to the tracks.  Matched tracks are updated, clusters
+     * matching no track start new tracks, and tracks missed for too long are removed.  Track
+     * indices may change, but ids do not.
+     */
+    public void update(List<AABB> clusters) {
+        final int numClusters = clusters.size();
+        if (6 * numClusters > clusterBounds.length) {
+            clusterBounds = new float[12 * numClusters];
+            clusterTracks = new int[2 * numClusters];
+            clusterTrackIds = new int[2 * numClusters];
+        }
+        for (int cluster = 0; cluster < numClusters; ++cluster) {
+            final AABB bounds = clusters.get(cluster);
+            clusterBounds[6 * cluster] = bounds.minX;
+            clusterBounds[6 * cluster + 1] = bounds.minY;
+            clusterBounds[6 * cluster + 2] = bounds.minZ;
+            clusterBounds[6 * cluster + 3] = bounds.maxX;
+            clusterBounds[6 * cluster + 4] = bounds.maxY;
+            clusterBounds[6 * cluster + 5] = bounds.maxZ;
+            clusterTracks[cluster] = -1;
+        }
+
+        indexTracks();
+        numPairs = 0;
+        for (int cluster = 0; cluster < numClusters; ++cluster) {
+            findCandidates(cluster);
+        }
+
+        // Pairs are matched greedily, best score first.
+        Arrays.fill(trackMatches, 0, numTracks, -1);
+        Arrays.sort(pairKeys, 0, numPairs);
+        for (int i = numPairs - 1; i >= 0; --i) {
+            final int pair = (int) pairKeys[i];
+            final int track = pairTracks[pair];
+            final int cluster = pairClusters[pair];
+            if (trackMatches[track] < 0 && clusterTracks[cluster] < 0) {
+                trackMatches[track] = cluster;
+                clusterTracks[cluster] = track;
+            }
+        }
+
+        // Updates the matched tracks, and removes the tracks missed for too long.  Tracks are
+        // visited backwards, so that a removed track is replaced by one already visited.
+        for (int track = numTracks - 1; track >= 0; --track) {
+            ++trackAges[track];
+            final int cluster = trackMatches[track];
+            if (cluster >= 0) {
+                for (int i = 0; i < 6; ++i) {
+                    trackBounds[6 * track + i] += smoothing
+                            * (clusterBounds[6 * cluster + i] - trackBounds[6 * track + i]);
+                }
+                ++trackHits[track];
+                trackMisses[track] = 0;
+                trackConfirmed[track] |= trackHits[track] >= minHits;
+                clusterTrackIds[cluster] = trackIds[track];
+            } else if (!trackConfirmed[track] || ++trackMisses[track] > maxMisses) {
+                removeTrack(track);
+            }
+        }
+
+        // The clusters matching no track start new ones.
+        for (int cluster = 0; cluster < numClusters; ++cluster) {
+            if (clusterTracks[cluster] < 0) {
+                clusterTrackIds[cluster] = addTrack(cluster);
+            }
+        }
+    }
+
+    /** Builds the grid over the boxes of the tracks. */
+    private void indexTracks() {
+        // Cells are about as large as a track box grown by the distance threshold, so that tracks
+        // cover few cells and clusters only need to look up a few cells around them.
+        float sumExtents = 0;
+        for (int track = 0; track < numTracks; ++track) {
+            sumExtents += Math.max(trackBounds[6 * track + 3] - trackBounds[6 * track],
+                    Math.max(trackBounds[6 * track + 4] - trackBounds[6 * track + 1],
+                            trackBounds[6 * track + 5] - trackBounds[6 * track + 2]));
+        }
+        final float meanExtent = numTracks > 0 ? sumExtents / numTracks : 0;
+        cellSize = Math.max(meanExtent + 2 * maxCentroidDistance, MIN_CELL_SIZE);
+        numEntries = 0;
+        numOversizedTracks = 0;
+        if (trackVisitStamps.length < trackIds.length) {
+            trackVisitStamps = Arrays.copyOf(trackVisitStamps, trackIds.length);
+        }
+
+        final int tableSize = VoxelGrid.tableSizeFor(
+                2L * numTracks * MAX_INDEXED_CELLS_PER_AXIS * MAX_INDEXED_CELLS_PER_AXIS);
+        if (cellKeys.length < tableSize) {
+            cellKeys = new long[tableSize];
+            cellHeads = new int[tableSize];
+        }
+        cellMask = tableSize - 1;
+        Arrays.fill(cellKeys, 0, tableSize, EMPTY);
+
+        for (int track = 0; track < numTracks; ++track) {
+            final int minX = cellIndex(trackBounds[6 * track]);
+            final int minY = cellIndex(trackBounds[6 * track + 1]);
+            final int minZ = cellIndex(trackBounds[6 * track + 2]);
+            final int maxX = cellIndex(trackBounds[6 * track + 3]);
+            final int maxY = cellIndex(trackBounds[6 * track + 4]);
+            final int maxZ = cellIndex(trackBounds[6 * track + 5]);
+            if (maxX - minX >= MAX_INDEXED_CELLS_PER_AXIS
+                    || maxY - minY >= MAX_INDEXED_CELLS_PER_AXIS
+                    || maxZ - minZ >= MAX_INDEXED_CELLS_PER_AXIS) {
+                oversizedTracks = ensureCapacity(oversizedTracks, numOversizedTracks + 1);
+                oversizedTracks[numOversizedTracks++] = track;
+                continue;
+            }
+            for (int x = minX; x <= maxX; ++x) {
+                for (int y = minY; y <= maxY; ++y) {
+                    for (int z = minZ; z <= maxZ; ++z) {
+                        addEntry(cellKey(x, y, z), track);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addEntry(long key, int track) {
+        int slot = VoxelGrid.hash(key) & cellMask;
+        while (cellKeys[slot] != EMPTY && cellKeys[slot] != key) {
+            slot = (slot + 1) & cellMask;
+        }
+        if (cellKeys[slot] == EMPTY) {
+            cellKeys[slot] = key;
+            cellHeads[slot] = -1;
+        }
+        entryTracks = ensureCapacity(entryTracks, numEntries + 1);
+        entryNext = ensureCapacity(entryNext, numEntries + 1);
+        entryTracks[numEntries] = track;
+        entryNext[numEntries] = cellHeads[slot];
+        cellHeads[slot] = numEntries++;
+    }
+
+    /** Records the tracks that may be matched to a cluster as candidate pairs. */
+    private void findCandidates(int cluster) {
+        ++visitStamp;
+
+        // A track may match if its box overlaps the cluster's, or if its centroid is close enough.
+        // Both cases overlap the cluster's box grown by the distance threshold.
+        final int minX = cellIndex(clusterBounds[6 * cluster] - maxCentroidDistance);
+        final int minY = cellIndex(clusterBounds[6 * cluster + 1] - maxCentroidDistance);
+        final int minZ = cellIndex(clusterBounds[6 * cluster + 2] - maxCentroidDistance);
+        final int maxX = cellIndex(clusterBounds[6 * cluster + 3] + maxCentroidDistance);
+        final int maxY = cellIndex(clusterBounds[6 * cluster + 4] + maxCentroidDistance);
+        final int maxZ = cellIndex(clusterBounds[6 * cluster + 5] + maxCentroidDistance);
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1) > numEntries) {
+            // Large clusters are cheaper to check against every track.
+            for (int track = 0; track < numTracks; ++track) {
+                addCandidate(track, cluster);
+            }
+            return;
+        }
+
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int z = minZ; z <= maxZ; ++z) {
+                    final long key = cellKey(x, y, z);
+                    int slot = VoxelGrid.hash(key) & cellMask;
+                    while (cellKeys[slot] != EMPTY && cellKeys[slot] != key) {
+                        slot = (slot + 1) & cellMask;
+                    }
+                    if (cellKeys[slot] == EMPTY) {
+                        continue;
+                    }
+                    for (int entry = cellHeads[slot]; entry >= 0; entry = entryNext[entry]) {
+                        addCandidate(entryTracks[entry], cluster);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < numOversizedTracks; ++i) {
+            addCandidate(oversizedTracks[i], cluster);
+        }
+    }
+
+    /** Scores a track against a cluster, recording them as a pair if they may be matched. */
+    private void addCandidate(int track, int cluster) {
+        if (trackVisitStamps[track] == visitStamp) {
+            return;
+        }
+        trackVisitStamps[track] = visitStamp;
+
+        final float[] t = trackBounds;
+        final float[] c = clusterBounds;
+        final int ti = 6 * track;
+        final int ci = 6 * cluster;
+        final float dx = 0.5f * (t[ti] + t[ti + 3] - c[ci] - c[ci + 3]);
+        final float dy = 0.5f * (t[ti + 1] + t[ti + 4] - c[ci + 1] - c[ci + 4]);
+        final float dz = 0.5f * (t[ti + 2] + t[ti + 5] - c[ci + 2] - c[ci + 5]);
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        final float overlapX = Math.min(t[ti + 3], c[ci + 3]) - Math.max(t[ti], c[ci]);
+        final float overlapY = Math.min(t[ti + 4], c[ci + 4]) - Math.max(t[ti + 1], c[ci + 1]);
+        final float overlapZ = Math.min(t[ti + 5], c[ci + 5]) - Math.max(t[ti + 2], c[ci + 2]);
+        float overlap = 0;
+        if (overlapX > 0 && overlapY > 0 && overlapZ > 0) {
+            final float intersection = overlapX * overlapY * overlapZ;
+            final float union = volume(t, ti) + volume(c, ci) - intersection;
+            overlap = union > 0 ? intersection / union : 1;
+        }
+        if (distance > maxCentroidDistance && overlap < minOverlap) {
+            return;
+        }
+
+        // Both terms are in [0, 1], and the score is positive.
+        final float score = overlap + Math.max(0, 1 - distance / maxCentroidDistance) + 1e-6f;
+        pairKeys = ensureCapacity(pairKeys, numPairs + 1);
+        pairTracks = ensureCapacity(pairTracks, numPairs + 1);
+        pairClusters = ensureCapacity(pairClusters, numPairs + 1);
+        // Positive floats sort like their bits.
+        pairKeys[numPairs] = ((long) Float.floatToIntBits(score) << 32) | numPairs;
+        pairTracks[numPairs] = track;
+        pairClusters[numPairs] = cluster;
+        ++numPairs;
+    }
+
+    /** Starts a track from a cluster, and returns its id. */
+    private int addTrack(int cluster) {
+        if (numTracks == trackIds.length) {
+            final int capacity = 2 * numTracks;
+            trackIds = Arrays.copyOf(trackIds, capacity);
+            trackBounds = Arrays.copyOf(trackBounds, 6 * capacity);
+            trackHits = Arrays.copyOf(trackHits, capacity);
+            trackMisses = Arrays.copyOf(trackMisses, capacity);
+            trackAges = Arrays.copyOf(trackAges, capacity);
+            trackConfirmed = Arrays.copyOf(trackConfirmed, capacity);
+            trackMatches = Arrays.copyOf(trackMatches, capacity);
+        }
+        final int track = numTracks++;
+        trackIds[track] = nextId++;
+        System.arraycopy(clusterBounds, 6 * cluster, trackBounds, 6 * track, 6);
+        trackHits[track] = 1;
+        trackMisses[track] = 0;
+        trackAges[track] = 0;
+        trackConfirmed[track] = minHits <= 1;
+        return trackIds[track];
+    }
+
+    /** Removes a track, moving the last track in its place. */
+    private void removeTrack(int track) {
+        final int last = --numTracks;
+        trackIds[track] = trackIds[last];
+        System.arraycopy(trackBounds, 6 * last, trackBounds, 6 * track, 6);
+        trackHits[track] = trackHits[last];
+        trackMisses[track] = trackMisses[last];
+        trackAges[track] = trackAges[last];
+        trackConfirmed[track] = trackConfirmed[last];
+        trackMatches[track] = trackMatches[last];
+    }
+
+    private int cellIndex(float coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long cellKey(int x, int y, int z) {
+        // Indices wrap around, which only adds candidates that are then rejected.
+        return VoxelGrid.pack(
+                x & VoxelGrid.MAX_INDEX, y & VoxelGrid.MAX_INDEX, z & VoxelGrid.MAX_INDEX);
+    }
+
+    private static float volume(float[] bounds, int offset) {
+        return (bounds[offset + 3] - bounds[offset])
+                * (bounds[offset + 4] - bounds[offset + 1])
+                * (bounds[offset + 5] - bounds[offset + 2]);
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, 2 * size);
+    }
+
+    private static long[] ensureCapacity(long[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, 2 * size);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+// An oriented bounding box is defined by its center, three orthonormal axes and the half extent
+// of the box along each axis.  The axes form a right-handed basis.
+public class OBB {
+    public float centerX;
+    public float centerY;
+    public float centerZ;
+    // The unit axes, three values per axis.
+    public final float[] axes = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    public final float[] halfExtents = new float[3];
+
+    /**
+     * Writes corner {@code index} of the box to {@code corner} at {@code offset}.  Bits 0, 1 and 2
+     * of the index select the positive side of the first, second and third axis.
+     */
+    public void getCorner(int index, float[] corner, int offset) {
+        final float s0 = (index & 1) != 0 ? halfExtents[0] : -halfExtents[0];
+        final float s1 = (index & 2) != 0 ? halfExtents[1] : -halfExtents[1];
+        final float s2 = (index & 4) != 0 ? halfExtents[2] : -halfExtents[2];
+        corner[offset] = centerX + s0 * axes[0] + s1 * axes[3] + s2 * axes[6];
+        corner[offset + 1] = centerY + s0 * axes[1] + s1 * axes[4] + s2 * axes[7];
+        corner[offset + 2] = centerZ + s0 * axes[2] + s1 * axes[5] + s2 * axes[8];
+    }
+}
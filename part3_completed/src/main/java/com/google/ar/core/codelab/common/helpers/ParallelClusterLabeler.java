@@ -0,0 +1,364 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Labels the connected voxels of a dense occupancy grid on a fixed thread pool, for grids too
+ * large to be labeled in time on the calling thread.
+ *
+ * <p>The grid is split into slabs along x.  Each slab is labeled by one worker with a union-find
+ * over its occupied voxels, and the labels are then merged across the faces between slabs with a
+ * concurrent union-find.  Unions always link the larger root to the smaller one, so the root of a
+ * cluster is its first voxel in x, y, z scan order whatever the scheduling: clusters are listed
+ * in the same order, with the same bounds, as with the single-threaded search.
+ *
+ * <p>Voxels are numbered by their rank among the occupied voxels, so that memory scales with the
+ * number of occupied voxels rather than with the volume of the grid.
+ */
+public class ParallelClusterLabeler {
+    // Each worker gets a few slabs so that slabs with many occupied voxels are balanced out.
+    private static final int SLABS_PER_WORKER = 2;
+
+    private int workerCount = 1;
+    private ExecutorService executor;
+    private final List<Slab> slabs = new ArrayList<>();
+    private final List<Callable<Void>> tasks = new ArrayList<>();
+
+    // The grid being labeled.
+    private long[] words;
+    private int numCellsY;
+    private int numCellsZ;
+    private int strideX;
+    // The number of occupied voxels before each word of the grid.
+    private int[] wordRanks = new int[0];
+
+    // Union-find parents, voxel counts and bounds, indexed by voxel rank.  Counts and bounds are
+    // only kept up to date for roots.  Bounds are stored as min x, y, z then max x, y, z.
+    private AtomicIntegerArray parents = new AtomicIntegerArray(0);
+    private int[] sizes = new int[0];
+    private int[] bounds = new int[0];
+
+    // The clusters found by the last call to label(), ordered by their first voxel.
+    private int[] clusterRoots = new int[0];
+    private int numClusters;
+
+    /** Creates a labeler that splits each grid across {@code workerCount} threads. */
+    public ParallelClusterLabeler(int workerCount) {
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * Sets the number of threads that label each grid. With a single worker, grids are labeled
+     * on the calling thread.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        if (workerCount == this.workerCount) {
+            return;
+        }
+        shutdown();
+        this.workerCount = workerCount;
+        if (workerCount > 1) {
+            executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+                Thread thread = new Thread(runnable, "ParallelClusterLabeler worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /** Stops the worker threads. Grids are labeled on the calling thread afterwards. */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        workerCount = 1;
+    }
+
+    /** Labels the occupied voxels of {@code grid}, which is left unchanged. */
+    void label(BitVoxelGrid grid) {
+        words = grid.getWords();
+        numCellsY = grid.getNumCellsY();
+        numCellsZ = grid.getNumCellsZ();
+        strideX = numCellsY * numCellsZ;
+        final int numCellsX = grid.getNumCellsX();
+
+        // Ranks the occupied voxels.
+        if (wordRanks.length < words.length + 1) {
+            wordRanks = new int[words.length + 1];
+        }
+        for (int word = 0; word < words.length; ++word) {
+            wordRanks[word + 1] = wordRanks[word] + Long.bitCount(words[word]);
+        }
+        final int numOccupied = wordRanks[words.length];
+        if (parents.length() < numOccupied) {
+            parents = new AtomicIntegerArray(numOccupied);
+            sizes = new int[numOccupied];
+            bounds = new int[6 * numOccupied];
+        }
+
+        // Labels the slabs, then merges the labels across the faces between slabs.
+        final int numSlabs =
+                Math.min(numCellsX, workerCount == 1 ? 1 : workerCount * SLABS_PER_WORKER);
+        final int slabWidth = (numCellsX + numSlabs - 1) / numSlabs;
+        while (slabs.size() < numSlabs) {
+            slabs.add(new Slab());
+        }
+        for (int i = 0; i < numSlabs; ++i) {
+            final int firstX = Math.min(numCellsX, i * slabWidth);
+            slabs.get(i).prepare(firstX, Math.min(numCellsX, firstX + slabWidth));
+        }
+        run(Phase.LABEL, numSlabs);
+        run(Phase.MERGE, numSlabs);
+
+        // Folds the counts and bounds of the slab clusters into the merged clusters.  Slab roots
+        // are visited in scan order, so the merged roots are found in scan order too.
+        numClusters = 0;
+        for (int i = 0; i < numSlabs; ++i) {
+            final Slab slab = slabs.get(i);
+            for (int j = 0; j < slab.numRoots; ++j) {
+                final int root = slab.roots[j];
+                final int mergedRoot = find(root);
+                if (mergedRoot == root) {
+                    if (clusterRoots.length == numClusters) {
+                        clusterRoots = Arrays.copyOf(clusterRoots, Math.max(16, 2 * numClusters));
+                    }
+                    clusterRoots[numClusters++] = root;
+                } else {
+                    mergeCounts(root, mergedRoot);
+                }
+            }
+        }
+        words = null;
+    }
+
+    /** Returns the number of clusters found by the last call to {@link #label(BitVoxelGrid)}. */
+    int getNumClusters() {
+        return numClusters;
+    }
+
+    int getClusterSize(int cluster) {
+        return sizes[clusterRoots[cluster]];
+    }
+
+    /** Returns the bound of a cluster along an axis, in voxel indices: min x, y, z, max x, y, z. */
+    int getClusterBound(int cluster, int bound) {
+        return bounds[6 * clusterRoots[cluster] + bound];
+    }
+
+    private enum Phase { LABEL, MERGE }
+
+    private void run(Phase phase, int numSlabs) {
+        for (int i = 0; i < numSlabs; ++i) {
+            slabs.get(i).phase = phase;
+        }
+        if (executor == null) {
+            for (int i = 0; i < numSlabs; ++i) {
+                slabs.get(i).call();
+            }
+            return;
+        }
+        tasks.clear();
+        tasks.addAll(slabs.subList(0, numSlabs));
+        try {
+            for (Future<?> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while labeling clusters", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to label clusters", e.getCause());
+        }
+    }
+
+    private boolean isOccupied(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private int rank(int index) {
+        final int word = index >>> 6;
+        return wordRanks[word] + Long.bitCount(words[word] & ((1L << index) - 1));
+    }
+
+    /** Finds the root of a voxel, halving the path on the way. */
+    private int find(int rank) {
+        int parent = parents.get(rank);
+        while (parent != rank) {
+            final int grandParent = parents.get(parent);
+            // Concurrent finds may race here, but every write still points to an ancestor.
+            parents.compareAndSet(rank, parent, grandParent);
+            rank = parent;
+            parent = grandParent;
+        }
+        return rank;
+    }
+
+    /**
+     * Joins the clusters of two voxels, linking the larger root to the smaller one.  Safe to call
+     * concurrently.
+     */
+    private void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b) {
+                return;
+            }
+            if (a < b) {
+                final int swap = a;
+                a = b;
+                b = swap;
+            }
+            if (parents.compareAndSet(a, a, b)) {
+                return;
+            }
+        }
+    }
+
+    private void mergeCounts(int from, int to) {
+        sizes[to] += sizes[from];
+        for (int axis = 0; axis < 3; ++axis) {
+            bounds[6 * to + axis] = Math.min(bounds[6 * to + axis], bounds[6 * from + axis]);
+            bounds[6 * to + 3 + axis] =
+                    Math.max(bounds[6 * to + 3 + axis], bounds[6 * from + 3 + axis]);
+        }
+    }
+
+    /** The voxels of a range of x indices, labeled by one worker. */
+    private class Slab implements Callable<Void> {
+        Phase phase;
+        private int firstX;
+        private int endX;
+        // Roots of the clusters of the slab, in scan order.
+        int[] roots = new int[16];
+        int numRoots;
+
+        void prepare(int firstX, int endX) {
+            this.firstX = firstX;
+            this.endX = endX;
+        }
+
+        @Override
+        public Void call() {
+            if (phase == Phase.LABEL) {
+                label();
+            } else if (firstX > 0 && firstX < endX) {
+                mergeWithPreviousSlab();
+            }
+            return null;
+        }
+
+        /** Unites the voxels of the slab with their occupied neighbors below in x, y and z. */
+        private void label() {
+            final int begin = firstX * strideX;
+            final int end = endX * strideX;
+            for (int index = nextOccupied(begin, end); index < end;
+                    index = nextOccupied(index + 1, end)) {
+                final int rank = rank(index);
+                parents.set(rank, rank);
+                final int z = index % numCellsZ;
+                final int y = (index / numCellsZ) % numCellsY;
+                if (z > 0 && isOccupied(index - 1)) {
+                    union(rank, rank - 1);
+                }
+                if (y > 0 && isOccupied(index - numCellsZ)) {
+                    union(rank, rank(index - numCellsZ));
+                }
+                if (index - strideX >= begin && isOccupied(index - strideX)) {
+                    union(rank, rank(index - strideX));
+                }
+            }
+
+            // Counts the voxels and bounds of each cluster of the slab at its root.
+            numRoots = 0;
+            for (int index = nextOccupied(begin, end); index < end;
+                    index = nextOccupied(index + 1, end)) {
+                final int rank = rank(index);
+                final int root = find(rank);
+                final int x = index / strideX;
+                final int y = (index / numCellsZ) % numCellsY;
+                final int z = index % numCellsZ;
+                if (root == rank) {
+                    sizes[root] = 0;
+                    bounds[6 * root] = x;
+                    bounds[6 * root + 1] = y;
+                    bounds[6 * root + 2] = z;
+                    bounds[6 * root + 3] = x;
+                    bounds[6 * root + 4] = y;
+                    bounds[6 * root + 5] = z;
+                    if (numRoots == roots.length) {
+                        roots = Arrays.copyOf(roots, 2 * numRoots);
+                    }
+                    roots[numRoots++] = root;
+                }
+                ++sizes[root];
+                bounds[6 * root] = Math.min(bounds[6 * root], x);
+                bounds[6 * root + 1] = Math.min(bounds[6 * root + 1], y);
+                bounds[6 * root + 2] = Math.min(bounds[6 * root + 2], z);
+                bounds[6 * root + 3] = Math.max(bounds[6 * root + 3], x);
+                bounds[6 * root + 4] = Math.max(bounds[6 * root + 4], y);
+                bounds[6 * root + 5] = Math.max(bounds[6 * root + 5], z);
+            }
+        }
+
+        /** Unites the voxels of the first layer of the slab with their neighbors in x. */
+        private void mergeWithPreviousSlab() {
+            final int begin = firstX * strideX;
+            final int end = begin + strideX;
+            for (int index = nextOccupied(begin, end); index < end;
+                    index = nextOccupied(index + 1, end)) {
+                if (isOccupied(index - strideX)) {
+                    union(rank(index), rank(index - strideX));
+                }
+            }
+        }
+
+        /** Returns the first occupied voxel in [from, end), or end. */
+        private int nextOccupied(int from, int end) {
+            if (from >= end) {
+                return end;
+            }
+            int word = from >>> 6;
+            long bits = words[word] & (-1L << from);
+            while (bits == 0) {
+                if (++word << 6 >= end) {
+                    return end;
+                }
+                bits = words[word];
+            }
+            return Math.min(end, (word << 6) + Long.numberOfTrailingZeros(bits));
+        }
+    }
+}
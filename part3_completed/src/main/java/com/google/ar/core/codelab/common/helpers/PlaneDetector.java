@@ -0,0 +1,751 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.ar.core.codelab.common.helpers;
+
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds planes in a point cloud with RANSAC, so that planar surfaces can be filtered out as soon
+ * as they are seen, including surfaces too small or too recent for ARCore to track them.
+ *
+ * <p>Planes are extracted one at a time, from the points not explained by the previous ones.
+ * Each extraction scores a set of hypotheses with preemptive RANSAC: every hypothesis is scored
+ * on a small random block of points, only the better half is kept and scored on the next block,
+ * and so on until one hypothesis is left, so that most hypotheses are dropped after a few tests.
+ * Hypotheses are sampled from points that are close in the buffer, which the depth image order
+ * makes close in space, so that small surfaces are sampled as often as large ones. The winner is
+ * refined by least squares on its inliers, which are then removed. The planes found in a frame
+ * are tried again as hypotheses in the next frame, so that a surface that is still visible does
+ * not depend on a lucky sample to be found again.
+ *
+ * <p>With more than one worker, the scoring of large hypothesis sets and the least-squares passes
+ * are split across a fixed thread pool. Random samples are drawn on the calling thread and
+ * partial sums are added in a fixed order, so the planes do not depend on the number of workers.
+ * Extraction stops once the time budget of the frame is spent.
+ */
+public class PlaneDetector {
+    // Hypotheses sampled in each extraction, in addition to the planes of the previous frame.
+    private static final int NUM_SAMPLED_HYPOTHESES = 256;
+
+    // Points scored in each round of preemptive scoring.
+    private static final int SCORING_BLOCK_SIZE = 100;
+
+    // The second and third points of a hypothesis are at most this far from the first one in the
+    // buffer, i.e. within a couple of rows of the sampled depth image.
+    private static final int SAMPLING_WINDOW = 2048;
+
+    // Triangles smaller than this are too sensitive to noise to give a reliable normal.
+    private static final float MIN_SAMPLE_AREA = 2e-3f; // Units: square meters.
+
+    // Rounds of scoring are only split across workers past this many point tests.
+    private static final int MIN_PARALLEL_TESTS = 8192;
+
+    // Least-squares sums are computed per block of points, then added in order.
+    private static final int MOMENT_BLOCK_SIZE = 2048;
+    // Count, 3 sums, 6 second moments, then the count of the inliers in the core of the band.
+    private static final int NUM_MOMENTS = 11;
+
+    // The inliers of a plane are mostly in the middle of the inlier band, as depth noise is
+    // centered on the surface, while a slab cut through several objects is filled evenly.  Planes
+    // with fewer inliers within half the inlier distance than this fraction are discarded.
+    private static final float MIN_CORE_INLIER_FRACTION = 0.6f;
+
+    // Each worker gets a few slices so that the slices are balanced out.
+    private static final int SLICES_PER_WORKER = 2;
+
+    // Carried planes are merged with a detected plane this close to them.
+    private static final float MIN_SIMILAR_NORMAL_DOT = 0.95f;
+
+    private static final long RANDOM_SEED = 0x5eed;
+
+    private float inlierDistance = 0.02f; // Units: meters.
+    private int minInliers = 1000;
+    private int maxPlanes = 8;
+    private long timeBudgetNanos = 4000000;
+
+    // The points not explained by the planes extracted so far.
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] zs = new float[0];
+    private int numPoints;
+
+    // Hypotheses, as normal x, y, z then offset, with their scores.  The live hypotheses of the
+    // current round are liveHypotheses[0, numLiveHypotheses).
+    private final float[] hypotheses;
+    private final int[] hypothesisScores;
+    private final int[] liveHypotheses;
+    private int numHypotheses;
+    private int numLiveHypotheses;
+    private final int[] scoringBlock = new int[SCORING_BLOCK_SIZE];
+    private final long[] rankKeys;
+
+    // Planes of the previous frame, as equations.
+    private float[] carriedPlanes = new float[4 * 8];
+    private int numCarriedPlanes;
+
+    // Planes of the last frame: equations, column-major plane-to-world matrices whose Y axis is
+    // the normal, inlier rectangles as (x, z) vertices in the frame of the plane, and inlier
+    // counts.
+    private float[] planeEquations = new float[4 * 8];
+    private float[] planeMatrices = new float[16 * 8];
+    private float[] planePolygons = new float[8 * 8];
+    private int[] planeInlierCounts = new int[8];
+    private int numPlanes;
+    private long lastDetectionNanos;
+
+    private final Random random = new Random(RANDOM_SEED);
+    private final double[] eigenvalues = new double[3];
+    private final double[] eigenvectors = new double[9];
+    private final float[] polygonScratch = new float[8];
+    private final FloatBuffer polygonBuffer = FloatBuffer.wrap(polygonScratch);
+
+    // The plane whose inliers are summed, and the sums of each block of points.  Moments are
+    // taken relative to a point of the cloud, to limit the loss of precision.
+    private float referenceX;
+    private float referenceY;
+    private float referenceZ;
+    private float fitNormalX;
+    private float fitNormalY;
+    private float fitNormalZ;
+    private float fitOffset;
+    private double[] blockMoments = new double[0];
+    private final double[] moments = new double[NUM_MOMENTS];
+
+    // Parallel detection. The executor is null when detecting on the calling thread.
+    private int workerCount = 1;
+    private ExecutorService executor;
+    private final List<ScoringSlice> scoringSlices = new ArrayList<>();
+    private final List<MomentSlice> momentSlices = new ArrayList<>();
+    private final ScoringSlice serialScoringSlice = new ScoringSlice();
+    private final MomentSlice serialMomentSlice = new MomentSlice();
+
+    public PlaneDetector() {
+        final int capacity = NUM_SAMPLED_HYPOTHESES + maxPlanes;
+        hypotheses = new float[4 * capacity];
+        hypothesisScores = new int[capacity];
+        liveHypotheses = new int[capacity];
+        rankKeys = new long[capacity];
+    }
+
+    /** Creates a detector that splits its work across {@code workerCount} threads. */
+    public PlaneDetector(int workerCount) {
+        this();
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * Sets the number of threads used to detect planes. A value of 1 detects on the calling
+     * thread.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        if (workerCount == this.workerCount) {
+            return;
+        }
+        shutdown();
+        this.workerCount = workerCount;
+        if (workerCount > 1) {
+            executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+                Thread thread = new Thread(runnable, "PlaneDetector worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /** Stops the worker threads. Detection keeps working on the calling thread afterwards. */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        workerCount = 1;
+    }
+
+    /** Sets the largest distance between a plane and its inliers. Units: meters. */
+    public void setInlierDistance(float inlierDistance) {
+        this.inlierDistance = inlierDistance;
+    }
+
+    /** Sets the number of inliers below which a plane is not kept. */
+    public void setMinInliers(int minInliers) {
+        this.minInliers = minInliers;
+    }
+
+    /** Sets the largest number of planes extracted from a frame, at most 8. */
+    public void setMaxPlanes(int maxPlanes) {
+        if (maxPlanes < 0 || maxPlanes > hypotheses.length / 4 - NUM_SAMPLED_HYPOTHESES) {
+            throw new IllegalArgumentException("maxPlanes must be in [0, 8]: " + maxPlanes);
+        }
+        this.maxPlanes = maxPlanes;
+    }
+
+    /**
+     * Sets the time after which no more planes are extracted from a frame. The extraction in
+     * progress is finished, so a frame may take a little longer.
+     */
+    public void setTimeBudgetNanos(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    /** Forgets the planes of the previous frames. */
+    public void clear() {
+        numCarriedPlanes = 0;
+        numPlanes = 0;
+    }
+
+    public int getNumPlanes() {
+        return numPlanes;
+    }
+
+    /**
+     * Writes the column-major plane-to-world matrix of a plane, whose Y axis is the plane normal,
+     * as returned by Pose.toMatrix() for ARCore planes.
+     */
+    public void getPlaneMatrix(int index, float[] matrix, int offset) {
+        System.arraycopy(planeMatrices, 16 * index, matrix, offset, 16);
+    }
+
+    /**
+     * Writes the four (x, z) vertices of the rectangle that bounds the inliers of a plane, in the
+     * frame of the plane, as returned by Plane.getPolygon() for ARCore planes.
+     */
+    public void getPlanePolygon(int index, float[] polygon, int offset) {
+        System.arraycopy(planePolygons, 8 * index, polygon, offset, 8);
+    }
+
+    public int getPlaneInlierCount(int index) {
+        return planeInlierCounts[index];
+    }
+
+    /**
+     * Number of planes tried first in the next frame: the planes of the last frame and, if its
+     * time budget ran out, the earlier planes it did not find again.
+     */
+    public int getNumCarriedPlanes() {
+        return numCarriedPlanes;
+    }
+
+    /** Time spent by the last call to {@link #detect(FloatBuffer)}. */
+    public long getLastDetectionNanos() {
+        return lastDetectionNanos;
+    }
+
+    /** Adds the planes of the last frame to {@code filter}, bounded by their inlier rectangles. */
+    public void addPlanesTo(PlaneFilter filter) {
+        for (int plane = 0; plane < numPlanes; ++plane) {
+            System.arraycopy(planePolygons, 8 * plane, polygonScratch, 0, 8);
+            polygonBuffer.clear();
+            filter.addPlane(planeMatrices, 16 * plane, polygonBuffer);
+        }
+    }
+
+    /**
+     * Finds the planes of the points between the position and the limit of {@code points}, given
+     * as X,Y,Z,confidence. The buffer is left unchanged.
+     */
+    public void detect(FloatBuffer points) {
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + timeBudgetNanos;
+        copyPoints(points);
+
+        // The first extraction always runs, so that planes are found even if the budget is too
+        // short for the device.
+        numPlanes = 0;
+        boolean budgetSpent = false;
+        for (int extraction = 0;
+                numPlanes < maxPlanes && numPoints >= Math.max(3, minInliers); ++extraction) {
+            if (extraction > 0 && System.nanoTime() - deadline > 0) {
+                budgetSpent = true;
+                break;
+            }
+            if (!sampleHypotheses()) {
+                break;
+            }
+            final int best = scoreHypotheses();
+            if (!refineAndExtract(best)) {
+                break;
+            }
+        }
+        carryPlanes(budgetSpent);
+        lastDetectionNanos = System.nanoTime() - startNanos;
+    }
+
+    /** Copies the coordinates of the points into the coordinate arrays. */
+    private void copyPoints(FloatBuffer points) {
+        final int floatsPerPoint = DepthPointConverter.FLOATS_PER_POINT;
+        numPoints = points.remaining() / floatsPerPoint;
+        if (xs.length < numPoints) {
+            xs = new float[numPoints];
+            ys = new float[numPoints];
+            zs = new float[numPoints];
+        }
+        final int base = points.position();
+        for (int i = 0; i < numPoints; ++i) {
+            xs[i] = points.get(base + floatsPerPoint * i);
+            ys[i] = points.get(base + floatsPerPoint * i + 1);
+            zs[i] = points.get(base + floatsPerPoint * i + 2);
+        }
+    }
+
+    /**
+     * Fills the hypotheses with the carried planes not found yet, then with planes through
+     * random triples of points. Returns false if no hypothesis could be made.
+     */
+    private boolean sampleHypotheses() {
+        numHypotheses = 0;
+        for (int plane = 0; plane < numCarriedPlanes; ++plane) {
+            if (!isSimilarToDetectedPlane(carriedPlanes, 4 * plane)) {
+                System.arraycopy(carriedPlanes, 4 * plane, hypotheses, 4 * numHypotheses, 4);
+                ++numHypotheses;
+            }
+        }
+        final int window = Math.min(SAMPLING_WINDOW, numPoints - 1);
+        for (int attempt = 0; attempt < 4 * NUM_SAMPLED_HYPOTHESES
+                && numHypotheses < numCarriedPlanes + NUM_SAMPLED_HYPOTHESES; ++attempt) {
+            final int first = random.nextInt(numPoints);
+            final int second = clampIndex(first + random.nextInt(2 * window + 1) - window);
+            final int third = clampIndex(first + random.nextInt(2 * window + 1) - window);
+            final float ux = xs[second] - xs[first];
+            final float uy = ys[second] - ys[first];
+            final float uz = zs[second] - zs[first];
+            final float vx = xs[third] - xs[first];
+            final float vy = ys[third] - ys[first];
+            final float vz = zs[third] - zs[first];
+            final float nx = uy * vz - uz * vy;
+            final float ny = uz * vx - ux * vz;
+            final float nz = ux * vy - uy * vx;
+            // The length of the cross product is twice the area of the triangle.
+            final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (!(length > 2 * MIN_SAMPLE_AREA)) {
+                continue;
+            }
+            final int h = 4 * numHypotheses++;
+            hypotheses[h] = nx / length;
+            hypotheses[h + 1] = ny / length;
+            hypotheses[h + 2] = nz / length;
+            hypotheses[h + 3] = -(hypotheses[h] * xs[first] + hypotheses[h + 1] * ys[first]
+                    + hypotheses[h + 2] * zs[first]);
+        }
+        return numHypotheses > 0;
+    }
+
+    private int clampIndex(int index) {
+        return Math.max(0, Math.min(numPoints - 1, index));
+    }
+
+    /**
+     * Scores the hypotheses on successive random blocks of points, keeping the better half after
+     * each block, and returns the index of the last hypothesis standing.
+     */
+    private int scoreHypotheses() {
+        numLiveHypotheses = numHypotheses;
+        for (int h = 0; h < numHypotheses; ++h) {
+            liveHypotheses[h] = h;
+            hypothesisScores[h] = 0;
+        }
+        while (numLiveHypotheses > 1) {
+            for (int i = 0; i < SCORING_BLOCK_SIZE; ++i) {
+                scoringBlock[i] = random.nextInt(numPoints);
+            }
+            if (executor == null || numLiveHypotheses * SCORING_BLOCK_SIZE < MIN_PARALLEL_TESTS) {
+                serialScoringSlice.prepare(0, numLiveHypotheses);
+                serialScoringSlice.call();
+            } else {
+                scoreInParallel();
+            }
+
+            // Keys hold the score in the high bits and the hypothesis in the low bits, so that
+            // sorting them ranks the hypotheses by decreasing score, then by index.
+            for (int i = 0; i < numLiveHypotheses; ++i) {
+                final int h = liveHypotheses[i];
+                rankKeys[i] = ((long) (Integer.MAX_VALUE - hypothesisScores[h]) << 32) | h;
+            }
+            Arrays.sort(rankKeys, 0, numLiveHypotheses);
+            numLiveHypotheses = (numLiveHypotheses + 1) / 2;
+            for (int i = 0; i < numLiveHypotheses; ++i) {
+                liveHypotheses[i] = (int) rankKeys[i];
+            }
+        }
+        return liveHypotheses[0];
+    }
+
+    /** Scores the live hypotheses as slices on the worker pool. */
+    private void scoreInParallel() {
+        final int numSlices = Math.min(numLiveHypotheses, workerCount * SLICES_PER_WORKER);
+        final int hypothesesPerSlice = (numLiveHypotheses + numSlices - 1) / numSlices;
+        while (scoringSlices.size() < numSlices) {
+            scoringSlices.add(new ScoringSlice());
+        }
+        for (int i = 0; i < numSlices; ++i) {
+            final int first = Math.min(numLiveHypotheses, i * hypothesesPerSlice);
+            scoringSlices.get(i).prepare(
+                    first, Math.min(numLiveHypotheses, first + hypothesesPerSlice));
+        }
+        invokeAll(scoringSlices.subList(0, numSlices));
+    }
+
+    /**
+     * Refines a hypothesis by least squares on its inliers, twice, and extracts the resulting
+     * plane if it has enough inliers. Returns false if it has not.
+     */
+    private boolean refineAndExtract(int hypothesis) {
+        fitNormalX = hypotheses[4 * hypothesis];
+        fitNormalY = hypotheses[4 * hypothesis + 1];
+        fitNormalZ = hypotheses[4 * hypothesis + 2];
+        fitOffset = hypotheses[4 * hypothesis + 3];
+        referenceX = xs[0];
+        referenceY = ys[0];
+        referenceZ = zs[0];
+        for (int iteration = 0; iteration < 2; ++iteration) {
+            sumInlierMoments();
+            if (moments[0] < Math.max(3, minInliers)) {
+                return false;
+            }
+            fitPlane();
+        }
+        if (moments[10] < MIN_CORE_INLIER_FRACTION * moments[0]) {
+            return false;
+        }
+        extractInliers();
+        return true;
+    }
+
+    /** Sums the moments of the inliers of the fitted plane into {@code moments}. */
+    private void sumInlierMoments() {
+        final int numBlocks = (numPoints + MOMENT_BLOCK_SIZE - 1) / MOMENT_BLOCK_SIZE;
+        if (blockMoments.length < NUM_MOMENTS * numBlocks) {
+            blockMoments = new double[NUM_MOMENTS * numBlocks];
+        }
+        if (executor == null || numBlocks == 1) {
+            serialMomentSlice.prepare(0, numBlocks);
+            serialMomentSlice.call();
+        } else {
+            final int numSlices = Math.min(numBlocks, workerCount * SLICES_PER_WORKER);
+            final int blocksPerSlice = (numBlocks + numSlices - 1) / numSlices;
+            while (momentSlices.size() < numSlices) {
+                momentSlices.add(new MomentSlice());
+            }
+            for (int i = 0; i < numSlices; ++i) {
+                final int first = Math.min(numBlocks, i * blocksPerSlice);
+                momentSlices.get(i).prepare(first, Math.min(numBlocks, first + blocksPerSlice));
+            }
+            invokeAll(momentSlices.subList(0, numSlices));
+        }
+
+        // Adds the blocks in order, so that the sums do not depend on the slicing.
+        Arrays.fill(moments, 0);
+        for (int block = 0; block < numBlocks; ++block) {
+            for (int i = 0; i < NUM_MOMENTS; ++i) {
+                moments[i] += blockMoments[NUM_MOMENTS * block + i];
+            }
+        }
+    }
+
+    /**
+     * Fits the plane through the centroid of the summed inliers, whose normal is the direction of
+     * least variance.
+     */
+    private void fitPlane() {
+        final double count = moments[0];
+        final double meanX = moments[1] / count;
+        final double meanY = moments[2] / count;
+        final double meanZ = moments[3] / count;
+        final double centroidX = referenceX + meanX;
+        final double centroidY = referenceY + meanY;
+        final double centroidZ = referenceZ + meanZ;
+        SymmetricEigenSolver.solve(
+                moments[4] / count - meanX * meanX,
+                moments[5] / count - meanX * meanY,
+                moments[6] / count - meanX * meanZ,
+                moments[7] / count - meanY * meanY,
+                moments[8] / count - meanY * meanZ,
+                moments[9] / count - meanZ * meanZ,
+                eigenvalues, eigenvectors);
+        fitNormalX = (float) eigenvectors[6];
+        fitNormalY = (float) eigenvectors[7];
+        fitNormalZ = (float) eigenvectors[8];
+        fitOffset = (float) -(eigenvectors[6] * centroidX + eigenvectors[7] * centroidY
+                + eigenvectors[8] * centroidZ);
+    }
+
+    /**
+     * Stores the fitted plane, with its frame and the rectangle bounding its inliers, and removes
+     * its inliers from the points.
+     */
+    private void extractInliers() {
+        // The Y axis of the frame is the normal, turned upwards, the X axis the direction of
+        // largest variance, and the Z axis completes a right-handed frame.
+        final float sign = fitNormalY < 0 ? -1 : 1;
+        final float normalX = sign * fitNormalX;
+        final float normalY = sign * fitNormalY;
+        final float normalZ = sign * fitNormalZ;
+        final float offset = sign * fitOffset;
+        final float axisX = (float) eigenvectors[0];
+        final float axisY = (float) eigenvectors[1];
+        final float axisZ = (float) eigenvectors[2];
+        final float sideX = axisY * normalZ - axisZ * normalY;
+        final float sideY = axisZ * normalX - axisX * normalZ;
+        final float sideZ = axisX * normalY - axisY * normalX;
+        final float originX = (float) (referenceX + moments[1] / moments[0]);
+        final float originY = (float) (referenceY + moments[2] / moments[0]);
+        final float originZ = (float) (referenceZ + moments[3] / moments[0]);
+
+        float minU = Float.MAX_VALUE;
+        float maxU = -Float.MAX_VALUE;
+        float minV = Float.MAX_VALUE;
+        float maxV = -Float.MAX_VALUE;
+        int numKept = 0;
+        for (int i = 0; i < numPoints; ++i) {
+            final float x = xs[i];
+            final float y = ys[i];
+            final float z = zs[i];
+            final float distance = normalX * x + normalY * y + normalZ * z + offset;
+            if (Math.abs(distance) > inlierDistance) {
+                xs[numKept] = x;
+                ys[numKept] = y;
+                zs[numKept] = z;
+                ++numKept;
+                continue;
+            }
+            final float u = axisX * (x - originX) + axisY * (y - originY) + axisZ * (z - originZ);
+            final float v = sideX * (x - originX) + sideY * (y - originY) + sideZ * (z - originZ);
+            minU = Math.min(minU, u);
+            maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        final int numInliers = numPoints - numKept;
+        numPoints = numKept;
+
+        final int plane = numPlanes++;
+        if (numPlanes > planeInlierCounts.length) {
+            planeEquations = Arrays.copyOf(planeEquations, 8 * numPlanes);
+            planeMatrices = Arrays.copyOf(planeMatrices, 32 * numPlanes);
+            planePolygons = Arrays.copyOf(planePolygons, 16 * numPlanes);
+            planeInlierCounts = Arrays.copyOf(planeInlierCounts, 2 * numPlanes);
+        }
+        planeEquations[4 * plane] = normalX;
+        planeEquations[4 * plane + 1] = normalY;
+        planeEquations[4 * plane + 2] = normalZ;
+        planeEquations[4 * plane + 3] = offset;
+        final float[] matrix = planeMatrices;
+        final int m = 16 * plane;
+        matrix[m] = axisX;
+        matrix[m + 1] = axisY;
+        matrix[m + 2] = axisZ;
+        matrix[m + 3] = 0;
+        matrix[m + 4] = normalX;
+        matrix[m + 5] = normalY;
+        matrix[m + 6] = normalZ;
+        matrix[m + 7] = 0;
+        matrix[m + 8] = sideX;
+        matrix[m + 9] = sideY;
+        matrix[m + 10] = sideZ;
+        matrix[m + 11] = 0;
+        matrix[m + 12] = originX;
+        matrix[m + 13] = originY;
+        matrix[m + 14] = originZ;
+        matrix[m + 15] = 1;
+        final int p = 8 * plane;
+        planePolygons[p] = minU;
+        planePolygons[p + 1] = minV;
+        planePolygons[p + 2] = maxU;
+        planePolygons[p + 3] = minV;
+        planePolygons[p + 4] = maxU;
+        planePolygons[p + 5] = maxV;
+        planePolygons[p + 6] = minU;
+        planePolygons[p + 7] = maxV;
+        planeInlierCounts[plane] = numInliers;
+    }
+
+    /**
+     * Keeps the planes of this frame as hypotheses for the next one. If the time budget ran out,
+     * the carried planes that were not found again are kept too, since they were not tried.
+     */
+    private void carryPlanes(boolean budgetSpent) {
+        int numKept = 0;
+        if (budgetSpent) {
+            for (int plane = 0; plane < numCarriedPlanes && numPlanes + numKept < maxPlanes;
+                    ++plane) {
+                if (!isSimilarToDetectedPlane(carriedPlanes, 4 * plane)) {
+                    System.arraycopy(carriedPlanes, 4 * plane, carriedPlanes, 4 * numKept, 4);
+                    ++numKept;
+                }
+            }
+        }
+        if (4 * (numKept + numPlanes) > carriedPlanes.length) {
+            carriedPlanes = Arrays.copyOf(carriedPlanes, 8 * (numKept + numPlanes));
+        }
+        System.arraycopy(planeEquations, 0, carriedPlanes, 4 * numKept, 4 * numPlanes);
+        numCarriedPlanes = numKept + numPlanes;
+    }
+
+    /** Returns true if the plane equation at {@code offset} matches a plane of this frame. */
+    private boolean isSimilarToDetectedPlane(float[] equations, int offset) {
+        for (int plane = 0; plane < numPlanes; ++plane) {
+            final float dot = equations[offset] * planeEquations[4 * plane]
+                    + equations[offset + 1] * planeEquations[4 * plane + 1]
+                    + equations[offset + 2] * planeEquations[4 * plane + 2];
+            final float offsetDifference = dot < 0
+                    ? equations[offset + 3] + planeEquations[4 * plane + 3]
+                    : equations[offset + 3] - planeEquations[4 * plane + 3];
+            if (Math.abs(dot) >= MIN_SIMILAR_NORMAL_DOT
+                    && Math.abs(offsetDifference) <= 2 * inlierDistance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invokeAll(List<? extends Callable<Void>> tasks) {
+        try {
+            for (Future<?> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while detecting planes", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to detect planes", e.getCause());
+        }
+    }
+
+    /** A range of live hypotheses, scored on the current block of points by one worker. */
+    private class ScoringSlice implements Callable<Void> {
+        private int first;
+        private int end;
+
+        void prepare(int first, int end) {
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() {
+            for (int i = first; i < end; ++i) {
+                final int h = liveHypotheses[i];
+                final float normalX = hypotheses[4 * h];
+                final float normalY = hypotheses[4 * h + 1];
+                final float normalZ = hypotheses[4 * h + 2];
+                final float offset = hypotheses[4 * h + 3];
+                int score = 0;
+                for (int point : scoringBlock) {
+                    final float distance = normalX * xs[point] + normalY * ys[point]
+                            + normalZ * zs[point] + offset;
+                    if (Math.abs(distance) <= inlierDistance) {
+                        ++score;
+                    }
+                }
+                hypothesisScores[h] += score;
+            }
+            return null;
+        }
+    }
+
+    /** A range of blocks of points whose inlier moments are summed by one worker. */
+    private class MomentSlice implements Callable<Void> {
+        private int firstBlock;
+        private int endBlock;
+
+        void prepare(int firstBlock, int endBlock) {
+            this.firstBlock = firstBlock;
+            this.endBlock = endBlock;
+        }
+
+        @Override
+        public Void call() {
+            final float normalX = fitNormalX;
+            final float normalY = fitNormalY;
+            final float normalZ = fitNormalZ;
+            final float offset = fitOffset;
+            for (int block = firstBlock; block < endBlock; ++block) {
+                final int start = block * MOMENT_BLOCK_SIZE;
+                final int end = Math.min(numPoints, start + MOMENT_BLOCK_SIZE);
+                double count = 0;
+                double sumX = 0;
+                double sumY = 0;
+                double sumZ = 0;
+                double sumXX = 0;
+                double sumXY = 0;
+                double sumXZ = 0;
+                double sumYY = 0;
+                double sumYZ = 0;
+                double sumZZ = 0;
+                double coreCount = 0;
+                for (int i = start; i < end; ++i) {
+                    final float x = xs[i];
+                    final float y = ys[i];
+                    final float z = zs[i];
+                    final float distance =
+                            Math.abs(normalX * x + normalY * y + normalZ * z + offset);
+                    if (distance > inlierDistance) {
+                        continue;
+                    }
+                    if (distance <= 0.5f * inlierDistance) {
+                        ++coreCount;
+                    }
+                    final double dx = x - referenceX;
+                    final double dy = y - referenceY;
+                    final double dz = z - referenceZ;
+                    ++count;
+                    sumX += dx;
+                    sumY += dy;
+                    sumZ += dz;
+                    sumXX += dx * dx;
+                    sumXY += dx * dy;
+                    sumXZ += dx * dz;
+                    sumYY += dy * dy;
+                    sumYZ += dy * dz;
+                    sumZZ += dz * dz;
+                }
+                final int m = NUM_MOMENTS * block;
+                blockMoments[m] = count;
+                blockMoments[m + 1] = sumX;
+                blockMoments[m + 2] = sumY;
+                blockMoments[m + 3] = sumZ;
+                blockMoments[m + 4] = sumXX;
+                blockMoments[m + 5] = sumXY;
+                blockMoments[m + 6] = sumXZ;
+                blockMoments[m + 7] = sumYY;
+                blockMoments[m + 8] = sumYZ;
+                blockMoments[m + 9] = sumZZ;
+                blockMoments[m + 10] = coreCount;
+            }
+            return null;
+        }
+    }
+}
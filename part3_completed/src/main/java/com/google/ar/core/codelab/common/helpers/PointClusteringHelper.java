@@ -18,9 +18,21 @@ package com.google.ar.core.codelab.common.helpers;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class PointClusteringHelper {
+    /** The storage of the occupancy grid. */
+    public enum GridType {
+        /**
+         * One bit per voxel of the bounding box of the pointcloud.  Fast for compact pointclouds,
+         * but sized by the volume of the bounding box.
+         */
+        DENSE,
+        /** A hash of the occupied voxels only.  Sized by the number of occupied voxels. */
+        SPARSE,
+    }
+
     // The resolution of the grid to allocate.  A smaller size means higher fidelity, but also
     // incurs a larger memory footprint.
     private static final float GRID_CELL_SIZE = 0.02f; // Units: meters.
@@ -28,18 +40,117 @@ public class PointClusteringHelper {
     // Clusters with fewer than this many elements are ignored.
     private static final int MIN_CLUSTER_ELEMENTS = 1;
 
-    // The occupancy grid represents voxels in 3D space.  Each voxel is marked 'true' iff a depth
+    // Caps the memory used by the sparse occupancy grid, at 16 bytes per voxel.  Points falling
+    // in further voxels are ignored.
+    private static final int MAX_OCCUPIED_VOXELS = 1 << 18;
+
+    // Caps the memory used by the dense occupancy grid, at one bit per voxel (16 MB).  Larger
+    // bounding boxes, typically caused by far outliers, use a sparse grid instead.
+    private static final double MAX_DENSE_GRID_CELLS = 1 << 27;
+
+    // In the distance-aware mode, voxels closer than this to the camera are those of the fixed
+    // grid, and further voxels grow with the distance.  Smaller values cut the number of voxels
+    // further, but the coarser voxels merge close objects.
+    private static final float ADAPTIVE_NEAR_DEPTH = 0.7f; // Units: meters.
+
+    // Beyond ADAPTIVE_NEAR_DEPTH, voxels grow along the rays from the camera by this fraction of
+    // GRID_CELL_SIZE per ADAPTIVE_NEAR_DEPTH of distance, e.g. to 2.6 cm at 1.5 m.  Both values
+    // were tuned on the scenes of SceneClusteringBenchmark to keep the recall of the fixed grid.
+    private static final float ADAPTIVE_GROWTH = 0.25f;
+
+    // The occupancy grid represents voxels in 3D space.  Each voxel is marked occupied iff a depth
     // point with high confidence intersects it.  This grid volume represents a cuboid in space
     // defined by the bounding box of the pointcloud.
-    private boolean[][][] occupancyGrid;
+    private VoxelGrid occupancyGrid;
 
     // The translational offset of the grid relative to the world coordinates.  This offset is
     // necessary for cases when the bounding box of depth points don't overlap the origin.  This
     // value is equivalent to the minimum corner of the point cloud bounding box.
     private float[] gridOriginOffset = new float[3];
 
+    // In the distance-aware mode, the grid covers a warped space around the camera rather than
+    // the world.  See warp().
+    private boolean distanceAware;
+    private float cameraX;
+    private float cameraY;
+    private float cameraZ;
+    private final float[] warped = new float[3];
+    // The bounds of the world points of each voxel, in the distance-aware mode.
+    private VoxelPointBounds pointBounds;
+    private final float[] voxelBounds = new float[6];
+
+    private int numOccupiedVoxels;
+
+    // Bounds of the cluster being searched, in units of indices.
+    private int clusterMinX;
+    private int clusterMinY;
+    private int clusterMinZ;
+    private int clusterMaxX;
+    private int clusterMaxY;
+    private int clusterMaxZ;
+
+    // First and second moments of the cluster being searched, relative to its seed cell so that
+    // they stay exact in integer arithmetic.
+    private int clusterSeedX;
+    private int clusterSeedY;
+    private int clusterSeedZ;
+    private long clusterSumX;
+    private long clusterSumY;
+    private long clusterSumZ;
+    private long clusterSumXX;
+    private long clusterSumXY;
+    private long clusterSumXZ;
+    private long clusterSumYY;
+    private long clusterSumYZ;
+    private long clusterSumZZ;
+
+    // The eigen-decomposition of the covariance of the cluster, and its extents along the
+    // eigenvectors, reused across the clusters of findOrientedClusters().
+    private final double[] eigenvalues = new double[3];
+    private final double[] eigenvectors = new double[9];
+    private final double[] axisMins = new double[3];
+    private final double[] axisMaxs = new double[3];
+
     public PointClusteringHelper(FloatBuffer points) {
-        allocateGrid(points);
+        this(points, GridType.SPARSE);
+    }
+
+    public PointClusteringHelper(FloatBuffer points, GridType gridType) {
+        allocateGrid(points, gridType);
+    }
+
+    /**
+     * Creates a helper whose voxels grow with the distance from the camera, so that far surfaces,
+     * which are sampled more sparsely and more noisily, are not fragmented into many clusters.
+     * Voxels are those of the fixed grid up to ADAPTIVE_NEAR_DEPTH from the camera, so that the
+     * clusters there are the same, and grow with the distance beyond.  Boxes are fit to the points
+     * of the voxels, so that the coarser voxels do not loosen them.
+     *
+     * @param cameraPoseMatrix the column-major camera-to-world matrix of the frame of the points.
+     */
+    public PointClusteringHelper(FloatBuffer points, GridType gridType, float[] cameraPoseMatrix,
+                                 int offset) {
+        distanceAware = true;
+        cameraX = cameraPoseMatrix[offset + 12];
+        cameraY = cameraPoseMatrix[offset + 13];
+        cameraZ = cameraPoseMatrix[offset + 14];
+        pointBounds = new VoxelPointBounds();
+        allocateGrid(points, gridType);
+    }
+
+    /** Returns the type of the occupancy grid, which is sparse if a dense one would be too large. */
+    public GridType getGridType() {
+        return occupancyGrid instanceof BitVoxelGrid ? GridType.DENSE : GridType.SPARSE;
+    }
+
+    /** Returns the number of occupied voxels of the grid, as built from the points. */
+    public int getOccupiedVoxelCount() {
+        return numOccupiedVoxels;
+    }
+
+    /** Returns the number of occupied voxels ignored because of the memory cap. */
+    public int getDroppedVoxelCount() {
+        return occupancyGrid.getNumDropped();
     }
 
     /**
@@ -48,35 +159,84 @@ public class PointClusteringHelper {
      */
     public List<AABB> findClusters() {
         // Clusters are found by iterating over each cell's neighbors.  As cells are found, they are
-        // marked false.  This process continues until all cells are false.
+        // cleared.  This process continues until all cells are empty.
         // Because the original grid is modified, this call will only produce results once.
         List<AABB> clusters = new ArrayList<>();
-        List<int[]> currentCluster = new ArrayList<>();
-
-        // Searches the grid for clusters.
-        int[] index = new int[3];
-        for (index[0] = 0; index[0] < occupancyGrid.length; ++index[0]) {
-            for (index[1] = 0; index[1] < occupancyGrid[0].length; ++index[1]) {
-                for (index[2] = 0; index[2] < occupancyGrid[0][0].length; ++index[2]) {
-                    // Attempts to find a cluster containing the current index.
-                    depthFirstSearch(index, occupancyGrid, currentCluster);
-                    if (currentCluster.size() >= MIN_CLUSTER_ELEMENTS) {
-                        // Stores the cluster.
-                        clusters.add(computeAABB(currentCluster));
-                        currentCluster.clear();
-                    }
-                }
+
+        // Every occupied cell is queued at most once, so the queue never needs to grow.
+        long[] cells = new long[occupancyGrid.getNumOccupied()];
+
+        // Searches the grid for clusters.  Seeds are visited in x, y, z scan order, so that
+        // clusters are always listed in the same order.
+        long seed;
+        while ((seed = occupancyGrid.nextOccupied()) != VoxelGrid.NONE) {
+            // Finds the cluster containing the current cell.
+            int clusterSize = searchCluster(seed, cells);
+            if (clusterSize >= MIN_CLUSTER_ELEMENTS) {
+                // Stores the cluster.
+                clusters.add(distanceAware
+                        ? computeWarpedAABB(cells, clusterSize) : computeAABB());
             }
         }
 
         return clusters;
     }
 
-    /** Finds the bounding box of all points, allocating a 3D grid of sufficient size. */
-    private void allocateGrid(FloatBuffer points) {
+    /**
+     * Finds clusters of voxels like {@link #findClusters()}, but computes oriented bounding boxes
+     * aligned with the principal axes of each cluster.  These fit elongated or rotated objects
+     * much more tightly than axis-aligned boxes.
+     */
+    public List<OBB> findOrientedClusters() {
+        List<OBB> clusters = new ArrayList<>();
+        long[] cells = new long[occupancyGrid.getNumOccupied()];
+
+        long seed;
+        while ((seed = occupancyGrid.nextOccupied()) != VoxelGrid.NONE) {
+            int clusterSize = searchCluster(seed, cells);
+            if (clusterSize >= MIN_CLUSTER_ELEMENTS) {
+                clusters.add(computeOBB(cells, clusterSize));
+            }
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Finds clusters of voxels like {@link #findClusters()}, labeling a dense grid on the threads
+     * of {@code labeler}.  The clusters are the same, in the same order.  Sparse grids, and the
+     * grids of the distance-aware mode, are searched on the calling thread.
+     */
+    public List<AABB> findClusters(ParallelClusterLabeler labeler) {
+        if (!(occupancyGrid instanceof BitVoxelGrid) || distanceAware) {
+            return findClusters();
+        }
+        BitVoxelGrid grid = (BitVoxelGrid) occupancyGrid;
+        labeler.label(grid);
+        grid.clear();
+
+        List<AABB> clusters = new ArrayList<>();
+        for (int cluster = 0; cluster < labeler.getNumClusters(); ++cluster) {
+            if (labeler.getClusterSize(cluster) >= MIN_CLUSTER_ELEMENTS) {
+                clusterMinX = labeler.getClusterBound(cluster, 0);
+                clusterMinY = labeler.getClusterBound(cluster, 1);
+                clusterMinZ = labeler.getClusterBound(cluster, 2);
+                clusterMaxX = labeler.getClusterBound(cluster, 3);
+                clusterMaxY = labeler.getClusterBound(cluster, 4);
+                clusterMaxZ = labeler.getClusterBound(cluster, 5);
+                clusters.add(computeAABB());
+            }
+        }
+        return clusters;
+    }
+
+    /** Finds the bounding box of all points, allocating a grid of the requested type. */
+    private void allocateGrid(FloatBuffer points, GridType gridType) {
         // Finds the min/max bounds of the pointcloud.
         AABB bounds = new AABB();
+        AABB worldBounds = distanceAware ? new AABB() : bounds;
         points.rewind();
+        int numPoints = 0;
         while (points.hasRemaining()) {
             float x = points.get();
             float y = points.get();
@@ -85,17 +245,36 @@ public class PointClusteringHelper {
             if (confidence <= 0) {
                 continue;
             }
+            if (distanceAware) {
+                worldBounds.update(x, y, z);
+                warp(x, y, z);
+                x = warped[0];
+                y = warped[1];
+                z = warped[2];
+            }
             bounds.update(x, y, z);
+            ++numPoints;
         }
 
-        // Each grid cell is a cube of size GRID_CELL_SIZE^3 cubic meters.
-        gridOriginOffset[0] = bounds.minX;
-        gridOriginOffset[1] = bounds.minY;
-        gridOriginOffset[2] = bounds.minZ;
-        int numCellsX = Math.max(1, (int) Math.ceil((bounds.maxX - bounds.minX) / GRID_CELL_SIZE));
-        int numCellsY = Math.max(1, (int) Math.ceil((bounds.maxY - bounds.minY) / GRID_CELL_SIZE));
-        int numCellsZ = Math.max(1, (int) Math.ceil((bounds.maxZ - bounds.minZ) / GRID_CELL_SIZE));
-        occupancyGrid = new boolean[numCellsX][numCellsY][numCellsZ];
+        // Each grid cell is a cube of size GRID_CELL_SIZE^3 cubic meters.  In the distance-aware
+        // mode, the grid is shifted by whole cells so that its cells near the camera are those of
+        // the fixed grid.
+        gridOriginOffset[0] = alignOrigin(bounds.minX, worldBounds.minX);
+        gridOriginOffset[1] = alignOrigin(bounds.minY, worldBounds.minY);
+        gridOriginOffset[2] = alignOrigin(bounds.minZ, worldBounds.minZ);
+        int numCellsX = Math.max(1,
+                (int) Math.ceil((bounds.maxX - gridOriginOffset[0]) / GRID_CELL_SIZE));
+        int numCellsY = Math.max(1,
+                (int) Math.ceil((bounds.maxY - gridOriginOffset[1]) / GRID_CELL_SIZE));
+        int numCellsZ = Math.max(1,
+                (int) Math.ceil((bounds.maxZ - gridOriginOffset[2]) / GRID_CELL_SIZE));
+        if (gridType == GridType.DENSE
+                && (double) numCellsX * numCellsY * numCellsZ <= MAX_DENSE_GRID_CELLS
+                && VoxelGrid.isPackable(numCellsX - 1, numCellsY - 1, numCellsZ - 1)) {
+            occupancyGrid = new BitVoxelGrid(numCellsX, numCellsY, numCellsZ);
+        } else {
+            occupancyGrid = new SparseVoxelGrid(numPoints, MAX_OCCUPIED_VOXELS);
+        }
 
         // Populates the grid with occupancy of points.
         points.rewind();
@@ -107,24 +286,77 @@ public class PointClusteringHelper {
             if (confidence <= 0) {
                 continue;
             }
+            final float worldX = x;
+            final float worldY = y;
+            final float worldZ = z;
+            if (distanceAware) {
+                warp(x, y, z);
+                x = warped[0];
+                y = warped[1];
+                z = warped[2];
+            }
 
-            // Finds the voxel that contains this depth point and sets it to true.
-            int indexX = (int) Math.floor((x - gridOriginOffset[0]) / GRID_CELL_SIZE);
-            int indexY = (int) Math.floor((y - gridOriginOffset[1]) / GRID_CELL_SIZE);
-            int indexZ = (int) Math.floor((z - gridOriginOffset[2]) / GRID_CELL_SIZE);
-            occupancyGrid[indexX][indexY][indexZ] = true;
+            // Finds the voxel that contains this depth point and marks it occupied.  Points on the
+            // maximum faces of the bounding box belong to the last cell.
+            int indexX = Math.min(numCellsX - 1,
+                    (int) Math.floor((x - gridOriginOffset[0]) / GRID_CELL_SIZE));
+            int indexY = Math.min(numCellsY - 1,
+                    (int) Math.floor((y - gridOriginOffset[1]) / GRID_CELL_SIZE));
+            int indexZ = Math.min(numCellsZ - 1,
+                    (int) Math.floor((z - gridOriginOffset[2]) / GRID_CELL_SIZE));
+            occupancyGrid.add(indexX, indexY, indexZ);
+            if (distanceAware && occupancyGrid.contains(indexX, indexY, indexZ)) {
+                pointBounds.add(VoxelGrid.pack(indexX, indexY, indexZ), worldX, worldY, worldZ);
+            }
         }
+        numOccupiedVoxels = occupancyGrid.getNumOccupied();
     }
 
-    /** Computes the metric bounds of a subset of the grid. */
-    private AABB computeAABB(List<int[]> cluster) {
-        // Computes the bounds in units of "indices".
-        AABB bounds = new AABB();
-        for (int[] index : cluster) {
-            // The minimum and maximum corners of this grid cell, in units of indices.
-            bounds.update(index[0], index[1], index[2]);
-            bounds.update(index[0]+1, index[1]+1, index[2]+1);
+    /**
+     * Returns the greatest coordinate at most {@code min} that is a whole number of cells away
+     * from {@code worldMin}.
+     */
+    private static float alignOrigin(float min, float worldMin) {
+        return worldMin - GRID_CELL_SIZE * (float) Math.ceil((worldMin - min) / GRID_CELL_SIZE);
+    }
+
+    /**
+     * Maps a world point into the warped space of the distance-aware mode, storing it in
+     * {@code warped}.  The warp is continuous, and is the identity closer than ADAPTIVE_NEAR_DEPTH
+     * to the camera.  Beyond, the distance to the camera is binned logarithmically along the ray
+     * through the point, so that uniform voxels in the warped space grow linearly with the
+     * distance along the ray, and more slowly across it.
+     *
+     * <p>The warped space keeps the axes of the world, rather than those of the camera, so that the
+     * floor and the faces of objects standing on it stay aligned with the voxels near the camera.
+     * Faces that cross the voxels diagonally break into clusters connected by edges only, which
+     * the search does not follow.
+     */
+    private void warp(float x, float y, float z) {
+        final float dx = x - cameraX;
+        final float dy = y - cameraY;
+        final float dz = z - cameraZ;
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (distance <= ADAPTIVE_NEAR_DEPTH) {
+            warped[0] = x;
+            warped[1] = y;
+            warped[2] = z;
+        } else {
+            final float scale = (ADAPTIVE_NEAR_DEPTH + ADAPTIVE_NEAR_DEPTH / ADAPTIVE_GROWTH
+                    * (float) Math.log(1 + ADAPTIVE_GROWTH
+                            * (distance - ADAPTIVE_NEAR_DEPTH) / ADAPTIVE_NEAR_DEPTH)) / distance;
+            warped[0] = cameraX + dx * scale;
+            warped[1] = cameraY + dy * scale;
+            warped[2] = cameraZ + dz * scale;
         }
+    }
+
+    /** Computes the metric bounds of the last cluster found. */
+    private AABB computeAABB() {
+        // The minimum and maximum corners of the cluster, in units of indices.
+        AABB bounds = new AABB();
+        bounds.update(clusterMinX, clusterMinY, clusterMinZ);
+        bounds.update(clusterMaxX + 1, clusterMaxY + 1, clusterMaxZ + 1);
 
         // Rescales units from "indices" to "meters".
         bounds.minX = GRID_CELL_SIZE * bounds.minX + gridOriginOffset[0];
@@ -137,28 +369,241 @@ public class PointClusteringHelper {
         return bounds;
     }
 
-    private static void depthFirstSearch(int[] index, boolean[][][] grid, List<int[]> cluster) {
-        if (!inBounds(index, grid) || !grid[index[0]][index[1]][index[2]]) {
-            return;  // Not occupied, stop searching in this area.
+    /**
+     * Computes the metric bounds of the last cluster found in the distance-aware mode, whose cells
+     * are the first {@code clusterSize} entries of {@code cells}.  Far voxels are coarser than
+     * the objects they sample, so the bounds are those of the points of the voxels rather than
+     * those of the voxels, which would loosen the boxes of small objects.
+     */
+    private AABB computeWarpedAABB(long[] cells, int clusterSize) {
+        AABB bounds = new AABB();
+        for (int i = 0; i < clusterSize; ++i) {
+            pointBounds.get(cells[i], voxelBounds);
+            bounds.update(voxelBounds[0], voxelBounds[1], voxelBounds[2]);
+            bounds.update(voxelBounds[3], voxelBounds[4], voxelBounds[5]);
+        }
+        return bounds;
+    }
+
+    /**
+     * Computes the metric oriented bounds of the last cluster found, whose cells are the first
+     * {@code clusterSize} entries of {@code cells}.
+     */
+    private OBB computeOBB(long[] cells, int clusterSize) {
+        if (distanceAware) {
+            return computeWarpedOBB(cells, clusterSize);
+        }
+
+        // The axes of the box are the eigenvectors of the covariance of the cell centers.
+        final double n = clusterSize;
+        final double meanX = clusterSumX / n;
+        final double meanY = clusterSumY / n;
+        final double meanZ = clusterSumZ / n;
+        SymmetricEigenSolver.solve(
+                clusterSumXX / n - meanX * meanX,
+                clusterSumXY / n - meanX * meanY,
+                clusterSumXZ / n - meanX * meanZ,
+                clusterSumYY / n - meanY * meanY,
+                clusterSumYZ / n - meanY * meanZ,
+                clusterSumZZ / n - meanZ * meanZ,
+                eigenvalues, eigenvectors);
+
+        // The extents along each axis come from projecting the cell centers, which the search
+        // left in the queue.
+        double min0 = Double.MAX_VALUE, min1 = Double.MAX_VALUE, min2 = Double.MAX_VALUE;
+        double max0 = -Double.MAX_VALUE, max1 = -Double.MAX_VALUE, max2 = -Double.MAX_VALUE;
+        for (int i = 0; i < clusterSize; ++i) {
+            final int x = VoxelGrid.unpackX(cells[i]) - clusterSeedX;
+            final int y = VoxelGrid.unpackY(cells[i]) - clusterSeedY;
+            final int z = VoxelGrid.unpackZ(cells[i]) - clusterSeedZ;
+            final double p0 = x * eigenvectors[0] + y * eigenvectors[1] + z * eigenvectors[2];
+            final double p1 = x * eigenvectors[3] + y * eigenvectors[4] + z * eigenvectors[5];
+            final double p2 = x * eigenvectors[6] + y * eigenvectors[7] + z * eigenvectors[8];
+            min0 = Math.min(min0, p0);
+            min1 = Math.min(min1, p1);
+            min2 = Math.min(min2, p2);
+            max0 = Math.max(max0, p0);
+            max1 = Math.max(max1, p1);
+            max2 = Math.max(max2, p2);
+        }
+
+        // Rescales units from "indices" to "meters".  The box is grown by the half width of a
+        // cell along each axis so that it covers the cells entirely, as axis-aligned boxes do.
+        final double mid0 = 0.5 * (min0 + max0);
+        final double mid1 = 0.5 * (min1 + max1);
+        final double mid2 = 0.5 * (min2 + max2);
+        OBB bounds = new OBB();
+        bounds.centerX = GRID_CELL_SIZE * (float) (clusterSeedX + 0.5 + mid0 * eigenvectors[0]
+                + mid1 * eigenvectors[3] + mid2 * eigenvectors[6]) + gridOriginOffset[0];
+        bounds.centerY = GRID_CELL_SIZE * (float) (clusterSeedY + 0.5 + mid0 * eigenvectors[1]
+                + mid1 * eigenvectors[4] + mid2 * eigenvectors[7]) + gridOriginOffset[1];
+        bounds.centerZ = GRID_CELL_SIZE * (float) (clusterSeedZ + 0.5 + mid0 * eigenvectors[2]
+                + mid1 * eigenvectors[5] + mid2 * eigenvectors[8]) + gridOriginOffset[2];
+        bounds.halfExtents[0] =
+                GRID_CELL_SIZE * (float) (max0 - mid0 + cellHalfWidth(eigenvectors, 0));
+        bounds.halfExtents[1] =
+                GRID_CELL_SIZE * (float) (max1 - mid1 + cellHalfWidth(eigenvectors, 1));
+        bounds.halfExtents[2] =
+                GRID_CELL_SIZE * (float) (max2 - mid2 + cellHalfWidth(eigenvectors, 2));
+        for (int i = 0; i < 9; ++i) {
+            bounds.axes[i] = (float) eigenvectors[i];
+        }
+        return bounds;
+    }
+
+    /**
+     * Computes the oriented bounds of the last cluster found in the distance-aware mode.  Voxels
+     * differ in size in the world, so the moments are those of the centers of the points of the
+     * voxels, and the extents those of the bounds of the points, as for axis-aligned boxes.
+     */
+    private OBB computeWarpedOBB(long[] cells, int clusterSize) {
+        // Moments are taken relative to the first voxel, to limit the loss of precision.
+        pointBounds.get(cells[0], voxelBounds);
+        final float originX = 0.5f * (voxelBounds[0] + voxelBounds[3]);
+        final float originY = 0.5f * (voxelBounds[1] + voxelBounds[4]);
+        final float originZ = 0.5f * (voxelBounds[2] + voxelBounds[5]);
+        double sumX = 0, sumY = 0, sumZ = 0;
+        double sumXX = 0, sumXY = 0, sumXZ = 0, sumYY = 0, sumYZ = 0, sumZZ = 0;
+        for (int i = 0; i < clusterSize; ++i) {
+            pointBounds.get(cells[i], voxelBounds);
+            final double x = 0.5 * (voxelBounds[0] + voxelBounds[3]) - originX;
+            final double y = 0.5 * (voxelBounds[1] + voxelBounds[4]) - originY;
+            final double z = 0.5 * (voxelBounds[2] + voxelBounds[5]) - originZ;
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            sumXX += x * x;
+            sumXY += x * y;
+            sumXZ += x * z;
+            sumYY += y * y;
+            sumYZ += y * z;
+            sumZZ += z * z;
         }
+        final double n = clusterSize;
+        SymmetricEigenSolver.solve(
+                sumXX / n - sumX * sumX / (n * n),
+                sumXY / n - sumX * sumY / (n * n),
+                sumXZ / n - sumX * sumZ / (n * n),
+                sumYY / n - sumY * sumY / (n * n),
+                sumYZ / n - sumY * sumZ / (n * n),
+                sumZZ / n - sumZ * sumZ / (n * n),
+                eigenvalues, eigenvectors);
 
-        // Since the current index is occupied, it can be added to the local cluster. Once added,
-        // we reset the grid to avoid cyclic behavior.
-        grid[index[0]][index[1]][index[2]] = false;
-        cluster.add(index.clone());
+        // The extents along each axis come from projecting the corners of the bounds of the
+        // points of the voxels.  Bits 0, 1 and 2 of a corner select the maximum X, Y and Z.
+        Arrays.fill(axisMins, Double.MAX_VALUE);
+        Arrays.fill(axisMaxs, -Double.MAX_VALUE);
+        for (int i = 0; i < clusterSize; ++i) {
+            pointBounds.get(cells[i], voxelBounds);
+            for (int corner = 0; corner < 8; ++corner) {
+                final double x = voxelBounds[3 * (corner & 1)] - originX;
+                final double y = voxelBounds[1 + 3 * ((corner >> 1) & 1)] - originY;
+                final double z = voxelBounds[2 + 3 * ((corner >> 2) & 1)] - originZ;
+                for (int axis = 0; axis < 3; ++axis) {
+                    final double projection = x * eigenvectors[3 * axis]
+                            + y * eigenvectors[3 * axis + 1] + z * eigenvectors[3 * axis + 2];
+                    axisMins[axis] = Math.min(axisMins[axis], projection);
+                    axisMaxs[axis] = Math.max(axisMaxs[axis], projection);
+                }
+            }
+        }
 
-        // Search the neighbors.
-        depthFirstSearch(new int[]{index[0]-1, index[1], index[2]}, grid, cluster);
-        depthFirstSearch(new int[]{index[0]+1, index[1], index[2]}, grid, cluster);
-        depthFirstSearch(new int[]{index[0], index[1]-1, index[2]}, grid, cluster);
-        depthFirstSearch(new int[]{index[0], index[1]+1, index[2]}, grid, cluster);
-        depthFirstSearch(new int[]{index[0], index[1], index[2]-1}, grid, cluster);
-        depthFirstSearch(new int[]{index[0], index[1], index[2]+1}, grid, cluster);
+        OBB bounds = new OBB();
+        double centerX = originX;
+        double centerY = originY;
+        double centerZ = originZ;
+        for (int axis = 0; axis < 3; ++axis) {
+            final double mid = 0.5 * (axisMins[axis] + axisMaxs[axis]);
+            centerX += mid * eigenvectors[3 * axis];
+            centerY += mid * eigenvectors[3 * axis + 1];
+            centerZ += mid * eigenvectors[3 * axis + 2];
+            bounds.halfExtents[axis] = (float) (0.5 * (axisMaxs[axis] - axisMins[axis]));
+        }
+        bounds.centerX = (float) centerX;
+        bounds.centerY = (float) centerY;
+        bounds.centerZ = (float) centerZ;
+        for (int i = 0; i < 9; ++i) {
+            bounds.axes[i] = (float) eigenvectors[i];
+        }
+        return bounds;
+    }
+
+    /** Returns the half width of a unit cube along axis {@code axis} of {@code axes}. */
+    private static double cellHalfWidth(double[] axes, int axis) {
+        return 0.5 * (Math.abs(axes[3 * axis]) + Math.abs(axes[3 * axis + 1])
+                + Math.abs(axes[3 * axis + 2]));
     }
 
-    private static boolean inBounds(int[] index, boolean[][][] grid) {
-        return index[0] >= 0 && index[0] < grid.length &&
-                index[1] >= 0 && index[1] < grid[0].length &&
-                index[2] >= 0 && index[2] < grid[0][0].length;
+    /**
+     * Visits every occupied cell connected to {@code seed}, using an explicit queue rather than
+     * recursion so that large clusters cannot overflow the thread's stack.  Visited cells are
+     * cleared, and the cluster bounds and moments are updated as cells are visited.  On return,
+     * the cells of the cluster are the first entries of {@code queue}.
+     *
+     * @return the number of cells in the cluster.
+     */
+    private int searchCluster(long seed, long[] queue) {
+        // Cells are cleared when queued, to avoid queueing them twice.
+        clusterSeedX = VoxelGrid.unpackX(seed);
+        clusterSeedY = VoxelGrid.unpackY(seed);
+        clusterSeedZ = VoxelGrid.unpackZ(seed);
+        occupancyGrid.remove(clusterSeedX, clusterSeedY, clusterSeedZ);
+
+        clusterMinX = clusterMinY = clusterMinZ = Integer.MAX_VALUE;
+        clusterMaxX = clusterMaxY = clusterMaxZ = Integer.MIN_VALUE;
+        clusterSumX = clusterSumY = clusterSumZ = 0;
+        clusterSumXX = clusterSumXY = clusterSumXZ = 0;
+        clusterSumYY = clusterSumYZ = clusterSumZZ = 0;
+
+        int queueSize = 0;
+        queue[queueSize++] = seed;
+        int clusterSize = 0;
+        while (clusterSize < queueSize) {
+            final long key = queue[clusterSize++];
+
+            final int x = VoxelGrid.unpackX(key);
+            final int y = VoxelGrid.unpackY(key);
+            final int z = VoxelGrid.unpackZ(key);
+            clusterMinX = Math.min(clusterMinX, x);
+            clusterMinY = Math.min(clusterMinY, y);
+            clusterMinZ = Math.min(clusterMinZ, z);
+            clusterMaxX = Math.max(clusterMaxX, x);
+            clusterMaxY = Math.max(clusterMaxY, y);
+            clusterMaxZ = Math.max(clusterMaxZ, z);
+
+            final long dx = x - clusterSeedX;
+            final long dy = y - clusterSeedY;
+            final long dz = z - clusterSeedZ;
+            clusterSumX += dx;
+            clusterSumY += dy;
+            clusterSumZ += dz;
+            clusterSumXX += dx * dx;
+            clusterSumXY += dx * dy;
+            clusterSumXZ += dx * dz;
+            clusterSumYY += dy * dy;
+            clusterSumYZ += dy * dz;
+            clusterSumZZ += dz * dz;
+
+            // Search the neighbors.
+            if (occupancyGrid.remove(x - 1, y, z)) {
+                queue[queueSize++] = VoxelGrid.pack(x - 1, y, z);
+            }
+            if (occupancyGrid.remove(x + 1, y, z)) {
+                queue[queueSize++] = VoxelGrid.pack(x + 1, y, z);
+            }
+            if (occupancyGrid.remove(x, y - 1, z)) {
+                queue[queueSize++] = VoxelGrid.pack(x, y - 1, z);
+            }
+            if (occupancyGrid.remove(x, y + 1, z)) {
+                queue[queueSize++] = VoxelGrid.pack(x, y + 1, z);
+            }
+            if (occupancyGrid.remove(x, y, z - 1)) {
+                queue[queueSize++] = VoxelGrid.pack(x, y, z - 1);
+            }
+            if (occupancyGrid.remove(x, y, z + 1)) {
+                queue[queueSize++] = VoxelGrid.pack(x, y, z + 1);
+            }
+        }
+        return clusterSize;
     }
 }
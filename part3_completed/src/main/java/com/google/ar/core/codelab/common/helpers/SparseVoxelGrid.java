@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.Arrays;
+
+/**
+ * A set of occupied voxels, stored as an open-addressing hash table of packed voxel keys. Memory
+ * scales with the number of occupied voxels rather than with the volume they span, and is bounded
+ * by a maximum number of voxels: voxels added past that cap are dropped and counted.
+ *
+ * <p>Voxel indices must lie in [0, {@link #MAX_INDEX}] on each axis. Since sorting the keys sorts
+ * the voxels in scan order, the occupied keys are sorted when the scan starts.
+ */
+class SparseVoxelGrid extends VoxelGrid {
+    private static final long EMPTY = -1;
+    // Removed keys keep their slot with the sign bit set, so that probe sequences stay intact.
+    private static final long REMOVED_BIT = Long.MIN_VALUE;
+
+    private final int maxVoxels;
+    private final int maxCapacity;
+    private long[] keys;
+    private int mask;
+    private int numUsedSlots;
+    private int numOccupied;
+    private int numDropped;
+
+    // The occupied keys in scan order, sorted by the first call to nextOccupied().
+    private long[] scanKeys;
+    private int scanPosition;
+
+    /**
+     * @param expectedVoxels the number of voxels expected, used to size the table up front.
+     * @param maxVoxels the maximum number of voxels kept.
+     */
+    SparseVoxelGrid(int expectedVoxels, int maxVoxels) {
+        this.maxVoxels = maxVoxels;
+        // The table is kept at most half full.
+        maxCapacity = tableSizeFor(2L * maxVoxels);
+        allocate(Math.min(maxCapacity, tableSizeFor(2L * expectedVoxels)));
+    }
+
+    @Override
+    boolean add(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            ++numDropped;
+            return false;
+        }
+        final long key = pack(x, y, z);
+        int slot = findSlot(key);
+        if (keys[slot] == key) {
+            return false;
+        }
+        if (numOccupied >= maxVoxels) {
+            ++numDropped;
+            return false;
+        }
+        if (2 * (numUsedSlots + 1) > keys.length) {
+            // Grows the table, or purges removed keys once it has reached its maximum size.
+            rehash(keys.length < maxCapacity ? keys.length * 2 : keys.length);
+            slot = findSlot(key);
+        }
+        keys[slot] = key;
+        ++numUsedSlots;
+        ++numOccupied;
+        return true;
+    }
+
+    @Override
+    boolean remove(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            return false;
+        }
+        final long key = pack(x, y, z);
+        final int slot = findSlot(key);
+        if (keys[slot] != key) {
+            return false;
+        }
+        keys[slot] = key | REMOVED_BIT;
+        --numOccupied;
+        return true;
+    }
+
+    @Override
+    boolean contains(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            return false;
+        }
+        final long key = pack(x, y, z);
+        return keys[findSlot(key)] == key;
+    }
+
+    @Override
+    int getNumOccupied() {
+        return numOccupied;
+    }
+
+    @Override
+    int getNumDropped() {
+        return numDropped;
+    }
+
+    @Override
+    long nextOccupied() {
+        if (scanKeys == null) {
+            scanKeys = new long[numOccupied];
+            int count = 0;
+            for (long key : keys) {
+                if (key >= 0) {
+                    scanKeys[count++] = key;
+                }
+            }
+            Arrays.sort(scanKeys);
+        }
+        // Skips the voxels removed since the scan started.
+        while (scanPosition < scanKeys.length) {
+            final long key = scanKeys[scanPosition++];
+            if (keys[findSlot(key)] == key) {
+                return key;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot where it would be inserted. Removed
+     * keys never match, since their sign bit is set.
+     */
+    private int findSlot(long key) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        allocate(capacity);
+        for (long key : oldKeys) {
+            // Removed keys are dropped from the new table.
+            if (key >= 0) {
+                keys[findSlot(key)] = key;
+                ++numUsedSlots;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        numUsedSlots = 0;
+    }
+}
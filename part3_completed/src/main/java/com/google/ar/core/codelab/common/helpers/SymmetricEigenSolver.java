@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+/**
+ * Closed-form eigen-decomposition of symmetric 3x3 matrices, such as covariance matrices.
+ * Eigenvalues are found with the trigonometric solution of the characteristic cubic, and
+ * eigenvectors from cross products of the rows of (A - lambda I), so no iteration is needed.
+ */
+public final class SymmetricEigenSolver {
+    // Relative threshold under which eigenvalues are considered equal.
+    private static final double EPSILON = 1e-9;
+
+    private SymmetricEigenSolver() {}
+
+    /**
+     * Decomposes the symmetric matrix [[a00, a01, a02], [a01, a11, a12], [a02, a12, a22]].
+     *
+     * @param eigenvalues receives the three eigenvalues, in decreasing order.
+     * @param eigenvectors receives the matching unit eigenvectors, one per row of three values.
+     *     They form a right-handed orthonormal basis.
+     */
+    public static void solve(double a00, double a01, double a02, double a11, double a12,
+                             double a22, double[] eigenvalues, double[] eigenvectors) {
+        final double offDiagonal = a01 * a01 + a02 * a02 + a12 * a12;
+        final double mean = (a00 + a11 + a22) / 3;
+        final double d00 = a00 - mean;
+        final double d11 = a11 - mean;
+        final double d22 = a22 - mean;
+        final double p = Math.sqrt((d00 * d00 + d11 * d11 + d22 * d22 + 2 * offDiagonal) / 6);
+        final double scale = Math.max(Math.abs(a00), Math.max(Math.abs(a11), Math.abs(a22)))
+                + Math.sqrt(offDiagonal);
+        if (p <= EPSILON * scale) {
+            // A multiple of the identity: any basis is an eigenbasis.
+            eigenvalues[0] = eigenvalues[1] = eigenvalues[2] = mean;
+            setRow(eigenvectors, 0, 1, 0, 0);
+            setRow(eigenvectors, 1, 0, 1, 0);
+            setRow(eigenvectors, 2, 0, 0, 1);
+            return;
+        }
+
+        // The eigenvalues of B = (A - mean I) / p are 2 cos(phi + 2 k pi / 3), with
+        // cos(3 phi) = det(B) / 2.
+        final double b00 = d00 / p;
+        final double b11 = d11 / p;
+        final double b22 = d22 / p;
+        final double b01 = a01 / p;
+        final double b02 = a02 / p;
+        final double b12 = a12 / p;
+        final double halfDeterminant = 0.5 * (b00 * (b11 * b22 - b12 * b12)
+                - b01 * (b01 * b22 - b12 * b02)
+                + b02 * (b01 * b12 - b11 * b02));
+        final double phi = Math.acos(Math.max(-1, Math.min(1, halfDeterminant))) / 3;
+        final double largest = mean + 2 * p * Math.cos(phi);
+        final double smallest = mean + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+        final double middle = 3 * mean - largest - smallest;
+        eigenvalues[0] = largest;
+        eigenvalues[1] = middle;
+        eigenvalues[2] = smallest;
+
+        // The eigenvector of the most isolated eigenvalue is well defined, so it is found first.
+        // The second one is made orthogonal to it, and the third one completes the basis.
+        if (largest - middle >= middle - smallest) {
+            computeEigenvector(a00, a01, a02, a11, a12, a22, largest, eigenvectors, 0, -1);
+            computeEigenvector(a00, a01, a02, a11, a12, a22, middle, eigenvectors, 1, 0);
+            cross(eigenvectors, 0, 1, 2);
+        } else {
+            computeEigenvector(a00, a01, a02, a11, a12, a22, smallest, eigenvectors, 2, -1);
+            computeEigenvector(a00, a01, a02, a11, a12, a22, middle, eigenvectors, 1, 2);
+            cross(eigenvectors, 1, 2, 0);
+        }
+    }
+
+    /**
+     * Sets row {@code row} of {@code vectors} to a unit eigenvector of {@code eigenvalue}, made
+     * orthogonal to row {@code orthogonalTo} unless it is negative.
+     */
+    private static void computeEigenvector(double a00, double a01, double a02, double a11,
+                                           double a12, double a22, double eigenvalue,
+                                           double[] vectors, int row, int orthogonalTo) {
+        // The eigenvector is orthogonal to the rows of (A - lambda I), so it is parallel to the
+        // largest of their cross products.
+        final double r00 = a00 - eigenvalue;
+        final double r11 = a11 - eigenvalue;
+        final double r22 = a22 - eigenvalue;
+        final double c0x = a01 * a12 - a02 * r11;
+        final double c0y = a02 * a01 - r00 * a12;
+        final double c0z = r00 * r11 - a01 * a01;
+        final double c1x = a01 * r22 - a02 * a12;
+        final double c1y = a02 * a02 - r00 * r22;
+        final double c1z = r00 * a12 - a01 * a02;
+        final double c2x = r11 * r22 - a12 * a12;
+        final double c2y = a12 * a02 - a01 * r22;
+        final double c2z = a01 * a12 - r11 * a02;
+        final double n0 = c0x * c0x + c0y * c0y + c0z * c0z;
+        final double n1 = c1x * c1x + c1y * c1y + c1z * c1z;
+        final double n2 = c2x * c2x + c2y * c2y + c2z * c2z;
+        if (n0 >= n1 && n0 >= n2) {
+            setRow(vectors, row, c0x, c0y, c0z);
+        } else if (n1 >= n2) {
+            setRow(vectors, row, c1x, c1y, c1z);
+        } else {
+            setRow(vectors, row, c2x, c2y, c2z);
+        }
+
+        if (orthogonalTo >= 0) {
+            final double dot = vectors[3 * row] * vectors[3 * orthogonalTo]
+                    + vectors[3 * row + 1] * vectors[3 * orthogonalTo + 1]
+                    + vectors[3 * row + 2] * vectors[3 * orthogonalTo + 2];
+            for (int i = 0; i < 3; ++i) {
+                vectors[3 * row + i] -= dot * vectors[3 * orthogonalTo + i];
+            }
+        }
+        final double length = Math.sqrt(vectors[3 * row] * vectors[3 * row]
+                + vectors[3 * row + 1] * vectors[3 * row + 1]
+                + vectors[3 * row + 2] * vectors[3 * row + 2]);
+        if (length > EPSILON) {
+            for (int i = 0; i < 3; ++i) {
+                vectors[3 * row + i] /= length;
+            }
+            return;
+        }
+
+        // The eigenvalue is repeated, so any unit vector orthogonal to the other eigenvector will
+        // do.  It is built from the axis least aligned with that eigenvector.
+        if (orthogonalTo < 0) {
+            setRow(vectors, row, 1, 0, 0);
+            return;
+        }
+        final double ox = vectors[3 * orthogonalTo];
+        final double oy = vectors[3 * orthogonalTo + 1];
+        final double oz = vectors[3 * orthogonalTo + 2];
+        if (Math.abs(ox) <= Math.abs(oy) && Math.abs(ox) <= Math.abs(oz)) {
+            setRow(vectors, row, 0, oz, -oy);
+        } else if (Math.abs(oy) <= Math.abs(oz)) {
+            setRow(vectors, row, -oz, 0, ox);
+        } else {
+            setRow(vectors, row, oy, -ox, 0);
+        }
+        final double perpendicularLength = Math.sqrt(vectors[3 * row] * vectors[3 * row]
+                + vectors[3 * row + 1] * vectors[3 * row + 1]
+                + vectors[3 * row + 2] * vectors[3 * row + 2]);
+        for (int i = 0; i < 3; ++i) {
+            vectors[3 * row + i] /= perpendicularLength;
+        }
+    }
+
+    /** Sets row {@code result} of {@code vectors} to the cross product of rows a and b. */
+    private static void cross(double[] vectors, int a, int b, int result) {
+        final double ax = vectors[3 * a];
+        final double ay = vectors[3 * a + 1];
+        final double az = vectors[3 * a + 2];
+        final double bx = vectors[3 * b];
+        final double by = vectors[3 * b + 1];
+        final double bz = vectors[3 * b + 2];
+        setRow(vectors, result, ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx);
+    }
+
+    private static void setRow(double[] vectors, int row, double x, double y, double z) {
+        vectors[3 * row] = x;
+        vectors[3 * row + 1] = y;
+        vectors[3 * row + 2] = z;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+/**
+ * A set of occupied voxels, addressed by their non-negative x, y and z indices. Voxels are
+ * exchanged with callers as packed keys, which hold the x, y and z indices in that order so that
+ * ordering the keys orders the voxels in x, y, z scan order.
+ */
+abstract class VoxelGrid {
+    static final int BITS_PER_AXIS = 21;
+    static final int MAX_INDEX = (1 << BITS_PER_AXIS) - 1;
+
+    /** Returned by {@link #nextOccupied()} once every occupied voxel has been returned. */
+    static final long NONE = -1;
+
+    private static final int MIN_TABLE_SIZE = 16;
+
+    static long pack(int x, int y, int z) {
+        return ((long) x << (2 * BITS_PER_AXIS)) | ((long) y << BITS_PER_AXIS) | z;
+    }
+
+    static int unpackX(long key) {
+        return (int) (key >>> (2 * BITS_PER_AXIS));
+    }
+
+    static int unpackY(long key) {
+        return (int) (key >>> BITS_PER_AXIS) & MAX_INDEX;
+    }
+
+    static int unpackZ(long key) {
+        return (int) key & MAX_INDEX;
+    }
+
+    /** Hashes a packed key, for grids stored as hash tables. */
+    static int hash(long key) {
+        // Fibonacci hashing spreads the packed indices over the high bits.
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /** Returns the smallest power of two hash table size of at least {@code minCapacity}. */
+    static int tableSizeFor(long minCapacity) {
+        int capacity = MIN_TABLE_SIZE;
+        while (capacity < minCapacity && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /** Returns true if the indices can be packed into a key. */
+    static boolean isPackable(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x <= MAX_INDEX && y <= MAX_INDEX && z <= MAX_INDEX;
+    }
+
+    /**
+     * Marks a voxel as occupied. Voxels the grid cannot hold are dropped.
+     *
+     * @return true if the voxel was not occupied before.
+     */
+    abstract boolean add(int x, int y, int z);
+
+    /**
+     * Clears a voxel. Indices outside of the grid are treated as empty voxels.
+     *
+     * @return true if the voxel was occupied.
+     */
+    abstract boolean remove(int x, int y, int z);
+
+    abstract boolean contains(int x, int y, int z);
+
+    abstract int getNumOccupied();
+
+    /** Returns the number of voxels dropped because the grid could not hold them. */
+    abstract int getNumDropped();
+
+    /**
+     * Scans the grid in x, y, z order, returning the key of the next voxel that is still occupied,
+     * or {@link #NONE} at the end of the grid. The scan never moves backwards, so voxels added
+     * behind it are not returned. Callers clear the returned voxel before the next call.
+     */
+    abstract long nextOccupied();
+}
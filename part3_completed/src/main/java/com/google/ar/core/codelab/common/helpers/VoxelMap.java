@@ -0,0 +1,718 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A voxel map in world coordinates, accumulated over the depth frames of a session.
+ *
+ * <p>Each call to {@link #integrate(FloatBuffer)} adds the points of a frame to the map. Voxels
+ * count the frames that observed them, and voxels observed by at least {@link #setMinHits(int)
+ * min hits} frames are occupied. Voxels that are not observed lose confidence over time, and are
+ * evicted once their confidence is too low or they are too old. When the map exceeds its budget,
+ * the least recently observed voxels are evicted first.
+ *
+ * <p>Clusters of occupied voxels are kept between updates, and identified by small ids that are
+ * recycled once their cluster is removed. {@link #updateClusters(ClusterChangeSet)} only visits
+ * the clusters around voxels that changed: a voxel that becomes occupied joins the cluster of its
+ * neighbors, merging the smaller clusters into the largest one, and an evicted voxel causes its
+ * cluster to be labeled again, the largest part keeping the id of the cluster.
+ */
+public class VoxelMap {
+    // The size of the voxels.  Matches the resolution of PointClusteringHelper.
+    private static final float VOXEL_SIZE = 0.02f; // Units: meters.
+
+    // World voxel indices are signed, and offset by this bias to be packed into keys.
+    private static final int INDEX_BIAS = 1 << (VoxelGrid.BITS_PER_AXIS - 1);
+
+    // Once over budget, the oldest voxels are evicted until the map is back to this fraction of
+    // the budget, to leave room for the voxels of the next frames.
+    private static final float EVICTION_TARGET = 0.9f;
+
+    private static final long EMPTY = -1;
+
+    // The id of no cluster.
+    private static final int NO_CLUSTER = 0;
+
+    // Changes of a cluster during an update.
+    private static final int UNCHANGED = 0;
+    private static final int ADDED = 1;
+    private static final int CHANGED = 2;
+    private static final int REMOVED = 3;
+    // Set for clusters added then removed within an update, which are not reported.
+    private static final int TRANSIENT = 4;
+
+    // Voxels are stored in an open-addressing hash table, with the voxel data in parallel arrays.
+    private final int maxVoxels;
+    private final int maxCapacity;
+    private long[] keys;
+    private int[] hits;
+    private float[] confidences;
+    private int[] lastSeenFrames;
+    private int[] labels;
+    private int[] visitStamps;
+    private int mask;
+    private int numVoxels;
+
+    private int frameIndex;
+    private int minHits = 2;
+    private int maxAge = 300; // Units: frames.
+    private float confidenceDecay = 0.98f;
+    private float minConfidence = 0.05f;
+
+    private int numDroppedVoxels;
+    private int numEvictedVoxels;
+    private int numRelabeledVoxels;
+
+    // Voxels that became occupied, and occupied voxels evicted with their labels, since the last
+    // update of the clusters.
+    private long[] addedKeys = new long[64];
+    private int numAdded;
+    private long[] removedKeys = new long[64];
+    private int[] removedLabels = new int[64];
+    private int numRemoved;
+    // Set when every voxel must be labeled again.
+    private boolean relabelAll;
+
+    // Clusters, indexed by id.  Bounds are stored as min x, y, z then max x, y, z, in biased voxel
+    // indices.  Ids of removed clusters are only reused by the next updates.
+    private int[] clusterSizes = new int[64];
+    private int[] clusterBounds = new int[6 * 64];
+    private int[] clusterChanges = new int[64];
+    private int numClusterIds = 1;
+    private int numClusters;
+    private int[] freeIds = new int[64];
+    private int numFreeIds;
+    private int[] releasedIds = new int[64];
+    private int numReleasedIds;
+    private int[] touchedIds = new int[64];
+    private int numTouchedIds;
+
+    // Scratch storage, reused between frames.
+    private long[] evictedKeys = new long[64];
+    private int[] ageHistogram = new int[0];
+    private long[] stack = new long[64];
+    private long[] removalOrder = new long[64];
+    private long[] partKeys = new long[64];
+    private int[] partOffsets = new int[64];
+    private int[] partBounds = new int[6 * 64];
+    private int visitPass;
+    private final int[] neighborLabels = new int[6];
+    private final int[] neighborSlots = new int[6];
+    private final ClusterChangeSet scratchChanges = new ClusterChangeSet();
+
+    /** @param maxVoxels the maximum number of voxels kept in the map. */
+    public VoxelMap(int maxVoxels) {
+        this.maxVoxels = maxVoxels;
+        // The table is kept at most half full.
+        maxCapacity = VoxelGrid.tableSizeFor(2L * maxVoxels);
+        allocate(Math.min(maxCapacity, 1 << 12));
+    }
+
+    /** Sets the number of frames that must observe a voxel for it to be occupied. */
+    public void setMinHits(int minHits) {
+        if (minHits != this.minHits) {
+            this.minHits = minHits;
+            relabelAll = true;
+        }
+    }
+
+    /** Sets the number of frames after which an unobserved voxel is evicted. */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Sets the factor applied to the confidence of a voxel for each frame that does not observe
+     * it, and the confidence under which the voxel is evicted.
+     */
+    public void setConfidenceDecay(float confidenceDecay, float minConfidence) {
+        this.confidenceDecay = confidenceDecay;
+        this.minConfidence = minConfidence;
+    }
+
+    /** Removes every voxel.  The next update reports every cluster as removed. */
+    public void clear() {
+        allocate(keys.length);
+        numAdded = 0;
+        numRemoved = 0;
+        relabelAll = false;
+        for (int id = 1; id < numClusterIds; ++id) {
+            if (clusterSizes[id] > 0) {
+                removeCluster(id);
+            }
+        }
+    }
+
+    public int getNumVoxels() {
+        return numVoxels;
+    }
+
+    /** Returns the number of voxels not added because the map was full. */
+    public int getDroppedVoxelCount() {
+        return numDroppedVoxels;
+    }
+
+    /** Returns the number of voxels evicted, because of their age or of the budget. */
+    public int getEvictedVoxelCount() {
+        return numEvictedVoxels;
+    }
+
+    /** Returns the number of voxels labeled by the last update of the clusters. */
+    public int getRelabeledVoxelCount() {
+        return numRelabeledVoxels;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /** Returns an upper bound of the cluster ids, which are all in [1, getClusterIdBound()). */
+    public int getClusterIdBound() {
+        return numClusterIds;
+    }
+
+    /** Returns the number of voxels of a cluster, or 0 if there is no cluster with this id. */
+    public int getClusterVoxelCount(int id) {
+        return id < numClusterIds ? clusterSizes[id] : 0;
+    }
+
+    /** Sets {@code bounds} to the bounding box of a cluster, in meters. */
+    public void getClusterBounds(int id, AABB bounds) {
+        final int offset = 6 * id;
+        bounds.minX = VOXEL_SIZE * (clusterBounds[offset] - INDEX_BIAS);
+        bounds.minY = VOXEL_SIZE * (clusterBounds[offset + 1] - INDEX_BIAS);
+        bounds.minZ = VOXEL_SIZE * (clusterBounds[offset + 2] - INDEX_BIAS);
+        bounds.maxX = VOXEL_SIZE * (clusterBounds[offset + 3] + 1 - INDEX_BIAS);
+        bounds.maxY = VOXEL_SIZE * (clusterBounds[offset + 4] + 1 - INDEX_BIAS);
+        bounds.maxZ = VOXEL_SIZE * (clusterBounds[offset + 5] + 1 - INDEX_BIAS);
+    }
+
+    /**
+     * Adds the points of a frame to the map, given in world coordinates with their confidence as
+     * the fourth component. Points with no confidence are ignored. Voxels are then aged, and
+     * evicted if needed.
+     */
+    public void integrate(FloatBuffer points) {
+        ++frameIndex;
+        points.rewind();
+        while (points.hasRemaining()) {
+            final float x = points.get();
+            final float y = points.get();
+            final float z = points.get();
+            final float confidence = points.get();
+            if (confidence <= 0) {
+                continue;
+            }
+            addObservation(x, y, z, confidence);
+        }
+        evictStaleVoxels();
+        evictOverBudget();
+    }
+
+    /**
+     * Updates the clusters with the voxels that changed since the last update, and reports the
+     * clusters that were added, changed or removed in {@code changes}.
+     */
+    public void updateClusters(ClusterChangeSet changes) {
+        numRelabeledVoxels = 0;
+        if (relabelAll) {
+            relabelAll = false;
+            for (int id = 1; id < numClusterIds; ++id) {
+                if (clusterSizes[id] > 0) {
+                    removeCluster(id);
+                }
+            }
+            Arrays.fill(labels, NO_CLUSTER);
+            for (int slot = 0; slot < keys.length; ++slot) {
+                if (keys[slot] != EMPTY && hits[slot] >= minHits) {
+                    insertVoxel(slot);
+                }
+            }
+        } else {
+            // Removals are handled first, so that the clusters are connected again before the new
+            // voxels join them.
+            splitClusters();
+            for (int i = 0; i < numAdded; ++i) {
+                final int slot = findSlot(addedKeys[i]);
+                if (keys[slot] != EMPTY && hits[slot] >= minHits && labels[slot] == NO_CLUSTER) {
+                    insertVoxel(slot);
+                }
+            }
+        }
+        numAdded = 0;
+        numRemoved = 0;
+
+        // Reports the changes, and makes the ids of the removed clusters available again.
+        changes.clear();
+        for (int i = 0; i < numTouchedIds; ++i) {
+            final int id = touchedIds[i];
+            if (clusterChanges[id] == ADDED) {
+                changes.addAdded(id);
+            } else if (clusterChanges[id] == CHANGED) {
+                changes.addChanged(id);
+            } else if (clusterChanges[id] == REMOVED) {
+                changes.addRemoved(id);
+            }
+            clusterChanges[id] = UNCHANGED;
+        }
+        numTouchedIds = 0;
+        freeIds = ensureCapacity(freeIds, numFreeIds + numReleasedIds);
+        System.arraycopy(releasedIds, 0, freeIds, numFreeIds, numReleasedIds);
+        numFreeIds += numReleasedIds;
+        numReleasedIds = 0;
+    }
+
+    /** Updates the clusters, and returns the bounding boxes of all clusters ordered by id. */
+    public List<AABB> findClusters() {
+        updateClusters(scratchChanges);
+        List<AABB> boxes = new ArrayList<>(numClusters);
+        for (int id = 1; id < numClusterIds; ++id) {
+            if (clusterSizes[id] > 0) {
+                AABB bounds = new AABB();
+                getClusterBounds(id, bounds);
+                boxes.add(bounds);
+            }
+        }
+        return boxes;
+    }
+
+    private void addObservation(float x, float y, float z, float confidence) {
+        final int indexX = (int) Math.floor(x / VOXEL_SIZE) + INDEX_BIAS;
+        final int indexY = (int) Math.floor(y / VOXEL_SIZE) + INDEX_BIAS;
+        final int indexZ = (int) Math.floor(z / VOXEL_SIZE) + INDEX_BIAS;
+        if (!VoxelGrid.isPackable(indexX, indexY, indexZ)) {
+            ++numDroppedVoxels;
+            return;
+        }
+        final long key = VoxelGrid.pack(indexX, indexY, indexZ);
+
+        int slot = findSlot(key);
+        if (keys[slot] == EMPTY) {
+            if (numVoxels >= maxVoxels) {
+                ++numDroppedVoxels;
+                return;
+            }
+            if (2 * (numVoxels + 1) > keys.length) {
+                rehash(keys.length * 2);
+                slot = findSlot(key);
+            }
+            keys[slot] = key;
+            hits[slot] = 0;
+            confidences[slot] = 0;
+            lastSeenFrames[slot] = 0;
+            labels[slot] = NO_CLUSTER;
+            visitStamps[slot] = 0;
+            ++numVoxels;
+        }
+
+        // A voxel is hit at most once per frame, however many points fall into it.
+        if (lastSeenFrames[slot] == frameIndex) {
+            return;
+        }
+        lastSeenFrames[slot] = frameIndex;
+        if (hits[slot] < Integer.MAX_VALUE) {
+            ++hits[slot];
+        }
+        // The confidence is the mean confidence of the observations.
+        confidences[slot] += (confidence - confidences[slot]) / hits[slot];
+        if (hits[slot] == minHits) {
+            addedKeys = ensureCapacity(addedKeys, numAdded + 1);
+            addedKeys[numAdded++] = key;
+        }
+    }
+
+    /** Decays the confidence of the voxels not observed by this frame, evicting stale voxels. */
+    private void evictStaleVoxels() {
+        int numEvicted = 0;
+        for (int slot = 0; slot < keys.length; ++slot) {
+            if (keys[slot] == EMPTY || lastSeenFrames[slot] == frameIndex) {
+                continue;
+            }
+            confidences[slot] *= confidenceDecay;
+            if (confidences[slot] < minConfidence || frameIndex - lastSeenFrames[slot] > maxAge) {
+                evictedKeys = ensureCapacity(evictedKeys, numEvicted + 1);
+                evictedKeys[numEvicted++] = keys[slot];
+            }
+        }
+        // Voxels are removed after the sweep, since removals move other voxels in the table.
+        for (int i = 0; i < numEvicted; ++i) {
+            remove(evictedKeys[i]);
+        }
+    }
+
+    /** Evicts the least recently observed voxels while the map is over budget. */
+    private void evictOverBudget() {
+        if (numVoxels <= maxVoxels * EVICTION_TARGET) {
+            return;
+        }
+        // Finds the age from which voxels are evicted.  Voxels of the current frame are kept.
+        if (ageHistogram.length < maxAge + 1) {
+            ageHistogram = new int[maxAge + 1];
+        }
+        Arrays.fill(ageHistogram, 0);
+        for (int slot = 0; slot < keys.length; ++slot) {
+            if (keys[slot] != EMPTY) {
+                ++ageHistogram[Math.min(maxAge, frameIndex - lastSeenFrames[slot])];
+            }
+        }
+        final int excess = numVoxels - (int) (maxVoxels * EVICTION_TARGET);
+        int minEvictedAge = maxAge + 1;
+        for (int numOlder = 0; minEvictedAge > 1 && numOlder < excess; ) {
+            numOlder += ageHistogram[--minEvictedAge];
+        }
+
+        int numEvicted = 0;
+        for (int slot = 0; slot < keys.length; ++slot) {
+            if (keys[slot] != EMPTY && frameIndex - lastSeenFrames[slot] >= minEvictedAge) {
+                evictedKeys = ensureCapacity(evictedKeys, numEvicted + 1);
+                evictedKeys[numEvicted++] = keys[slot];
+            }
+        }
+        for (int i = 0; i < numEvicted; ++i) {
+            remove(evictedKeys[i]);
+        }
+    }
+
+    /**
+     * Adds an occupied voxel to the clusters.  The voxel joins the largest cluster among its
+     * neighbors, into which the other neighboring clusters are merged, or starts a new cluster.
+     */
+    private void insertVoxel(int slot) {
+        final long key = keys[slot];
+        final int x = VoxelGrid.unpackX(key);
+        final int y = VoxelGrid.unpackY(key);
+        final int z = VoxelGrid.unpackZ(key);
+
+        int target = NO_CLUSTER;
+        for (int neighbor = 0; neighbor < 6; ++neighbor) {
+            neighborSlots[neighbor] = findNeighborSlot(x, y, z, neighbor);
+            neighborLabels[neighbor] =
+                    neighborSlots[neighbor] < 0 ? NO_CLUSTER : labels[neighborSlots[neighbor]];
+            if (neighborLabels[neighbor] != NO_CLUSTER
+                    && (target == NO_CLUSTER
+                            || clusterSizes[neighborLabels[neighbor]] > clusterSizes[target])) {
+                target = neighborLabels[neighbor];
+            }
+        }
+
+        if (target == NO_CLUSTER) {
+            target = createCluster();
+        } else {
+            // Merges the smaller clusters into the largest one, relabeling their voxels.
+            for (int neighbor = 0; neighbor < 6; ++neighbor) {
+                final int label = labels[Math.max(0, neighborSlots[neighbor])];
+                if (neighborSlots[neighbor] >= 0 && label != NO_CLUSTER && label != target) {
+                    mergeCluster(label, neighborSlots[neighbor], target);
+                }
+            }
+            markChanged(target);
+        }
+        labels[slot] = target;
+        addToCluster(target, x, y, z);
+    }
+
+    /** Relabels the voxels of cluster {@code from}, starting at {@code slot}, into {@code to}. */
+    private void mergeCluster(int from, int slot, int to) {
+        labels[slot] = to;
+        int stackSize = 0;
+        stack[stackSize++] = keys[slot];
+        while (stackSize > 0) {
+            final long key = stack[--stackSize];
+            final int x = VoxelGrid.unpackX(key);
+            final int y = VoxelGrid.unpackY(key);
+            final int z = VoxelGrid.unpackZ(key);
+            ++numRelabeledVoxels;
+            for (int neighbor = 0; neighbor < 6; ++neighbor) {
+                final int neighborSlot = findNeighborSlot(x, y, z, neighbor);
+                if (neighborSlot >= 0 && labels[neighborSlot] == from) {
+                    labels[neighborSlot] = to;
+                    stack = ensureCapacity(stack, stackSize + 1);
+                    stack[stackSize++] = keys[neighborSlot];
+                }
+            }
+        }
+
+        clusterSizes[to] += clusterSizes[from];
+        for (int axis = 0; axis < 3; ++axis) {
+            clusterBounds[6 * to + axis] =
+                    Math.min(clusterBounds[6 * to + axis], clusterBounds[6 * from + axis]);
+            clusterBounds[6 * to + 3 + axis] =
+                    Math.max(clusterBounds[6 * to + 3 + axis], clusterBounds[6 * from + 3 + axis]);
+        }
+        removeCluster(from);
+    }
+
+    /**
+     * Labels again the clusters that lost voxels.  A cluster may split into several parts, each of
+     * which is next to one of its evicted voxels.  The largest part keeps the id of the cluster.
+     */
+    private void splitClusters() {
+        // Groups the evicted voxels by cluster.
+        removalOrder = ensureCapacity(removalOrder, numRemoved);
+        for (int i = 0; i < numRemoved; ++i) {
+            removalOrder[i] = ((long) removedLabels[i] << 32) | i;
+        }
+        Arrays.sort(removalOrder, 0, numRemoved);
+
+        for (int begin = 0; begin < numRemoved; ) {
+            final int label = (int) (removalOrder[begin] >>> 32);
+            int end = begin + 1;
+            while (end < numRemoved && (int) (removalOrder[end] >>> 32) == label) {
+                ++end;
+            }
+            if (label != NO_CLUSTER) {
+                splitCluster(label, begin, end);
+            }
+            begin = end;
+        }
+    }
+
+    /** Labels again a cluster, given the range of its evicted voxels in the removal order. */
+    private void splitCluster(int label, int begin, int end) {
+        ++visitPass;
+        int numParts = 0;
+        int numPartKeys = 0;
+        int largestPart = -1;
+        for (int i = begin; i < end; ++i) {
+            final long removedKey = removedKeys[(int) removalOrder[i]];
+            final int removedX = VoxelGrid.unpackX(removedKey);
+            final int removedY = VoxelGrid.unpackY(removedKey);
+            final int removedZ = VoxelGrid.unpackZ(removedKey);
+            for (int neighbor = 0; neighbor < 6; ++neighbor) {
+                final int seedSlot = findNeighborSlot(removedX, removedY, removedZ, neighbor);
+                if (seedSlot < 0 || labels[seedSlot] != label
+                        || visitStamps[seedSlot] == visitPass) {
+                    continue;
+                }
+
+                // Collects the voxels of a new part.
+                partOffsets = ensureCapacity(partOffsets, numParts + 2);
+                partBounds = ensureCapacity(partBounds, 6 * (numParts + 1));
+                partOffsets[numParts] = numPartKeys;
+                final int bounds = 6 * numParts;
+                Arrays.fill(partBounds, bounds, bounds + 3, Integer.MAX_VALUE);
+                Arrays.fill(partBounds, bounds + 3, bounds + 6, Integer.MIN_VALUE);
+                visitStamps[seedSlot] = visitPass;
+                partKeys = ensureCapacity(partKeys, numPartKeys + 1);
+                partKeys[numPartKeys++] = keys[seedSlot];
+                for (int next = partOffsets[numParts]; next < numPartKeys; ++next) {
+                    final long key = partKeys[next];
+                    final int x = VoxelGrid.unpackX(key);
+                    final int y = VoxelGrid.unpackY(key);
+                    final int z = VoxelGrid.unpackZ(key);
+                    updateBounds(partBounds, bounds, x, y, z);
+                    ++numRelabeledVoxels;
+                    for (int n = 0; n < 6; ++n) {
+                        final int slot = findNeighborSlot(x, y, z, n);
+                        if (slot >= 0 && labels[slot] == label && visitStamps[slot] != visitPass) {
+                            visitStamps[slot] = visitPass;
+                            partKeys = ensureCapacity(partKeys, numPartKeys + 1);
+                            partKeys[numPartKeys++] = keys[slot];
+                        }
+                    }
+                }
+                partOffsets[numParts + 1] = numPartKeys;
+                if (largestPart < 0 || partSize(numParts) > partSize(largestPart)) {
+                    largestPart = numParts;
+                }
+                ++numParts;
+            }
+        }
+
+        if (numParts == 0) {
+            removeCluster(label);
+            return;
+        }
+        for (int part = 0; part < numParts; ++part) {
+            int id = label;
+            if (part != largestPart) {
+                id = createCluster();
+                for (int i = partOffsets[part]; i < partOffsets[part + 1]; ++i) {
+                    labels[findSlot(partKeys[i])] = id;
+                }
+            } else {
+                markChanged(id);
+            }
+            clusterSizes[id] = partSize(part);
+            System.arraycopy(partBounds, 6 * part, clusterBounds, 6 * id, 6);
+        }
+    }
+
+    private int partSize(int part) {
+        return partOffsets[part + 1] - partOffsets[part];
+    }
+
+    /** Returns the slot of an existing neighbor of a voxel, or -1. */
+    private int findNeighborSlot(int x, int y, int z, int neighbor) {
+        final int neighborX = x + (neighbor == 0 ? -1 : neighbor == 1 ? 1 : 0);
+        final int neighborY = y + (neighbor == 2 ? -1 : neighbor == 3 ? 1 : 0);
+        final int neighborZ = z + (neighbor == 4 ? -1 : neighbor == 5 ? 1 : 0);
+        if (!VoxelGrid.isPackable(neighborX, neighborY, neighborZ)) {
+            return -1;
+        }
+        final int slot = findSlot(VoxelGrid.pack(neighborX, neighborY, neighborZ));
+        return keys[slot] == EMPTY ? -1 : slot;
+    }
+
+    private int createCluster() {
+        final int id;
+        if (numFreeIds > 0) {
+            id = freeIds[--numFreeIds];
+        } else {
+            id = numClusterIds++;
+            clusterSizes = ensureCapacity(clusterSizes, numClusterIds);
+            clusterBounds = ensureCapacity(clusterBounds, 6 * numClusterIds);
+            clusterChanges = ensureCapacity(clusterChanges, numClusterIds);
+        }
+        clusterSizes[id] = 0;
+        Arrays.fill(clusterBounds, 6 * id, 6 * id + 3, Integer.MAX_VALUE);
+        Arrays.fill(clusterBounds, 6 * id + 3, 6 * id + 6, Integer.MIN_VALUE);
+        ++numClusters;
+        touch(id);
+        clusterChanges[id] = ADDED;
+        return id;
+    }
+
+    private void addToCluster(int id, int x, int y, int z) {
+        ++clusterSizes[id];
+        updateBounds(clusterBounds, 6 * id, x, y, z);
+    }
+
+    private void markChanged(int id) {
+        touch(id);
+        if (clusterChanges[id] == UNCHANGED) {
+            clusterChanges[id] = CHANGED;
+        }
+    }
+
+    private void removeCluster(int id) {
+        touch(id);
+        clusterChanges[id] = clusterChanges[id] == ADDED ? TRANSIENT : REMOVED;
+        clusterSizes[id] = 0;
+        --numClusters;
+        releasedIds = ensureCapacity(releasedIds, numReleasedIds + 1);
+        releasedIds[numReleasedIds++] = id;
+    }
+
+    /** Records that a cluster changed during the current update. */
+    private void touch(int id) {
+        if (clusterChanges[id] == UNCHANGED) {
+            touchedIds = ensureCapacity(touchedIds, numTouchedIds + 1);
+            touchedIds[numTouchedIds++] = id;
+        }
+    }
+
+    private static void updateBounds(int[] bounds, int offset, int x, int y, int z) {
+        bounds[offset] = Math.min(bounds[offset], x);
+        bounds[offset + 1] = Math.min(bounds[offset + 1], y);
+        bounds[offset + 2] = Math.min(bounds[offset + 2], z);
+        bounds[offset + 3] = Math.max(bounds[offset + 3], x);
+        bounds[offset + 4] = Math.max(bounds[offset + 4], y);
+        bounds[offset + 5] = Math.max(bounds[offset + 5], z);
+    }
+
+    /** Removes a voxel, recording it if it was clustered so that its cluster is labeled again. */
+    private void remove(long key) {
+        int hole = findSlot(key);
+        if (keys[hole] == EMPTY) {
+            return;
+        }
+        if (labels[hole] != NO_CLUSTER) {
+            removedKeys = ensureCapacity(removedKeys, numRemoved + 1);
+            removedLabels = ensureCapacity(removedLabels, numRemoved + 1);
+            removedKeys[numRemoved] = key;
+            removedLabels[numRemoved++] = labels[hole];
+        }
+        --numVoxels;
+        ++numEvictedVoxels;
+
+        // Shifts back the following voxels of the probe sequence, so that no tombstone is needed.
+        for (int slot = (hole + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            final int home = VoxelGrid.hash(keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                moveSlot(slot, hole);
+                hole = slot;
+            }
+        }
+        keys[hole] = EMPTY;
+    }
+
+    private int findSlot(long key) {
+        int slot = VoxelGrid.hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        hits[to] = hits[from];
+        confidences[to] = confidences[from];
+        lastSeenFrames[to] = lastSeenFrames[from];
+        labels[to] = labels[from];
+        visitStamps[to] = visitStamps[from];
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldHits = hits;
+        final float[] oldConfidences = confidences;
+        final int[] oldLastSeenFrames = lastSeenFrames;
+        final int[] oldLabels = labels;
+        final int[] oldVisitStamps = visitStamps;
+        allocate(Math.min(capacity, maxCapacity));
+        for (int oldSlot = 0; oldSlot < oldKeys.length; ++oldSlot) {
+            if (oldKeys[oldSlot] == EMPTY) {
+                continue;
+            }
+            final int slot = findSlot(oldKeys[oldSlot]);
+            keys[slot] = oldKeys[oldSlot];
+            hits[slot] = oldHits[oldSlot];
+            confidences[slot] = oldConfidences[oldSlot];
+            lastSeenFrames[slot] = oldLastSeenFrames[oldSlot];
+            labels[slot] = oldLabels[oldSlot];
+            visitStamps[slot] = oldVisitStamps[oldSlot];
+            ++numVoxels;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        hits = new int[capacity];
+        confidences = new float[capacity];
+        lastSeenFrames = new int[capacity];
+        labels = new int[capacity];
+        visitStamps = new int[capacity];
+        mask = capacity - 1;
+        numVoxels = 0;
+    }
+
+    private static long[] ensureCapacity(long[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+    }
+}
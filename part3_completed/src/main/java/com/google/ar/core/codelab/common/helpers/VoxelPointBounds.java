@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.Arrays;
+
+/**
+ * The bounds of the points that fell in each voxel of a grid, stored as an open-addressing hash
+ * table of packed voxel keys with the bounds in a parallel array. Used where voxels are coarser
+ * than the surfaces they sample, so that boxes can be fit to the points rather than to the voxels.
+ */
+final class VoxelPointBounds {
+    private static final long EMPTY = -1;
+
+    // The table starts small, and doubles as voxels are added.
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private long[] keys;
+    // The minimum X, Y, Z then maximum X, Y, Z of the points of the voxel in each slot.
+    private float[] bounds;
+    private int mask;
+    private int numVoxels;
+
+    VoxelPointBounds() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Grows the bounds of voxel {@code key} to include the point. */
+    void add(long key, float x, float y, float z) {
+        int slot = findSlot(key);
+        if (keys[slot] != key) {
+            // The table is kept at most half full.
+            if (2 * (numVoxels + 1) > keys.length) {
+                rehash(keys.length * 2);
+                slot = findSlot(key);
+            }
+            keys[slot] = key;
+            ++numVoxels;
+            final int offset = 6 * slot;
+            bounds[offset] = bounds[offset + 3] = x;
+            bounds[offset + 1] = bounds[offset + 4] = y;
+            bounds[offset + 2] = bounds[offset + 5] = z;
+            return;
+        }
+        final int offset = 6 * slot;
+        bounds[offset] = Math.min(bounds[offset], x);
+        bounds[offset + 1] = Math.min(bounds[offset + 1], y);
+        bounds[offset + 2] = Math.min(bounds[offset + 2], z);
+        bounds[offset + 3] = Math.max(bounds[offset + 3], x);
+        bounds[offset + 4] = Math.max(bounds[offset + 4], y);
+        bounds[offset + 5] = Math.max(bounds[offset + 5], z);
+    }
+
+    /**
+     * Stores the bounds of the points of voxel {@code key} in {@code out}, as the minimum X, Y, Z
+     * then the maximum X, Y, Z.  The voxel must have points.
+     */
+    void get(long key, float[] out) {
+        final int slot = findSlot(key);
+        if (keys[slot] != key) {
+            throw new IllegalArgumentException("Voxel without points: " + key);
+        }
+        System.arraycopy(bounds, 6 * slot, out, 0, 6);
+    }
+
+    /** Returns the slot holding {@code key}, or the empty slot where it would be inserted. */
+    private int findSlot(long key) {
+        int slot = VoxelGrid.hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final float[] oldBounds = bounds;
+        allocate(capacity);
+        for (int oldSlot = 0; oldSlot < oldKeys.length; ++oldSlot) {
+            if (oldKeys[oldSlot] != EMPTY) {
+                final int slot = findSlot(oldKeys[oldSlot]);
+                keys[slot] = oldKeys[oldSlot];
+                System.arraycopy(oldBounds, 6 * oldSlot, bounds, 6 * slot, 6);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        bounds = new float[6 * capacity];
+        mask = capacity - 1;
+    }
+}
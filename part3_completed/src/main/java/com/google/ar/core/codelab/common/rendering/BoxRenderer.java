@@ -22,6 +22,7 @@ import android.opengl.Matrix;
 
 import com.google.ar.core.Camera;
 import com.google.ar.core.codelab.common.helpers.AABB;
+import com.google.ar.core.codelab.common.helpers.OBB;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -36,10 +37,39 @@ public class BoxRenderer {
     private static final String VERTEX_SHADER_NAME = "shaders/box.vert";
     private static final String FRAGMENT_SHADER_NAME = "shaders/box.frag";
 
+    // Boxes kept by setBox() and drawn together by drawBoxes().
+    public static final int MAX_BOXES = 1024;
+    private static final int VERTICES_PER_BOX = 24;
+    private static final int INDICES_PER_BOX = 36;
+
+    // The corners of each vertex of a box, in the order of putCubeVertices(FloatBuffer, AABB).
+    // Bits 0, 1 and 2 of a corner index select the maximum X, Y and Z side, as in
+    // OBB.getCorner().
+    private static final int[] CUBE_VERTEX_CORNERS = {
+            4, 5, 6, 7, // Front.
+            1, 0, 3, 2, // Back.
+            0, 4, 2, 6, // Left.
+            5, 1, 7, 3, // Right.
+            6, 7, 2, 3, // Top.
+            0, 1, 4, 5, // Bottom.
+    };
+
     // Stores the triangulation of the cube.
     private FloatBuffer vertexBuffer;
     private ShortBuffer indexBuffer;
 
+    // Stores the triangulation of the kept boxes.  Removed boxes are collapsed to a point, so that
+    // they draw nothing.
+    private FloatBuffer boxVertexBuffer;
+    private ShortBuffer boxIndexBuffer;
+    private final boolean[] boxSlotsUsed = new boolean[MAX_BOXES];
+    private int numBoxSlots;
+
+    private final float[] projectionMatrix = new float[16];
+    private final float[] viewMatrix = new float[16];
+    private final float[] viewProjection = new float[16];
+    private final float[] obbCorners = new float[3 * 8];
+
     // Shader program.
     private int program;
     private int vPosition;
@@ -83,10 +113,24 @@ public class BoxRenderer {
         ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(288); // 6 faces * 4 corners * 3 dimensions * 4 bytes-per-float.
         vertexByteBuffer.order(ByteOrder.nativeOrder());
         vertexBuffer = vertexByteBuffer.asFloatBuffer();
+
+        // Repeats the index buffer for every kept box.
+        boxIndexBuffer = ByteBuffer.allocateDirect(2 * INDICES_PER_BOX * MAX_BOXES)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        for (int box = 0; box < MAX_BOXES; ++box) {
+            for (short index : indices) {
+                boxIndexBuffer.put((short) (box * VERTICES_PER_BOX + index));
+            }
+        }
+        boxVertexBuffer = ByteBuffer.allocateDirect(4 * 3 * VERTICES_PER_BOX * MAX_BOXES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
         ShaderUtil.checkGLError(TAG, "Init complete");
     }
 
-    private void setCubeDimensions(AABB aabb) {
+    /** Writes the vertices of a box at the current position of {@code buffer}. */
+    private static void putCubeVertices(FloatBuffer buffer, AABB aabb) {
         float[] vertices = {
                 // Front.
                 aabb.minX, aabb.minY, aabb.maxZ,
@@ -119,34 +163,119 @@ public class BoxRenderer {
                 aabb.minX, aabb.minY, aabb.maxZ,
                 aabb.maxX, aabb.minY, aabb.maxZ
         };
-        vertexBuffer.rewind();
-        vertexBuffer.put(vertices);
+        buffer.put(vertices);
+    }
+
+    /**
+     * Writes the vertices of an oriented box at the current position of {@code buffer}, with the
+     * same layout and winding as axis-aligned boxes.
+     */
+    private void putCubeVertices(FloatBuffer buffer, OBB obb) {
+        for (int corner = 0; corner < 8; ++corner) {
+            obb.getCorner(corner, obbCorners, 3 * corner);
+        }
+        for (int corner : CUBE_VERTEX_CORNERS) {
+            buffer.put(obbCorners, 3 * corner, 3);
+        }
+    }
+
+    /**
+     * Keeps a box, to be drawn by {@link #drawBoxes(Camera)} until it is removed or replaced.
+     * Boxes are identified by an index in [0, {@link #MAX_BOXES}). Callers whose ids are not
+     * bounded, e.g. cluster ids, should map them to indices that are.
+     *
+     * @return false if the index is out of range, in which case the box is not drawn.
+     */
+    public boolean setBox(int index, AABB aabb) {
+        if (index < 0 || index >= MAX_BOXES) {
+            return false;
+        }
+        boxVertexBuffer.position(index * 3 * VERTICES_PER_BOX);
+        putCubeVertices(boxVertexBuffer, aabb);
+        boxSlotsUsed[index] = true;
+        numBoxSlots = Math.max(numBoxSlots, index + 1);
+        return true;
+    }
+
+    /** Keeps an oriented box, like {@link #setBox(int, AABB)}. */
+    public boolean setBox(int index, OBB obb) {
+        if (index < 0 || index >= MAX_BOXES) {
+            return false;
+        }
+        boxVertexBuffer.position(index * 3 * VERTICES_PER_BOX);
+        putCubeVertices(boxVertexBuffer, obb);
+        boxSlotsUsed[index] = true;
+        numBoxSlots = Math.max(numBoxSlots, index + 1);
+        return true;
+    }
+
+    /** Removes a box kept by {@link #setBox(int, AABB)}. */
+    public void removeBox(int index) {
+        if (index < 0 || index >= numBoxSlots || !boxSlotsUsed[index]) {
+            return;
+        }
+        boxVertexBuffer.position(index * 3 * VERTICES_PER_BOX);
+        for (int i = 0; i < 3 * VERTICES_PER_BOX; ++i) {
+            boxVertexBuffer.put(0);
+        }
+        boxSlotsUsed[index] = false;
+        while (numBoxSlots > 0 && !boxSlotsUsed[numBoxSlots - 1]) {
+            --numBoxSlots;
+        }
+    }
+
+    /** Removes all boxes kept by {@link #setBox(int, AABB)}. */
+    public void clearBoxes() {
+        while (numBoxSlots > 0) {
+            removeBox(numBoxSlots - 1);
+        }
+    }
+
+    /** Draws all boxes kept by {@link #setBox(int, AABB)} at once. */
+    public void drawBoxes(Camera camera) {
+        if (numBoxSlots == 0) {
+            return;
+        }
+        boxVertexBuffer.rewind();
+        boxIndexBuffer.rewind();
+        drawTriangles(camera, boxVertexBuffer, boxIndexBuffer, numBoxSlots * INDICES_PER_BOX);
     }
 
     public void draw(AABB aabb, Camera camera) {
-        float[] projectionMatrix = new float[16];
+        // Updates the positions of the cube.
+        vertexBuffer.rewind();
+        putCubeVertices(vertexBuffer, aabb);
+        vertexBuffer.rewind();
+        indexBuffer.rewind();
+        drawTriangles(camera, vertexBuffer, indexBuffer, indexBuffer.remaining());
+    }
+
+    public void draw(OBB obb, Camera camera) {
+        vertexBuffer.rewind();
+        putCubeVertices(vertexBuffer, obb);
+        vertexBuffer.rewind();
+        indexBuffer.rewind();
+        drawTriangles(camera, vertexBuffer, indexBuffer, indexBuffer.remaining());
+    }
+
+    private void drawTriangles(
+            Camera camera, FloatBuffer vertices, ShortBuffer indices, int numIndices) {
         camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
-        float[] viewMatrix = new float[16];
         camera.getViewMatrix(viewMatrix, 0);
-        float[] viewProjection = new float[16];
         Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
 
-        // Updates the positions of the cube.
-        setCubeDimensions(aabb);
         GLES20.glUseProgram(program);
         GLES20.glUniformMatrix4fv(uViewProjection, 1, false, viewProjection, 0);
         GLES20.glEnableVertexAttribArray(vPosition);
-        vertexBuffer.rewind();
         GLES20.glVertexAttribPointer(vPosition, 3,
                 GLES20.GL_FLOAT, false,
-                12, vertexBuffer);
+                12, vertices);
         ShaderUtil.checkGLError(TAG, "Draw");
 
-        // Draws a cube.
+        // Draws the cubes.
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        indexBuffer.rewind();
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexBuffer.remaining(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, numIndices, GLES20.GL_UNSIGNED_SHORT, indices);
         GLES20.glDisableVertexAttribArray(vPosition);
         ShaderUtil.checkGLError(TAG, "Draw complete");
     }
@@ -86,6 +86,9 @@ public class DepthRenderer {
     /**
      * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
      * cloud will be ignored.
+     *
+     * <p>The points should be stored in a direct buffer in native byte order, such as the ones
+     * returned by {@link DepthData#create}, so that they are uploaded without an extra copy.
      */
     public void update(FloatBuffer points) {
         ShaderUtil.checkGLError(TAG, "Update");
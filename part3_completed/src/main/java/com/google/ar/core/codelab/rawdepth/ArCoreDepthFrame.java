@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.rawdepth;
+
+import android.media.Image;
+
+import com.google.ar.core.CameraIntrinsics;
+import com.google.ar.core.Pose;
+import com.google.ar.core.codelab.common.depth.DepthFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A depth frame backed by the raw depth and confidence images of ARCore. The image planes are
+ * read in place. The frame is reused from one ARCore frame to the next through
+ * {@link #set(Image, Image, CameraIntrinsics, Pose)}, and owns the images until {@link #close()}.
+ */
+class ArCoreDepthFrame implements DepthFrame {
+    private Image depthImage;
+    private Image confidenceImage;
+    private final float[] cameraPoseMatrix = new float[16];
+
+    private ByteBuffer depthBuffer;
+    private int depthRowStride;
+    private int depthPixelStride;
+    private ByteBuffer confidenceBuffer;
+    private int confidenceRowStride;
+    private int confidencePixelStride;
+
+    private float fx;
+    private float fy;
+    private float cx;
+    private float cy;
+
+    /**
+     * Wraps the given images. The texture intrinsics are rescaled to the resolution of the depth
+     * image.
+     */
+    void set(Image depthImage, Image confidenceImage, CameraIntrinsics cameraTextureIntrinsics,
+             Pose cameraPose) {
+        this.depthImage = depthImage;
+        this.confidenceImage = confidenceImage;
+
+        // The depth plane is read in place: ARCore fills it in little-endian order, so the byte
+        // order of the plane's buffer is set accordingly and no per-frame copy is made.
+        final Image.Plane depthImagePlane = depthImage.getPlanes()[0];
+        depthBuffer = depthImagePlane.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        depthRowStride = depthImagePlane.getRowStride();
+        depthPixelStride = depthImagePlane.getPixelStride();
+
+        // The confidence plane holds one byte per pixel, so it can be read directly.
+        final Image.Plane confidenceImagePlane = confidenceImage.getPlanes()[0];
+        confidenceBuffer = confidenceImagePlane.getBuffer();
+        confidenceRowStride = confidenceImagePlane.getRowStride();
+        confidencePixelStride = confidenceImagePlane.getPixelStride();
+
+        // To transform 2D depth pixels into 3D points we retrieve the intrinsic camera parameters
+        // corresponding to the depth image. See more information about the depth values at
+        // https://developers.google.com/ar/develop/java/depth/overview#understand-depth-values.
+        final int[] intrinsicsDimensions = cameraTextureIntrinsics.getImageDimensions();
+        final float[] focalLength = cameraTextureIntrinsics.getFocalLength();
+        final float[] principalPoint = cameraTextureIntrinsics.getPrincipalPoint();
+        final int depthWidth = depthImage.getWidth();
+        final int depthHeight = depthImage.getHeight();
+        fx = focalLength[0] * depthWidth / intrinsicsDimensions[0];
+        fy = focalLength[1] * depthHeight / intrinsicsDimensions[1];
+        cx = principalPoint[0] * depthWidth / intrinsicsDimensions[0];
+        cy = principalPoint[1] * depthHeight / intrinsicsDimensions[1];
+
+        cameraPose.toMatrix(cameraPoseMatrix, 0);
+    }
+
+    /** Closes the wrapped images. */
+    void close() {
+        if (depthImage != null) {
+            depthImage.close();
+            depthImage = null;
+        }
+        if (confidenceImage != null) {
+            confidenceImage.close();
+            confidenceImage = null;
+        }
+        depthBuffer = null;
+        confidenceBuffer = null;
+    }
+
+    @Override
+    public int getWidth() {
+        return depthImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return depthImage.getHeight();
+    }
+
+    @Override
+    public ByteBuffer getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    @Override
+    public int getDepthRowStride() {
+        return depthRowStride;
+    }
+
+    @Override
+    public int getDepthPixelStride() {
+        return depthPixelStride;
+    }
+
+    @Override
+    public ByteBuffer getConfidenceBuffer() {
+        return confidenceBuffer;
+    }
+
+    @Override
+    public int getConfidenceRowStride() {
+        return confidenceRowStride;
+    }
+
+    @Override
+    public int getConfidencePixelStride() {
+        return confidencePixelStride;
+    }
+
+    @Override
+    public float getFocalLengthX() {
+        return fx;
+    }
+
+    @Override
+    public float getFocalLengthY() {
+        return fy;
+    }
+
+    @Override
+    public float getPrincipalPointX() {
+        return cx;
+    }
+
+    @Override
+    public float getPrincipalPointY() {
+        return cy;
+    }
+
+    @Override
+    public void getCameraPoseMatrix(float[] matrix, int offset) {
+        System.arraycopy(cameraPoseMatrix, 0, matrix, offset, 16);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return depthImage.getTimestamp();
+    }
+}
@@ -17,46 +17,159 @@
 package com.google.ar.core.codelab.rawdepth;
 
 import android.media.Image;
-import android.opengl.Matrix;
 
-import com.google.ar.core.Anchor;
-import com.google.ar.core.CameraIntrinsics;
 import com.google.ar.core.Frame;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
+import com.google.ar.core.Session;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.codelab.common.depth.DepthPointConverter;
+import com.google.ar.core.codelab.common.depth.PlaneDistanceFilter;
+import com.google.ar.core.codelab.common.depth.PlaneFilter;
+import com.google.ar.core.codelab.common.helpers.PlaneDetector;
 import com.google.ar.core.exceptions.NotYetAvailableException;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 import java.util.Collection;
 
 /**
  * Converts depth data from ARCore depth images to 3D pointclouds. Points are added by calling the
  * Raw Depth API, and reprojected into 3D space.
+ *
+ * <p>This class only bridges ARCore to the platform-independent depth processing in
+ * {@link DepthPointConverter}, {@link PlaneFilter} and {@link PlaneDetector}.
  */
 public class DepthData {
-    public static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+    public static final int FLOATS_PER_POINT = DepthPointConverter.FLOATS_PER_POINT;
+
+    private final DepthPointConverter converter;
+
+    // Removes the points on the planes tracked by ARCore during the conversion. The converter
+    // tests them in chunks against all planes at once, skipping the polygons far from each point,
+    // on its own worker threads.
+    private final PlaneFilter planeFilter;
+    private final int planeFilterIndex;
+    private int detectedPlanePointCount;
+
+    // Finds planes in the point clouds themselves, which ARCore may not track yet. The planes
+    // found in a frame are added to the plane filter next to the ARCore planes for one filter
+    // pass over the points of that frame, then removed again.
+    private final PlaneDetector planeDetector;
+    private boolean planeDetectionEnabled;
+
+    // Reused from frame to frame, so that steady-state frames do not allocate.
+    private final ArCoreDepthFrame depthFrame = new ArCoreDepthFrame();
+    private final float[] planeMatrix = new float[16];
+
+    // Raw depth arrives at a lower rate than camera frames. The timestamp of the last converted
+    // depth image allows skipping the images that were already processed.
+    private long lastDepthTimestamp = -1;
+    private boolean depthImageUnchanged;
+    private long processedDepthImageCount;
+    private long skippedDepthImageCount;
+
+    public DepthData() {
+        this(1);
+    }
+
+    /** Creates a converter that splits each depth image across {@code workerCount} threads. */
+    public DepthData(int workerCount) {
+        converter = new DepthPointConverter(workerCount);
+        // The workers of the plane filter only run the pass over the planes found in the points;
+        // the converter tests the points against the ARCore planes on its own workers.
+        planeFilter = new PlaneFilter(workerCount);
+        planeFilterIndex = converter.getFilterPipeline().getNumFilters();
+        converter.getFilterPipeline().addFilter(new PlaneDistanceFilter(planeFilter));
+        planeDetector = new PlaneDetector(workerCount);
+    }
+
+    /**
+     * Enables the detection of planes in the converted points, whose points are then removed like
+     * those of the planes tracked by ARCore. Disabling it forgets the planes found so far.
+     */
+    public void setPlaneDetectionEnabled(boolean planeDetectionEnabled) {
+        this.planeDetectionEnabled = planeDetectionEnabled;
+        if (!planeDetectionEnabled) {
+            planeDetector.clear();
+        }
+    }
 
-    public static FloatBuffer create(Frame frame, Anchor cameraPoseAnchor) {
+    public boolean isPlaneDetectionEnabled() {
+        return planeDetectionEnabled;
+    }
+
+    /** Returns the plane detector, e.g. to tune it or read the planes of the last frame. */
+    public PlaneDetector getPlaneDetector() {
+        return planeDetector;
+    }
+
+    /**
+     * Takes the planes tracked by the session, then converts the latest raw depth image of the
+     * frame from the pose of its camera, as the app does on every frame. See
+     * {@link #setPlanes(Collection)} and {@link #create(Frame, Pose)}. No anchor is created, so
+     * the anchors of the session do not grow with the number of frames.
+     */
+    public FloatBuffer update(Session session, Frame frame) {
+        setPlanes(session.getAllTrackables(Plane.class));
+        return create(frame, frame.getCamera().getPose());
+    }
+
+    /**
+     * Converts the latest raw depth image into a point cloud in world coordinates. The returned
+     * buffer comes from a pool and should be handed back with {@link #release(FloatBuffer)} once
+     * it has been consumed.
+     *
+     * <p>Returns null if no depth image is available, or if the depth image was already converted
+     * by a previous call, in which case {@link #isDepthImageUnchanged()} returns true.
+     *
+     * <p>The points on the planes given to {@link #setPlanes(Collection)} are removed, and so
+     * are those on the planes found in the points themselves if plane detection is enabled.
+     *
+     * <p>The camera pose is only used for this conversion. There is no need to create an anchor
+     * for it, which would keep being tracked, and updated by ARCore, until it is detached.
+     */
+    public FloatBuffer create(Frame frame, Pose cameraPose) {
+        depthImageUnchanged = false;
         try {
             Image depthImage = frame.acquireRawDepthImage16Bits();
-            Image confidenceImage = frame.acquireRawDepthConfidenceImage();
+            final long depthTimestamp = depthImage.getTimestamp();
+            if (depthTimestamp == lastDepthTimestamp) {
+                // The previous results still describe this depth image.
+                depthImage.close();
+                depthImageUnchanged = true;
+                ++skippedDepthImageCount;
+                return null;
+            }
+
+            Image confidenceImage;
+            try {
+                confidenceImage = frame.acquireRawDepthConfidenceImage();
+            } catch (NotYetAvailableException e) {
+                depthImage.close();
+                throw e;
+            }
 
             // To transform 2D depth pixels into 3D points we retrieve the intrinsic camera parameters
             // corresponding to the depth image. See more information about the depth values at
             // https://developers.google.com/ar/develop/java/depth/overview#understand-depth-values.
-            final CameraIntrinsics intrinsics = frame.getCamera().getTextureIntrinsics();
-            float[] modelMatrix = new float[16];
-            cameraPoseAnchor.getPose().toMatrix(modelMatrix, 0);
-            final FloatBuffer points = convertRawDepthImagesTo3dPointBuffer(
-                    depthImage, confidenceImage, intrinsics, modelMatrix);
-
-            depthImage.close();
-            confidenceImage.close();
-
+            FloatBuffer points;
+            try {
+                depthFrame.set(depthImage, confidenceImage,
+                        frame.getCamera().getTextureIntrinsics(), cameraPose);
+                points = converter.convert(depthFrame);
+            } finally {
+                // The images are closed even if the frame could not be set up, since ARCore only
+                // hands out a few images at a time. Closing an image twice has no effect.
+                depthFrame.close();
+                depthImage.close();
+                confidenceImage.close();
+            }
+            // The image only counts as processed once converted, so that an image whose
+            // conversion failed is converted again by the next call rather than skipped.
+            lastDepthTimestamp = depthTimestamp;
+            ++processedDepthImageCount;
+            detectedPlanePointCount = planeDetectionEnabled ? removeDetectedPlanes(points) : 0;
             return points;
         } catch (NotYetAvailableException e) {
             // This normally means that depth data is not available yet. This is normal so we will not
@@ -64,96 +177,69 @@ public class DepthData {
         }
         return null;
     }
-    
-    /** Applies camera intrinsics to convert depth image into a 3D pointcloud. */
-    private static FloatBuffer convertRawDepthImagesTo3dPointBuffer(
-            Image depth, Image confidence, CameraIntrinsics cameraTextureIntrinsics, float[] modelMatrix) {
-        // Java uses big endian so we have to change the endianess to ensure we extract
-        // depth data in the correct byte order.
-        final Image.Plane depthImagePlane = depth.getPlanes()[0];
-        ByteBuffer depthByteBufferOriginal = depthImagePlane.getBuffer();
-        ByteBuffer depthByteBuffer = ByteBuffer.allocate(depthByteBufferOriginal.capacity());
-        depthByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        while (depthByteBufferOriginal.hasRemaining()) {
-            depthByteBuffer.put(depthByteBufferOriginal.get());
-        }
-        depthByteBuffer.rewind();
-        ShortBuffer depthBuffer = depthByteBuffer.asShortBuffer();
-
-        final Image.Plane confidenceImagePlane = confidence.getPlanes()[0];
-        ByteBuffer confidenceBufferOriginal = confidenceImagePlane.getBuffer();
-        ByteBuffer confidenceBuffer = ByteBuffer.allocate(confidenceBufferOriginal.capacity());
-        confidenceBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        while (confidenceBufferOriginal.hasRemaining()) {
-            confidenceBuffer.put(confidenceBufferOriginal.get());
-        }
-        confidenceBuffer.rewind();
-
-        // To transform 2D depth pixels into 3D points we retrieve the intrinsic camera parameters
-        // corresponding to the depth image. See more information about the depth values at
-        // https://developers.google.com/ar/develop/java/depth/overview#understand-depth-values.
-        final int[] intrinsicsDimensions = cameraTextureIntrinsics.getImageDimensions();
-        final int depthWidth = depth.getWidth();
-        final int depthHeight = depth.getHeight();
-        
-        final float fx =
-                cameraTextureIntrinsics.getFocalLength()[0] * depthWidth / intrinsicsDimensions[0];
-        final float fy =
-                cameraTextureIntrinsics.getFocalLength()[1] * depthHeight / intrinsicsDimensions[1];
-        final float cx =
-                cameraTextureIntrinsics.getPrincipalPoint()[0] * depthWidth / intrinsicsDimensions[0];
-        final float cy =
-                cameraTextureIntrinsics.getPrincipalPoint()[1] * depthHeight / intrinsicsDimensions[1];
-
-        // Allocate the destination point buffer. If the number of depth pixels is larger than
-        // `maxNumberOfPointsToRender` we uniformly subsample. The raw depth image may have
-        // different resolutions on different devices.
-        final float maxNumberOfPointsToRender = 20000;
-        int step = (int) Math.ceil(Math.sqrt(depthWidth * depthHeight / maxNumberOfPointsToRender));
-
-        FloatBuffer points = FloatBuffer.allocate(depthWidth / step * depthHeight / step * FLOATS_PER_POINT);
-        float[] pointCamera = new float[4];
-        float[] pointWorld = new float[4];
-
-        for (int y = 0; y < depthHeight; y += step) {
-            for (int x = 0; x < depthWidth; x += step) {
-                // Depth images are tightly packed, so it's OK to not use row and pixel strides.
-                int depthMillimeters = depthBuffer.get(y * depthWidth + x); // Depth image pixels are in mm.
-                if (depthMillimeters == 0) {
-                    // Pixels with value zero are invalid, meaning depth estimates are missing from
-                    // this location.
-                    continue;
-                }
-                final float depthMeters = depthMillimeters / 1000.0f; // Depth image pixels are in mm.
-
-                // Retrieves the confidence value for this pixel.
-                final byte confidencePixelValue =
-                        confidenceBuffer.get(
-                                y * confidenceImagePlane.getRowStride()
-                                        + x * confidenceImagePlane.getPixelStride());
-                final float confidenceNormalized = ((float) (confidencePixelValue & 0xff)) / 255.0f;
-                if (confidenceNormalized < 0.3 || depthMeters > 1.5) {
-                    // Ignores "low-confidence" pixels.
-                    continue;
-                }
-
-                // Unprojects the depth into a 3D point in camera coordinates.
-                pointCamera[0] = depthMeters * (x - cx) / fx;
-                pointCamera[1] = depthMeters * (cy - y) / fy;
-                pointCamera[2] = -depthMeters;
-                pointCamera[3] = 1;
-
-                // Applies model matrix to transform point into world coordinates.
-                Matrix.multiplyMV(pointWorld, 0, modelMatrix, 0, pointCamera, 0);
-                points.put(pointWorld[0]); // X.
-                points.put(pointWorld[1]); // Y.
-                points.put(pointWorld[2]); // Z.
-                points.put(confidenceNormalized);
-            }
+
+    /**
+     * Returns true if the last call to {@link #create(Frame, Pose)} found the same depth image
+     * as the call before, so the results of that earlier call can be reused.
+     */
+    public boolean isDepthImageUnchanged() {
+        return depthImageUnchanged;
+    }
+
+    /** Number of depth images converted to points. */
+    public long getProcessedDepthImageCount() {
+        return processedDepthImageCount;
+    }
+
+    /** Number of calls to {@link #create(Frame, Pose)} skipped because the image was unchanged. */
+    public long getSkippedDepthImageCount() {
+        return skippedDepthImageCount;
+    }
+
+    /** Returns a point buffer obtained from {@link #create(Frame, Pose)} to the pool. */
+    public void release(FloatBuffer points) {
+        converter.release(points);
+    }
+
+    /** Number of points of the last converted depth image on the planes tracked by ARCore. */
+    public int getTrackedPlanePointCount() {
+        return (int) converter.getFilterPipeline().getRejectedCount(planeFilterIndex);
+    }
+
+    /** Number of points of the last converted depth image on the planes found in the points. */
+    public int getDetectedPlanePointCount() {
+        return detectedPlanePointCount;
+    }
+
+    /** Stops the worker threads of the converter, of the plane filter and of the detector. */
+    public void shutdown() {
+        converter.shutdown();
+        planeFilter.shutdown();
+        planeDetector.shutdown();
+    }
+
+    /**
+     * Finds the planes of the points, within the time budget of the detector, and removes their
+     * points in one pass of the plane filter, with the planes found next to the ARCore planes. The
+     * remaining points are moved to the start of the buffer. Returns the number of points removed.
+     */
+    private int removeDetectedPlanes(FloatBuffer points) {
+        planeDetector.detect(points);
+        if (planeDetector.getNumPlanes() == 0) {
+            return 0;
         }
+        final int numTrackedPlanes = planeFilter.getNumBoundedPlanes();
+        planeDetector.addPlanesTo(planeFilter);
+        final int numPoints = points.remaining() / FLOATS_PER_POINT;
+        final int numKept = planeFilter.filter(points);
+        // The planes found in this frame only apply to its points.
+        planeFilter.truncateBoundedPlanes(numTrackedPlanes);
+        return numPoints - numKept;
+    }
 
-        points.rewind();
-        return points;
+    /** Returns the platform-independent converter, e.g. to tune it or read its counters. */
+    public DepthPointConverter getConverter() {
+        return converter;
     }
 
     public static Image depthImageMeasure(Frame frame) throws NotYetAvailableException {
@@ -167,47 +253,20 @@ public class DepthData {
     }
     
 
-    public static void filterUsingPlanes(FloatBuffer points, Collection<Plane> allPlanes) {
-        float[] planeNormal = new float[3];
-
-        // Allocates the output buffer.
-        int numPoints = points.remaining() / DepthData.FLOATS_PER_POINT;
-
-        // Each plane is checked against each point.
+    /**
+     * Sets the planes whose points are removed by the following calls to
+     * {@link #create(Frame, Pose)}. Points are removed if they lie on any of the tracked planes,
+     * within the polygon ARCore estimated for the plane, so that points beyond the edges of e.g. a
+     * table are kept.
+     */
+    public void setPlanes(Collection<Plane> allPlanes) {
+        planeFilter.clearPlanes();
         for (Plane plane : allPlanes) {
             if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
                 continue;
             }
-
-            // Computes the normal vector of the plane.
-            Pose planePose = plane.getCenterPose();
-            planePose.getTransformedAxis(1, 1.0f, planeNormal, 0);
-
-            // Filters points that are too close to the plane.
-            for (int index = 0; index < numPoints; ++index) {
-                // Retrieves the next point.
-                final float x = points.get(FLOATS_PER_POINT * index);
-                final float y = points.get(FLOATS_PER_POINT * index + 1);
-                final float z = points.get(FLOATS_PER_POINT * index + 2);
-
-                // Transforms point to be in world coordinates, to match plane info.
-                float distance = (x - planePose.tx()) * planeNormal[0]
-                        + (y - planePose.ty()) * planeNormal[1]
-                        + (z - planePose.tz()) * planeNormal[2];
-
-                // Controls the size of objects detected.
-                // Smaller values mean smaller objects will be kept.
-                // Larger values will only allow detection of larger objects, but also helps reduce noise.
-                if (Math.abs(distance) > 0.03) {
-                    continue;  // Keeps this point, since it's far enough away from the plane.
-                }
-
-                // Invalidates points that are too close to planar surfaces.
-                points.put(FLOATS_PER_POINT * index, 0);
-                points.put(FLOATS_PER_POINT * index + 1, 0);
-                points.put(FLOATS_PER_POINT * index + 2, 0);
-                points.put(FLOATS_PER_POINT * index + 3, 0);
-            }
+            plane.getCenterPose().toMatrix(planeMatrix, 0);
+            planeFilter.addPlane(planeMatrix, 0, plane.getPolygon());
         }
     }
 }
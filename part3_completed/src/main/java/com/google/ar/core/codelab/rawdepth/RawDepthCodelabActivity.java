@@ -45,19 +45,20 @@ import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Frame;
-import com.google.ar.core.Plane;
 import com.google.ar.core.PlaybackStatus;
 import com.google.ar.core.RecordingConfig;
 import com.google.ar.core.RecordingStatus;
 import com.google.ar.core.Session;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.codelab.common.depth.PointFilterPipeline;
 import com.google.ar.core.codelab.common.helpers.AABB;
 import com.google.ar.core.codelab.common.helpers.CameraPermissionHelper;
+import com.google.ar.core.codelab.common.helpers.ClusterChangeSet;
 import com.google.ar.core.codelab.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.codelab.common.helpers.FullScreenHelper;
-import com.google.ar.core.codelab.common.helpers.PointClusteringHelper;
 import com.google.ar.core.codelab.common.helpers.SnackbarHelper;
 import com.google.ar.core.codelab.common.helpers.TrackingStateHelper;
+import com.google.ar.core.codelab.common.helpers.VoxelMap;
 import com.google.ar.core.codelab.common.rendering.BackgroundRenderer;
 import com.google.ar.core.codelab.common.rendering.BoxRenderer;
 import com.google.ar.core.codelab.common.rendering.DepthRenderer;
@@ -74,8 +75,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -104,6 +105,35 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
     private final BoxRenderer boxRenderer = new BoxRenderer();
 
+    // Converts depth images to points, spreading each image across half of the available cores.
+    private final DepthData depthData =
+            new DepthData(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Accumulates the depth points of the session in world coordinates, so that clusters are
+    // found on every depth image seen so far rather than on the last one only.
+    private static final int MAX_MAP_VOXELS = 1 << 17;
+    private final VoxelMap voxelMap = new VoxelMap(MAX_MAP_VOXELS);
+    // Set from the UI thread when the world coordinates change, e.g. when a new session starts.
+    private volatile boolean voxelMapResetRequested;
+
+    // Clusters of the voxel map that changed since the last update.  Only those boxes are updated
+    // in the box renderer, which keeps the other boxes.
+    private final ClusterChangeSet clusterChanges = new ClusterChangeSet();
+    private final AABB clusterBounds = new AABB();
+
+    // Cluster ids are not bounded, so each drawn cluster gets one of the box slots of the
+    // renderer, indexed by cluster id. Slots of removed clusters are reused. Clusters that find
+    // no free slot are not drawn until a slot frees up, and their dropped updates are counted.
+    private static final int NO_BOX_SLOT = -1;
+    private int[] clusterBoxSlots = new int[0];
+    private final int[] freeBoxSlots = new int[BoxRenderer.MAX_BOXES];
+    private int numFreeBoxSlots;
+    private long droppedBoxUpdateCount;
+
+    // Pipeline statistics are logged at most once per interval.
+    private static final long STATS_LOG_INTERVAL_NS = 5_000_000_000L;
+    private long lastStatsTimestamp;
+
     @SuppressLint("MissingInflatedId")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -117,6 +147,17 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
 
         displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
 
+        // ARCore planes arrive late and miss small surfaces, so planes are also found in the
+        // depth points.
+        depthData.setPlaneDetectionEnabled(true);
+
+        // Every box slot starts free. They are taken from the end, so the lowest slots go first
+        // and the renderer draws as few slots as possible.
+        for (int slot = 0; slot < BoxRenderer.MAX_BOXES; ++slot) {
+            freeBoxSlots[slot] = BoxRenderer.MAX_BOXES - 1 - slot;
+        }
+        numFreeBoxSlots = BoxRenderer.MAX_BOXES;
+
 //        startRecording.setOnClickListener(this::onClickRecord);
 //        stopRecording.setOnClickListener(this::onClickPlayback);
 
@@ -302,6 +343,7 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
         } catch (PlaybackFailedException e) {
             Log.e(TAG, "startPlayingback - setPlaybackDataset failed", e);
         }
+        voxelMapResetRequested = true;
 
         // The session's camera texture name becomes invalid when the
         // ARCore session is set to play back.
@@ -347,6 +389,7 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
             return false;
         }
         configureSession();
+        voxelMapResetRequested = true;
 
         boolean canResume = resumeARCoreSession();
         if (!canResume)
@@ -599,6 +642,12 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        depthData.shutdown();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] results) {
         if (!CameraPermissionHelper.hasCameraPermission(this)) {
@@ -669,46 +718,151 @@ public class RawDepthCodelabActivity extends AppCompatActivity implements GLSurf
             // If frame is ready, render camera preview image to the GL surface.
             backgroundRenderer.draw(frame);
 
-            // Retrieve the depth data for this frame.
-            FloatBuffer points = DepthData.create(frame, session.createAnchor(camera.getPose()));
+            // Retrieve the depth data for this frame. Points on the tracked planes are filtered out
+            // during the conversion, then those on the planes found in the points, and the points
+            // that are kept form the whole buffer.
+            FloatBuffer points = depthData.update(session, frame);
+            logPipelineStats(frame);
 
 //            mHeight.setText(depthImageMeasure(frame).getHeight());
 //            mWidth.setText(depthImageMeasure(frame).getWidth());
 
-            if (points == null) {
+            if (points == null && !depthData.isDepthImageUnchanged()) {
                 return;
             }
 
-            if (messageSnackbarHelper.isShowing() && points != null) {
+            if (messageSnackbarHelper.isShowing()) {
                 messageSnackbarHelper.hide(this);
             }
 
             // If not tracking, show tracking failure reason instead.
             if (camera.getTrackingState() == TrackingState.PAUSED) {
+                depthData.release(points);
                 messageSnackbarHelper.showMessage(
                         this, TrackingStateHelper.getTrackingFailureReasonString(camera));
                 return;
             }
 
-            // Filters the depth data.
-            DepthData.filterUsingPlanes(points, session.getAllTrackables(Plane.class));
+            // Processes the depth data only when a new depth image arrived. Otherwise, the points
+            // uploaded to the renderer and the clusters of the previous frame are drawn again.
+            if (points != null) {
+                try {
+                    // Uploads the depth points for visualization.
+                    depthRenderer.update(points);
+
+                    // Adds the points to the map, and finds clusters of voxels.
+                    if (voxelMapResetRequested) {
+                        voxelMapResetRequested = false;
+                        voxelMap.clear();
+                    }
+                    voxelMap.integrate(points);
+                    voxelMap.updateClusters(clusterChanges);
+                    updateClusterBoxes();
+                } finally {
+                    // Hands the buffer back so the next frame can reuse it.
+                    depthData.release(points);
+                }
+            }
 
             // Visualize depth points.
-            depthRenderer.update(points);
             depthRenderer.draw(camera);
 
             // Draw boxes around clusters of points.
-            PointClusteringHelper clusteringHelper = new PointClusteringHelper(points);
-            List<AABB> clusters = clusteringHelper.findClusters();
-            for (AABB aabb : clusters) {
-                boxRenderer.draw(aabb, camera);
-            }
+            boxRenderer.drawBoxes(camera);
         } catch (Throwable t) {
             // Avoid crashing the application due to unhandled exceptions.
             Log.e(TAG, "Exception on the OpenGL thread", t);
         }
     }
 
+    /** Updates the boxes of the clusters that were added, changed or removed. */
+    private void updateClusterBoxes() {
+        if (clusterBoxSlots.length < voxelMap.getClusterIdBound()) {
+            final int oldLength = clusterBoxSlots.length;
+            clusterBoxSlots = Arrays.copyOf(clusterBoxSlots,
+                    Math.max(voxelMap.getClusterIdBound(), 2 * oldLength));
+            Arrays.fill(clusterBoxSlots, oldLength, clusterBoxSlots.length, NO_BOX_SLOT);
+        }
+        for (int i = 0; i < clusterChanges.getRemovedCount(); ++i) {
+            releaseClusterBox(clusterChanges.getRemovedId(i));
+        }
+        for (int i = 0; i < clusterChanges.getAddedCount(); ++i) {
+            setClusterBox(clusterChanges.getAddedId(i));
+        }
+        for (int i = 0; i < clusterChanges.getChangedCount(); ++i) {
+            setClusterBox(clusterChanges.getChangedId(i));
+        }
+    }
+
+    /** Draws the box of a cluster in its slot, assigning it a free slot if it has none. */
+    private void setClusterBox(int id) {
+        int slot = clusterBoxSlots[id];
+        if (slot == NO_BOX_SLOT) {
+            if (numFreeBoxSlots == 0) {
+                ++droppedBoxUpdateCount;
+                return;
+            }
+            slot = freeBoxSlots[--numFreeBoxSlots];
+            clusterBoxSlots[id] = slot;
+        }
+        voxelMap.getClusterBounds(id, clusterBounds);
+        if (!boxRenderer.setBox(slot, clusterBounds)) {
+            Log.w(TAG, String.format("Box slot %d of cluster %d was rejected", slot, id));
+            releaseClusterBox(id);
+            ++droppedBoxUpdateCount;
+        }
+    }
+
+    /** Removes the box of a cluster, and frees its slot. */
+    private void releaseClusterBox(int id) {
+        final int slot = clusterBoxSlots[id];
+        if (slot == NO_BOX_SLOT) {
+            return;
+        }
+        boxRenderer.removeBox(slot);
+        freeBoxSlots[numFreeBoxSlots++] = slot;
+        clusterBoxSlots[id] = NO_BOX_SLOT;
+    }
+
+    /**
+     * Periodically logs the number of anchors tracked by the session, which must stay flat over a
+     * session, how many depth images were processed or skipped, and the size of the voxel map.
+     */
+    private void logPipelineStats(Frame frame) {
+        if (frame.getTimestamp() - lastStatsTimestamp < STATS_LOG_INTERVAL_NS) {
+            return;
+        }
+        lastStatsTimestamp = frame.getTimestamp();
+        Log.d(TAG, String.format("Live anchors: %d, depth images processed: %d, skipped: %d, "
+                        + "map voxels: %d, evicted: %d, clusters: %d, "
+                        + "box updates dropped for lack of slots: %d",
+                session.getAllAnchors().size(),
+                depthData.getProcessedDepthImageCount(),
+                depthData.getSkippedDepthImageCount(),
+                voxelMap.getNumVoxels(),
+                voxelMap.getEvictedVoxelCount(),
+                voxelMap.getNumClusters(),
+                droppedBoxUpdateCount));
+
+        // Counts of the last converted depth image, per filter.
+        PointFilterPipeline filters = depthData.getConverter().getFilterPipeline();
+        StringBuilder filterStats = new StringBuilder("Depth points kept: ")
+                .append(filters.getAcceptedCount());
+        for (int i = 0; i < filters.getNumFilters(); ++i) {
+            filterStats.append(", rejected by ")
+                    .append(filters.getFilter(i).getClass().getSimpleName())
+                    .append(": ")
+                    .append(filters.getRejectedCount(i));
+        }
+        Log.d(TAG, filterStats.toString());
+        Log.d(TAG, String.format("Points on tracked planes: %d, on detected planes: %d",
+                depthData.getTrackedPlanePointCount(),
+                depthData.getDetectedPlanePointCount()));
+        Log.d(TAG, String.format("Detected planes: %d, in %d us",
+                depthData.getPlaneDetector().getNumPlanes(),
+                depthData.getPlaneDetector().getLastDetectionNanos() / 1000));
+    }
+
     private final int REQUEST_WRITE_EXTERNAL_STORAGE = 1;
 
     public boolean checkAndRequestStoragePermission() {
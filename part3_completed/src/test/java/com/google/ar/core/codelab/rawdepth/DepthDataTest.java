@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.rawdepth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.media.Image;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
+import com.google.ar.core.Frame;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.Session;
+import com.google.ar.core.exceptions.NotYetAvailableException;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that converting the depth images of a session does not create anchors, which ARCore would
+ * keep tracking, and updating in every call to {@code Session.update()}, until they are detached.
+ * The session and its frames are mocks that serve synthetic depth images.
+ */
+public class DepthDataTest {
+    private static final int NUM_FRAMES = 300;
+
+    private static final int DEPTH_WIDTH = 160;
+    private static final int DEPTH_HEIGHT = 120;
+    private static final short DEPTH_MILLIMETERS = 1000;
+    private static final byte MAX_CONFIDENCE = (byte) 255;
+
+    @Test
+    public void updateCreatesNoAnchor() throws NotYetAvailableException {
+        // Anchors created through the session are listed by it, as in ARCore.
+        final List<Anchor> anchors = new ArrayList<>();
+        final Session session = mock(Session.class);
+        when(session.getAllAnchors()).thenReturn(anchors);
+        when(session.createAnchor(any())).thenAnswer(invocation -> {
+            final Anchor anchor = mock(Anchor.class);
+            anchors.add(anchor);
+            return anchor;
+        });
+        when(session.getAllTrackables(Plane.class)).thenReturn(Collections.<Plane>emptyList());
+
+        final Camera camera = mock(Camera.class);
+        final CameraIntrinsics intrinsics = createTextureIntrinsics();
+        when(camera.getPose()).thenReturn(Pose.IDENTITY);
+        when(camera.getTextureIntrinsics()).thenReturn(intrinsics);
+        final Frame frame = mock(Frame.class);
+        when(frame.getCamera()).thenReturn(camera);
+
+        final DepthData depthData = new DepthData();
+        try {
+            final int initialAnchorCount = session.getAllAnchors().size();
+            for (int i = 0; i < NUM_FRAMES; ++i) {
+                // Every frame brings a new depth image, so that every frame is converted.
+                final long timestamp = i + 1;
+                final Image depthImage = createDepthImage(timestamp);
+                final Image confidenceImage = createConfidenceImage(timestamp);
+                when(frame.acquireRawDepthImage16Bits()).thenReturn(depthImage);
+                when(frame.acquireRawDepthConfidenceImage()).thenReturn(confidenceImage);
+
+                final FloatBuffer points = depthData.update(session, frame);
+                assertNotNull("frame " + i, points);
+                depthData.release(points);
+                assertEquals("anchors after frame " + i,
+                        initialAnchorCount, session.getAllAnchors().size());
+            }
+            verify(session, never()).createAnchor(any());
+            assertEquals(NUM_FRAMES, depthData.getProcessedDepthImageCount());
+        } finally {
+            depthData.shutdown();
+        }
+    }
+
+    /** Intrinsics of a 640x480 camera texture, with the same aspect ratio as the depth images. */
+    private static CameraIntrinsics createTextureIntrinsics() {
+        final CameraIntrinsics intrinsics = mock(CameraIntrinsics.class);
+        when(intrinsics.getImageDimensions()).thenReturn(new int[] {640, 480});
+        when(intrinsics.getFocalLength()).thenReturn(new float[] {500, 500});
+        when(intrinsics.getPrincipalPoint()).thenReturn(new float[] {320, 240});
+        return intrinsics;
+    }
+
+    /** A depth image of a wall in front of the camera. */
+    private static Image createDepthImage(long timestamp) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * DEPTH_WIDTH * DEPTH_HEIGHT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < DEPTH_WIDTH * DEPTH_HEIGHT; ++i) {
+            buffer.putShort(DEPTH_MILLIMETERS);
+        }
+        buffer.flip();
+        return createImage(buffer, 2, timestamp);
+    }
+
+    private static Image createConfidenceImage(long timestamp) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(DEPTH_WIDTH * DEPTH_HEIGHT);
+        for (int i = 0; i < DEPTH_WIDTH * DEPTH_HEIGHT; ++i) {
+            buffer.put(MAX_CONFIDENCE);
+        }
+        buffer.flip();
+        return createImage(buffer, 1, timestamp);
+    }
+
+    private static Image createImage(ByteBuffer buffer, int pixelStride, long timestamp) {
+        final Image.Plane plane = mock(Image.Plane.class);
+        when(plane.getBuffer()).thenReturn(buffer);
+        when(plane.getPixelStride()).thenReturn(pixelStride);
+        when(plane.getRowStride()).thenReturn(pixelStride * DEPTH_WIDTH);
+        final Image image = mock(Image.class);
+        when(image.getPlanes()).thenReturn(new Image.Plane[] {plane});
+        when(image.getWidth()).thenReturn(DEPTH_WIDTH);
+        when(image.getHeight()).thenReturn(DEPTH_HEIGHT);
+        when(image.getTimestamp()).thenReturn(timestamp);
+        return image;
+    }
+}